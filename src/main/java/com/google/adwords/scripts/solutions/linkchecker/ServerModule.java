@@ -15,6 +15,16 @@
 package com.google.adwords.scripts.solutions.linkchecker;
 
 import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
+import com.google.adwords.scripts.solutions.linkchecker.service.CircuitBreakerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.CounterStore;
+import com.google.adwords.scripts.solutions.linkchecker.service.DnsCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostLatencyService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostSchedulerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.MemcacheCounterStore;
+import com.google.adwords.scripts.solutions.linkchecker.service.RateLimiterService;
+import com.google.adwords.scripts.solutions.linkchecker.service.UrlResultCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.Fetcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlConnectionFetcher;
 import com.google.api.server.spi.guice.EndpointsModule;
 import com.google.inject.Scopes;
 import com.googlecode.objectify.ObjectifyFilter;
@@ -26,5 +36,20 @@ public class ServerModule extends EndpointsModule {
     filter("/*").through(ObjectifyFilter.class);
     bind(ObjectifyFilter.class).in(Scopes.SINGLETON);
     bind(Datastore.class).in(Scopes.SINGLETON);
+    // URLs are fetched through the JVM. Binding the StubFetcher instead simulates the fetches, for
+    // load testing without network access.
+    bind(Fetcher.class).to(UrlConnectionFetcher.class);
+    // Results are cached for the life of the instance, so must be shared by all tasks.
+    bind(UrlResultCacheService.class).in(Scopes.SINGLETON);
+    // Per-host limits apply across all tasks, so must also be shared.
+    bind(HostSchedulerService.class).in(Scopes.SINGLETON);
+    bind(DnsCacheService.class).in(Scopes.SINGLETON);
+    // Latencies and failures of each host are learned from the checks of all tasks.
+    bind(HostLatencyService.class).in(Scopes.SINGLETON);
+    bind(CircuitBreakerService.class).in(Scopes.SINGLETON);
+    // The global rate limit applies across all tasks, and where shared, across all instances via
+    // memcache. Binding the LocalCounterStore instead limits each instance separately.
+    bind(RateLimiterService.class).in(Scopes.SINGLETON);
+    bind(CounterStore.class).to(MemcacheCounterStore.class).in(Scopes.SINGLETON);
   }
 }
@@ -17,27 +17,54 @@ package com.google.adwords.scripts.solutions.linkchecker.datastore;
 import com.google.adwords.scripts.solutions.linkchecker.model.Account;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchOperation;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
 import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
 import com.google.adwords.scripts.solutions.linkchecker.model.SharedKey;
+import com.google.adwords.scripts.solutions.linkchecker.model.UrlValidators;
 import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Class for interacting with Datastore through Objectify, to load/save/manage link checking jobs.
+ *
+ * <p>Each {@code BatchSubOperation} is in the entity group of its {@code BatchOperation}, which
+ * sustains only about one transaction per second. Where URLs are claimed, or outcomes saved at
+ * checkpoints, the tasks of a batch contend for that group, so these transactions back off and
+ * retry a bounded number of times on contention, rather than retrying at once indefinitely.
  */
 public class Datastore {
+  private static final Logger LOG = Logger.getLogger(Datastore.class.getName());
+  // The attempts made at a contended transaction, and the delay before the second, which doubles
+  // for each attempt after, up to the maximum.
+  static final int MAX_TRANSACTION_ATTEMPTS = 8;
+  static final long TRANSACTION_BASE_DELAY_MILLIS = 50;
+  private static final long MAX_TRANSACTION_DELAY_MILLIS = 2000;
+
   static {
     ObjectifyService.register(BatchOperation.class);
     ObjectifyService.register(BatchSubOperation.class);
     ObjectifyService.register(UrlCheckStatus.class);
     ObjectifyService.register(SharedKey.class);
     ObjectifyService.register(Settings.class);
+    ObjectifyService.register(UrlValidators.class);
+    ObjectifyService.register(HostLatencyProfile.class);
     ObjectifyService.begin();
   }
 
@@ -145,6 +172,156 @@ public class Datastore {
             });
   }
 
+  /**
+   * Claims some of the URLs of a {@code BatchSubOperation} that are yet to be checked, so that
+   * they are only checked by the claiming task. A URL may be claimed if it is not already claimed,
+   * if the claim has lapsed, or if the claim belongs to the same task, such as from an earlier
+   * attempt.
+   * This is executed as a single transaction, so that no URL is claimed by two tasks at once.
+   *
+   * @param accountId The account ID for the owning {@code BatchOperation}.
+   * @param parentId The ID of the owning {@code BatchOperation}.
+   * @param id The ID of the {@code BatchSubOperation}.
+   * @param owner The ID of the claiming task.
+   * @param maxUrls The maximum number of URLs to claim.
+   * @param leaseMillis The time after which the claims lapse, unless the outcomes have been saved.
+   * @return The statuses of the claimed URLs, which are empty if there are none left to claim.
+   */
+  public List<UrlCheckStatus> claimUrls(final String accountId, final String parentId,
+      final String id, final String owner, final int maxUrls, final long leaseMillis) {
+    return transactWithBackoff(
+        new Work<List<UrlCheckStatus>>() {
+          @Override
+          public List<UrlCheckStatus> run() {
+            BatchSubOperation subOp = loadBatchSubOperation(accountId, parentId, id);
+            long now = System.currentTimeMillis();
+            List<UrlCheckStatus> claimed = new ArrayList<>();
+            for (UrlCheckStatus status : subOp.getUrlStatuses()) {
+              if (claimed.size() < maxUrls && status.isClaimableBy(owner, now)) {
+                status.setLease(owner, now + leaseMillis);
+                claimed.add(status);
+              }
+            }
+            if (!claimed.isEmpty()) {
+              ofy().save().entity(subOp);
+            }
+            return claimed;
+          }
+        });
+  }
+
+  /**
+   * Saves the outcomes of URLs claimed from a {@code BatchSubOperation}, and gives up the claims.
+   * Claimed URLs that have not been checked are given up, to be claimed again. Outcomes are only
+   * saved where the claim still belongs to the task. Once all of the URLs have been checked, the
+   * count of remaining sub operations for the {@code BatchOperation} is decremented. This is
+   * executed as a single transaction, so that the count is decremented only once.
+   *
+   * @param accountId The account ID for the owning {@code BatchOperation}.
+   * @param parentId The ID of the owning {@code BatchOperation}.
+   * @param id The ID of the {@code BatchSubOperation}.
+   * @param owner The ID of the task that claimed the URLs.
+   * @param statuses The statuses of the claimed URLs.
+   * @param cacheHits The number of the URLs resolved from the result cache.
+   * @param cacheMisses The number of the URLs that were not, and so were fetched.
+   */
+  public void saveClaimedUrls(String accountId, String parentId, String id, String owner,
+      Collection<UrlCheckStatus> statuses, int cacheHits, int cacheMisses) {
+    saveOutcomes(accountId, parentId, id, owner, statuses, cacheHits, cacheMisses);
+  }
+
+  /**
+   * Saves the outcomes of some of the URLs of a {@code BatchSubOperation}, such as those checked so
+   * far by a task that has yet to finish, without saving the rest of the sub operation. This is
+   * executed as a single transaction.
+   *
+   * @param accountId The account ID for the owning {@code BatchOperation}.
+   * @param parentId The ID of the owning {@code BatchOperation}.
+   * @param id The ID of the {@code BatchSubOperation}.
+   * @param statuses The statuses of the checked URLs.
+   * @param cacheHits The number of the URLs resolved from the result cache.
+   * @param cacheMisses The number of the URLs that were not, and so were fetched.
+   */
+  public void saveUrlOutcomes(String accountId, String parentId, String id,
+      Collection<UrlCheckStatus> statuses, int cacheHits, int cacheMisses) {
+    saveOutcomes(accountId, parentId, id, null, statuses, cacheHits, cacheMisses);
+  }
+
+  /**
+   * Saves the outcomes of some of the URLs of a {@code BatchSubOperation}.
+   *
+   * @param owner The ID of the task that claimed the URLs, or {@code null} where URLs are not
+   *     claimed, in which case completion of the sub operation is left to the task.
+   */
+  private void saveOutcomes(final String accountId, final String parentId, final String id,
+      final String owner, final Collection<UrlCheckStatus> statuses, final int cacheHits,
+      final int cacheMisses) {
+    transactWithBackoff(
+        new VoidWork() {
+          @Override
+          public void vrun() {
+            BatchSubOperation subOp = loadBatchSubOperation(accountId, parentId, id);
+            Map<String, UrlCheckStatus> outcomes = new HashMap<>();
+            for (UrlCheckStatus status : statuses) {
+              outcomes.put(status.getUrl(), status);
+            }
+            boolean complete = true;
+            List<UrlCheckStatus> urlStatuses = subOp.getUrlStatuses();
+            for (int i = 0; i < urlStatuses.size(); i++) {
+              UrlCheckStatus saved = urlStatuses.get(i);
+              UrlCheckStatus outcome = outcomes.get(saved.getUrl());
+              if (outcome != null && (owner == null || saved.isLeasedBy(owner))) {
+                outcome.clearLease();
+                urlStatuses.set(i, outcome);
+                saved = outcome;
+              }
+              complete &= saved.getStatus() != UrlCheckStatus.Status.NOT_STARTED;
+            }
+            subOp.recordCacheLookups(cacheHits, cacheMisses);
+            if (owner != null && complete && !subOp.isComplete()) {
+              subOp.setComplete();
+              Key accountKey = Key.create(Account.class, accountId);
+              Key key = Key.create(accountKey, BatchOperation.class, parentId);
+              BatchOperation op = (BatchOperation) ofy().load().key(key).now();
+              op.decrementRemainingSubOperations();
+              ofy().save().entity(op);
+            }
+            ofy().save().entity(subOp);
+          }
+        });
+  }
+
+  private static <R> R transactWithBackoff(Work<R> work) {
+    return transactWithBackoff(work, MAX_TRANSACTION_ATTEMPTS, TRANSACTION_BASE_DELAY_MILLIS);
+  }
+
+  /**
+   * Runs a transaction, retrying it after a growing, randomized delay should it fail due to
+   * contention for its entity group.
+   *
+   * @param work The transaction.
+   * @param maxAttempts The number of attempts to make.
+   * @param baseDelayMillis The delay before the second attempt, which doubles for each after.
+   * @return The result of the transaction.
+   * @throws ConcurrentModificationException If every attempt failed due to contention.
+   */
+  @VisibleForTesting
+  static <R> R transactWithBackoff(Work<R> work, int maxAttempts, long baseDelayMillis) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return ofy().transactNew(1, work);
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= maxAttempts) {
+          throw e;
+        }
+        long delay = Math.min(MAX_TRANSACTION_DELAY_MILLIS, baseDelayMillis << (attempt - 1));
+        delay = delay / 2 + (long) (ThreadLocalRandom.current().nextDouble() * (delay - delay / 2));
+        LOG.log(Level.INFO, "Transaction contended, retrying in " + delay + " ms");
+        Uninterruptibles.sleepUninterruptibly(delay, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
   /**
    * Saves a {@code BatchOperation} and children
    *
@@ -229,4 +406,67 @@ public class Datastore {
     ofy().save().entity(settings).now();
     return settings;
   }
+
+  /**
+   * Retrieves the stored validators for a number of pages, in a single batch.
+   *
+   * @param ids The {@code UrlResultKey}s of the pages.
+   * @return A map from ID to {@code UrlValidators}, for those pages that have validators stored.
+   */
+  public Map<String, UrlValidators> loadUrlValidators(Collection<String> ids) {
+    return ofy().load().type(UrlValidators.class).ids(ids);
+  }
+
+  /**
+   * Saves the validators for a number of pages.
+   *
+   * @param validators The {@code UrlValidators} to save.
+   */
+  public void saveUrlValidators(Collection<UrlValidators> validators) {
+    ofy().save().entities(validators).now();
+  }
+
+  /**
+   * Deletes validators that have not been updated since a specified date.
+   *
+   * @param boundaryDate The date before which validators are deleted.
+   */
+  public void deleteUrlValidatorsBefore(Date boundaryDate) {
+    ofy()
+        .delete()
+        .keys(ofy().load().type(UrlValidators.class).filter("updated <", boundaryDate).keys())
+        .now();
+  }
+
+  /**
+   * Loads the saved latency profiles for a number of hosts.
+   *
+   * @param hosts The hosts.
+   * @return The profiles, for those hosts that have one saved.
+   */
+  public Collection<HostLatencyProfile> loadHostLatencyProfiles(Collection<String> hosts) {
+    return ofy().load().type(HostLatencyProfile.class).ids(hosts).values();
+  }
+
+  /**
+   * Saves the latency profiles for a number of hosts.
+   *
+   * @param profiles The {@code HostLatencyProfile}s to save.
+   */
+  public void saveHostLatencyProfiles(Collection<HostLatencyProfile> profiles) {
+    ofy().save().entities(profiles).now();
+  }
+
+  /**
+   * Deletes latency profiles that have not been updated since a specified date.
+   *
+   * @param boundaryDate The date before which profiles are deleted.
+   */
+  public void deleteHostLatencyProfilesBefore(Date boundaryDate) {
+    ofy()
+        .delete()
+        .keys(
+            ofy().load().type(HostLatencyProfile.class).filter("updated <", boundaryDate).keys())
+        .now();
+  }
 }
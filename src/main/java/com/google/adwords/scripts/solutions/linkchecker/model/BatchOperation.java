@@ -14,6 +14,7 @@
 
 package com.google.adwords.scripts.solutions.linkchecker.model;
 
+import com.google.adwords.scripts.solutions.linkchecker.request.UrlCheckRequest;
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.googlecode.objectify.Key;
@@ -50,6 +51,32 @@ public class BatchOperation {
 
   @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
   List<String> failureMatchTexts;
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  List<String> failureMatchPatterns;
+
+  // Whether the failure texts and patterns are matched regardless of case.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  Boolean failureMatchCaseInsensitive;
+
+  // The number of kilobytes of each page to search for failure texts, overriding the global setting
+  // when present.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  Integer maxBodyKilobytes;
+
+  // The time in seconds after which each check is abandoned, overriding the global setting when
+  // present.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  Integer checkDeadlineSeconds;
+
+  // The content types of the pages to search for failure texts, or null for the default types.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  List<String> searchedContentTypes;
+
+  // Whether tasks that finish their own URLs early go on to check those of other tasks, as set when
+  // the batch was created.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  Boolean workStealingEnabled;
   
   // A count is kept of the remaining sub operations. Each sub operation updates this value when it
   // completes, and when this value reaches 0, the status is marked as complete.
@@ -72,6 +99,23 @@ public class BatchOperation {
     this.failureMatchTexts = failureMatchTexts;
   };
 
+  /**
+   * Creates a new {@code BatchOperation} with the check options from a request.
+   *
+   * @param accountId The associated account ID.
+   * @param request The request, from which the failure texts and other check options are taken.
+   * @return The new {@code BatchOperation}.
+   */
+  public static BatchOperation fromRequest(String accountId, UrlCheckRequest request) {
+    BatchOperation operation = new BatchOperation(accountId, request.getFailureMatchTexts());
+    operation.failureMatchPatterns = request.getFailureMatchPatterns();
+    operation.failureMatchCaseInsensitive = request.getFailureMatchCaseInsensitive();
+    operation.maxBodyKilobytes = request.getMaxBodyKilobytes();
+    operation.checkDeadlineSeconds = request.getCheckDeadlineSeconds();
+    operation.searchedContentTypes = request.getSearchedContentTypes();
+    return operation;
+  }
+
   /**
    * Adds a list of {@code BatchSubOperation}s to the {@code BatchOperation}.
    *
@@ -118,6 +162,50 @@ public class BatchOperation {
     return failureMatchTexts;
   }
 
+  public List<String> getFailureMatchPatterns() {
+    return failureMatchPatterns;
+  }
+
+  public boolean isFailureMatchCaseInsensitive() {
+    return failureMatchCaseInsensitive != null && failureMatchCaseInsensitive;
+  }
+
+  public Integer getMaxBodyKilobytes() {
+    return maxBodyKilobytes;
+  }
+
+  public Integer getCheckDeadlineSeconds() {
+    return checkDeadlineSeconds;
+  }
+
+  public List<String> getSearchedContentTypes() {
+    return searchedContentTypes;
+  }
+
+  public boolean isWorkStealingEnabled() {
+    return workStealingEnabled != null && workStealingEnabled;
+  }
+
+  public void setWorkStealingEnabled(boolean workStealingEnabled) {
+    this.workStealingEnabled = workStealingEnabled;
+  }
+
+  /**
+   * Gets the IDs of the sub operations, without loading them.
+   *
+   * @return The IDs.
+   */
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public List<String> getSubOperationIds() {
+    List<String> ids = new ArrayList<>();
+    if (subOperations != null) {
+      for (Ref<BatchSubOperation> subOp : subOperations) {
+        ids.add(subOp.getKey().getName());
+      }
+    }
+    return ids;
+  }
+
   /**
    * Decrements the count of remaining subOperations, and if there are none left, marks the 
    * {@code BatchOperation} as complete.
@@ -15,6 +15,7 @@
 package com.google.adwords.scripts.solutions.linkchecker.model;
 
 import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.common.base.Utf8;
 import com.googlecode.objectify.Ref;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
@@ -23,6 +24,7 @@ import com.googlecode.objectify.annotation.Load;
 import com.googlecode.objectify.annotation.Parent;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -31,10 +33,23 @@ import java.util.UUID;
 @Cache
 @Entity
 public class BatchSubOperation {
-  public static final int MAX_URLS = 100;
+  // The most URLs a sub operation may hold, where sub operations are sized by the time to check
+  // them.
+  public static final int MAX_URLS = 250;
+  // The most bytes of URLs, both canonical and as submitted, that a sub operation may hold. This
+  // leaves room within the 1 MB Datastore entity limit for the rest of each of up to MAX_URLS
+  // statuses, such as their messages, however long the URLs are.
+  public static final int MAX_URL_BYTES = 512 * 1024;
   
   @Id private String id;
   private List<UrlCheckStatus> urlStatuses;
+  // The number of URLs resolved from the result cache, and the number that had to be fetched,
+  // while the cache was enabled.
+  private int cacheHitCount;
+  private int cacheMissCount;
+  // Whether all of the URLs have been checked, where the URLs of the batch are shared between its
+  // tasks, so that the parent is only told once.
+  private boolean complete;
   
   @Parent
   @Load private Ref<BatchOperation> parentOp;
@@ -44,6 +59,20 @@ public class BatchSubOperation {
   }
   
   public BatchSubOperation(BatchOperation parentOp, List<String> urls) {
+    this(parentOp, urls, null);
+  }
+
+  /**
+   * Creates a new sub operation for canonical URLs, recording the submitted URLs for each so that
+   * results can be reported against them.
+   *
+   * @param parentOp The parent {@code BatchOperation}.
+   * @param urls The canonical URLs to check.
+   * @param originalUrls The submitted URLs for each canonical URL, or {@code null} if the URLs
+   *     were submitted as they are.
+   */
+  public BatchSubOperation(
+      BatchOperation parentOp, List<String> urls, Map<String, List<String>> originalUrls) {
     this();
     if (urls.size() > MAX_URLS) {
       throw new IllegalArgumentException("Too many URLs supplied");
@@ -51,9 +80,36 @@ public class BatchSubOperation {
     this.parentOp = Ref.create(parentOp);
     urlStatuses = new ArrayList<>();
     
+    long urlBytes = 0;
     for (String url : urls) {
-      urlStatuses.add(UrlCheckStatus.fromUrl(url));
+      UrlCheckStatus status = UrlCheckStatus.fromUrl(url);
+      List<String> submittedUrls = originalUrls != null ? originalUrls.get(url) : null;
+      if (submittedUrls != null) {
+        status.setOriginalUrls(submittedUrls);
+      }
+      urlStatuses.add(status);
+      urlBytes += getUrlBytes(url, submittedUrls);
+    }
+    if (urlBytes > MAX_URL_BYTES) {
+      throw new IllegalArgumentException("URLs supplied are too long");
+    }
+  }
+
+  /**
+   * Gets the number of bytes a URL adds to a sub operation towards {@code MAX_URL_BYTES}.
+   *
+   * @param url The canonical URL.
+   * @param originalUrls The submitted URLs for the canonical URL, or {@code null}.
+   * @return The number of bytes.
+   */
+  public static int getUrlBytes(String url, List<String> originalUrls) {
+    int bytes = Utf8.encodedLength(url);
+    if (originalUrls != null) {
+      for (String originalUrl : originalUrls) {
+        bytes += Utf8.encodedLength(originalUrl);
+      }
     }
+    return bytes;
   }
   
   public String getId() {
@@ -64,6 +120,41 @@ public class BatchSubOperation {
     return urlStatuses;
   }
   
+  public int getCacheHitCount() {
+    return cacheHitCount;
+  }
+
+  public int getCacheMissCount() {
+    return cacheMissCount;
+  }
+
+  public void recordCacheHit() {
+    cacheHitCount++;
+  }
+
+  public void recordCacheMiss() {
+    cacheMissCount++;
+  }
+
+  /**
+   * Adds to the numbers of URLs resolved from the result cache and fetched.
+   *
+   * @param hits The number resolved from the cache.
+   * @param misses The number fetched.
+   */
+  public void recordCacheLookups(int hits, int misses) {
+    cacheHitCount += hits;
+    cacheMissCount += misses;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public void setComplete() {
+    complete = true;
+  }
+  
   public BatchOperation getParent() {
     return parentOp.getValue();
   }
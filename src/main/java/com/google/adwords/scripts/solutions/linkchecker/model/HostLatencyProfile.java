@@ -0,0 +1,74 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.model;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Holds the most recent latencies observed for a host, so that timeouts learned by one batch can be
+ * applied from the start of the next, and by other instances.
+ */
+@Cache
+@Entity
+public class HostLatencyProfile {
+  @Id private String host;
+  // The times, in milliseconds, taken to connect to the host.
+  private List<Integer> connectMillis = new ArrayList<>();
+  // The times, in milliseconds, from connecting to the host to the response headers arriving.
+  private List<Integer> responseMillis = new ArrayList<>();
+
+  // Updated is indexed, to allow profiles for hosts that have not been checked for some time to be
+  // removed.
+  @Index private Date updated;
+
+  public HostLatencyProfile() {}
+
+  /**
+   * Creates a profile for a host.
+   *
+   * @param host The host, in lower case.
+   * @param connectMillis The times taken to connect to the host, oldest first.
+   * @param responseMillis The times taken for the host to respond once connected, oldest first.
+   */
+  public HostLatencyProfile(
+      String host, List<Integer> connectMillis, List<Integer> responseMillis) {
+    this.host = host;
+    this.connectMillis = connectMillis;
+    this.responseMillis = responseMillis;
+    this.updated = new Date();
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public List<Integer> getConnectMillis() {
+    return connectMillis;
+  }
+
+  public List<Integer> getResponseMillis() {
+    return responseMillis;
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+}
@@ -27,10 +27,93 @@ import com.googlecode.objectify.annotation.Id;
 public class Settings {
   public static final int DEFAULT_CHECKS_PER_MINUTE = 60;
   public static final String DEFAULT_USER_AGENT = "GAE Link Checker";
+  public static final int DEFAULT_MAX_CONCURRENT_CHECKS = 1;
+  // By default, the whole of each page is searched for failure texts.
+  public static final int DEFAULT_MAX_BODY_KILOBYTES = 0;
+  // By default, results are not cached between batches.
+  public static final int DEFAULT_RESULT_CACHE_TTL_MINUTES = 0;
+  public static final int DEFAULT_RESULT_CACHE_MAX_ENTRIES = 10000;
+  public static final int DEFAULT_MAX_CONCURRENT_CHECKS_PER_HOST = 2;
+  public static final int DEFAULT_MAX_CHECKS_PER_HOST_PER_MINUTE = 60;
+  public static final int DEFAULT_DNS_CACHE_TTL_SECONDS = 300;
+  public static final int DEFAULT_DNS_NEGATIVE_CACHE_TTL_SECONDS = 30;
+  public static final int DEFAULT_CHECK_DEADLINE_SECONDS = 60;
+  // By default, the circuit breaker is disabled.
+  public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 0;
+  public static final int DEFAULT_CIRCUIT_BREAKER_COOLDOWN_SECONDS = 30;
+  // By default, failed checks are not retried.
+  public static final int DEFAULT_MAX_RETRIES = 0;
+  public static final int DEFAULT_RETRY_BASE_DELAY_MILLIS = 1000;
+  // By default, progress is only saved once a task finishes or stops early.
+  public static final int DEFAULT_CHECKPOINT_INTERVAL_URLS = 0;
+  public static final int DEFAULT_CHECKPOINT_INTERVAL_SECONDS = 0;
+  // By default, batches are divided into sub operations of a fixed number of URLs.
+  public static final int DEFAULT_TARGET_TASK_DURATION_SECONDS = 0;
 
   @Id private String id;
   private Integer rateInChecksPerMinute;
   private String userAgentString;
+  // The number of checks a single task may have in flight at once. Settings saved before this
+  // property existed will not have a value, in which case the default is used.
+  private Integer maxConcurrentChecks;
+  // The number of kilobytes of each page to search for failure texts, or 0 for no limit. This can
+  // be overridden for individual batches.
+  private Integer maxBodyKilobytes;
+  // The time in seconds after which a check is abandoned, however far it has got, or 0 for no
+  // deadline other than the connect and read timeouts. This can be overridden for individual
+  // batches.
+  private Integer checkDeadlineSeconds;
+  // How long the result of checking a URL may be reused by later batches, or 0 to always check.
+  private Integer resultCacheTtlMinutes;
+  // The number of results each instance holds, with the least recently used discarded first.
+  private Integer resultCacheMaxEntries;
+  // Whether results are also shared between instances via memcache.
+  private Boolean resultCacheSharedViaMemcache;
+  // Whether pages searched for failure texts are only downloaded again if they have changed, as
+  // indicated by their ETag or Last-Modified headers. Defaults to true.
+  private Boolean conditionalRequestsEnabled;
+  // Limits applied to each host across all tasks on an instance, so that sites with many URLs are
+  // not overloaded.
+  private Integer maxConcurrentChecksPerHost;
+  private Integer maxChecksPerHostPerMinute;
+  // Whether the URLs in a batch are kept together by registrable domain (e.g. example.co.uk) when
+  // divided between tasks, rather than by host (e.g. www.example.co.uk). Defaults to false.
+  private Boolean partitionByRegistrableDomain;
+  // Whether host names are resolved and cached before URLs are fetched, so that URLs for hosts that
+  // do not resolve fail without a fetch. Defaults to false.
+  private Boolean dnsCacheEnabled;
+  private Integer dnsCacheTtlSeconds;
+  private Integer dnsNegativeCacheTtlSeconds;
+  // Whether the connect and read timeouts for each host are derived from the latencies observed
+  // for it, rather than being fixed. Defaults to false.
+  private Boolean adaptiveTimeoutsEnabled;
+  // The number of consecutive checks for a host that must fail without a response before its
+  // remaining URLs fail without being checked, or 0 to always check. After the cool-down, a single
+  // check is made to find out whether the host is back up.
+  private Integer circuitBreakerFailureThreshold;
+  private Integer circuitBreakerCooldownSeconds;
+  // The number of times a check that fails transiently, such as with a timeout or a 503 response,
+  // is retried once the other URLs in the task have been checked, and the delay before the first
+  // retry, which doubles for each retry after.
+  private Integer maxRetries;
+  private Integer retryBaseDelayMillis;
+  // Whether the rate in checks per minute applies to all tasks on an instance together, rather than
+  // to each task, so that it is the actual rate of fetches however many tasks are running. Defaults
+  // to false.
+  private Boolean globalRateLimitEnabled;
+  // Whether the global rate also applies across all instances, by counting checks via memcache.
+  private Boolean globalRateLimitSharedViaMemcache;
+  // Whether, in batches created while this is set, tasks that finish their own URLs early go on to
+  // check those that other tasks of the batch have not yet started. Defaults to false.
+  private Boolean workStealingEnabled;
+  // The number of URLs checked, and the time in seconds, after which a task saves its progress so
+  // far, whichever comes first. Either may be 0, for no limit.
+  private Integer checkpointIntervalUrls;
+  private Integer checkpointIntervalSeconds;
+  // The time in seconds each task of a batch should take, from which the number of URLs in each
+  // sub operation is estimated using the latencies observed for the hosts, or 0 to divide batches
+  // into sub operations of a fixed number of URLs.
+  private Integer targetTaskDurationSeconds;
 
   public Settings() {
     this.id = "settings";
@@ -50,6 +133,122 @@ public class Settings {
     return userAgentString;
   }
 
+  public int getMaxConcurrentChecks() {
+    return maxConcurrentChecks != null ? maxConcurrentChecks : DEFAULT_MAX_CONCURRENT_CHECKS;
+  }
+
+  public int getMaxBodyKilobytes() {
+    return maxBodyKilobytes != null ? maxBodyKilobytes : DEFAULT_MAX_BODY_KILOBYTES;
+  }
+
+  public int getCheckDeadlineSeconds() {
+    return checkDeadlineSeconds != null ? checkDeadlineSeconds : DEFAULT_CHECK_DEADLINE_SECONDS;
+  }
+
+  public int getResultCacheTtlMinutes() {
+    return resultCacheTtlMinutes != null
+        ? resultCacheTtlMinutes
+        : DEFAULT_RESULT_CACHE_TTL_MINUTES;
+  }
+
+  public int getResultCacheMaxEntries() {
+    return resultCacheMaxEntries != null
+        ? resultCacheMaxEntries
+        : DEFAULT_RESULT_CACHE_MAX_ENTRIES;
+  }
+
+  public boolean isResultCacheSharedViaMemcache() {
+    return resultCacheSharedViaMemcache != null && resultCacheSharedViaMemcache;
+  }
+
+  public boolean isConditionalRequestsEnabled() {
+    return conditionalRequestsEnabled == null || conditionalRequestsEnabled;
+  }
+
+  public int getMaxConcurrentChecksPerHost() {
+    return maxConcurrentChecksPerHost != null
+        ? maxConcurrentChecksPerHost
+        : DEFAULT_MAX_CONCURRENT_CHECKS_PER_HOST;
+  }
+
+  public int getMaxChecksPerHostPerMinute() {
+    return maxChecksPerHostPerMinute != null
+        ? maxChecksPerHostPerMinute
+        : DEFAULT_MAX_CHECKS_PER_HOST_PER_MINUTE;
+  }
+
+  public boolean isPartitionByRegistrableDomain() {
+    return partitionByRegistrableDomain != null && partitionByRegistrableDomain;
+  }
+
+  public boolean isDnsCacheEnabled() {
+    return dnsCacheEnabled != null && dnsCacheEnabled;
+  }
+
+  public boolean isAdaptiveTimeoutsEnabled() {
+    return adaptiveTimeoutsEnabled != null && adaptiveTimeoutsEnabled;
+  }
+
+  public int getCircuitBreakerFailureThreshold() {
+    return circuitBreakerFailureThreshold != null
+        ? circuitBreakerFailureThreshold
+        : DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+  }
+
+  public int getCircuitBreakerCooldownSeconds() {
+    return circuitBreakerCooldownSeconds != null
+        ? circuitBreakerCooldownSeconds
+        : DEFAULT_CIRCUIT_BREAKER_COOLDOWN_SECONDS;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries != null ? maxRetries : DEFAULT_MAX_RETRIES;
+  }
+
+  public int getRetryBaseDelayMillis() {
+    return retryBaseDelayMillis != null ? retryBaseDelayMillis : DEFAULT_RETRY_BASE_DELAY_MILLIS;
+  }
+
+  public int getDnsCacheTtlSeconds() {
+    return dnsCacheTtlSeconds != null ? dnsCacheTtlSeconds : DEFAULT_DNS_CACHE_TTL_SECONDS;
+  }
+
+  public int getDnsNegativeCacheTtlSeconds() {
+    return dnsNegativeCacheTtlSeconds != null
+        ? dnsNegativeCacheTtlSeconds
+        : DEFAULT_DNS_NEGATIVE_CACHE_TTL_SECONDS;
+  }
+
+  public boolean isGlobalRateLimitEnabled() {
+    return globalRateLimitEnabled != null && globalRateLimitEnabled;
+  }
+
+  public boolean isGlobalRateLimitSharedViaMemcache() {
+    return globalRateLimitSharedViaMemcache != null && globalRateLimitSharedViaMemcache;
+  }
+
+  public boolean isWorkStealingEnabled() {
+    return workStealingEnabled != null && workStealingEnabled;
+  }
+
+  public int getCheckpointIntervalUrls() {
+    return checkpointIntervalUrls != null
+        ? checkpointIntervalUrls
+        : DEFAULT_CHECKPOINT_INTERVAL_URLS;
+  }
+
+  public int getCheckpointIntervalSeconds() {
+    return checkpointIntervalSeconds != null
+        ? checkpointIntervalSeconds
+        : DEFAULT_CHECKPOINT_INTERVAL_SECONDS;
+  }
+
+  public int getTargetTaskDurationSeconds() {
+    return targetTaskDurationSeconds != null
+        ? targetTaskDurationSeconds
+        : DEFAULT_TARGET_TASK_DURATION_SECONDS;
+  }
+
   public static Settings createDefaultSettings() {
     return new Settings(DEFAULT_CHECKS_PER_MINUTE, DEFAULT_USER_AGENT);
   }
@@ -0,0 +1,145 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.model;
+
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the validators, {@code ETag} and {@code Last-Modified}, last returned for a page, together
+ * with the outcome of searching that page for failure texts. A later check can then ask the server
+ * whether the page has changed, and reuse the outcome if it has not, without downloading the page.
+ *
+ * <p>Entities are keyed by {@code UrlResultKey}, so that an outcome is only reused for the same
+ * failure texts.
+ */
+@Cache
+@Entity
+public class UrlValidators {
+  // Unchanged validators are saved again at most this often, so that those still in use are not
+  // removed along with those that have not been updated for some time.
+  private static final long REFRESH_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  @Id private String id;
+  private String url;
+  private String etag;
+  private String lastModified;
+
+  private UrlCheckStatus.Status status;
+  private int httpStatusCode;
+  private String message;
+  private boolean truncated;
+  private boolean contentSkipped;
+
+  // Updated is indexed, to allow validators that have not changed for some time to be removed.
+  @Index private Date updated;
+
+  public UrlValidators() {}
+
+  /**
+   * Creates validators for a page, from a completed check.
+   *
+   * @param id The {@code UrlResultKey} for the URL and check options.
+   * @param etag The {@code ETag} header returned with the page, or {@code null}.
+   * @param lastModified The {@code Last-Modified} header returned with the page, or {@code null}.
+   * @param urlCheckStatus The outcome of the check.
+   */
+  public UrlValidators(
+      String id, String etag, String lastModified, UrlCheckStatus urlCheckStatus) {
+    this.id = id;
+    this.url = urlCheckStatus.getUrl();
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.status = urlCheckStatus.getStatus();
+    this.httpStatusCode = urlCheckStatus.getHttpStatusCode();
+    this.message = urlCheckStatus.getMessage();
+    this.truncated = urlCheckStatus.isTruncated();
+    this.contentSkipped = urlCheckStatus.isContentSkipped();
+    this.updated = new Date();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+
+  /**
+   * Applies the stored outcome to a check of the same page, where the server has confirmed that
+   * the page has not changed.
+   *
+   * @param urlCheckStatus The status to update.
+   */
+  public void applyTo(UrlCheckStatus urlCheckStatus) {
+    urlCheckStatus.setStatus(status, httpStatusCode, message);
+    urlCheckStatus.setTruncated(truncated);
+    urlCheckStatus.setContentSkipped(contentSkipped);
+  }
+
+  /**
+   * Determines whether these validators, though unchanged, are due to be saved again, so that they
+   * are not removed as unused.
+   *
+   * @return {@code true} if the validators were last updated more than a day ago.
+   */
+  public boolean isDueForRefresh() {
+    return updated == null || System.currentTimeMillis() - updated.getTime() >= REFRESH_MILLIS;
+  }
+
+  /** Marks the validators as updated now, ahead of saving them again. */
+  public void refresh() {
+    updated = new Date();
+  }
+
+  /**
+   * Determines whether these validators and outcome are the same as another's, in which case there
+   * is no need to store the newer of the two.
+   *
+   * @param other The validators to compare with.
+   * @return {@code true} if the two are the same, other than when they were created.
+   */
+  public boolean isSameAs(UrlValidators other) {
+    return other != null
+        && Objects.equals(id, other.id)
+        && Objects.equals(etag, other.etag)
+        && Objects.equals(lastModified, other.lastModified)
+        && status == other.status
+        && httpStatusCode == other.httpStatusCode
+        && Objects.equals(message, other.message)
+        && truncated == other.truncated
+        && contentSkipped == other.contentSkipped;
+  }
+}
@@ -24,6 +24,26 @@ public class UrlCheckRequest {
   // Optional Strings which can be checked for in the body of the web page
   // and if found will indicate a failure. For example, could be "Out of Stock".
   List<String> failureMatchTexts;
+  // Optional regular expressions which, if found in the body of the web page, indicate a failure.
+  List<String> failureMatchPatterns;
+  // Optionally match the failure texts and patterns regardless of case.
+  Boolean failureMatchCaseInsensitive;
+  // Optional limit on how much of each page, in kilobytes, is searched for the failure texts. Where
+  // omitted, the limit from the settings applies.
+  Integer maxBodyKilobytes;
+  // Optional time in seconds after which each check is abandoned, however far it has got. Where
+  // omitted, the deadline from the settings applies.
+  Integer checkDeadlineSeconds;
+  // Optional content types, e.g. "text/*", of the pages to search for the failure texts. Pages of
+  // other types are judged by status code alone. Where omitted, text, XML, JSON and JavaScript
+  // pages are searched.
+  List<String> searchedContentTypes;
+  // Optionally sort the query parameters of each URL by name, so that URLs differing only in the
+  // order of their parameters are checked once.
+  Boolean sortQueryParameters;
+  // Optional names of query parameters, e.g. "gclid" or "utm_*", to remove from each URL before
+  // it is checked.
+  List<String> strippedQueryParameters;
   
   public UrlCheckRequest() {};
   
@@ -35,6 +55,24 @@ public class UrlCheckRequest {
     this.urls = urls;
     this.failureMatchTexts = failureMatchTexts;
   }
+
+  public UrlCheckRequest(
+      List<String> urls, List<String> failureMatchTexts, Integer maxBodyKilobytes) {
+    this(urls, failureMatchTexts);
+    this.maxBodyKilobytes = maxBodyKilobytes;
+  }
+
+  public UrlCheckRequest(List<String> urls, List<String> failureMatchTexts,
+      Integer maxBodyKilobytes, Integer checkDeadlineSeconds) {
+    this(urls, failureMatchTexts, maxBodyKilobytes);
+    this.checkDeadlineSeconds = checkDeadlineSeconds;
+  }
+
+  public UrlCheckRequest(List<String> urls, List<String> failureMatchTexts,
+      Integer maxBodyKilobytes, Integer checkDeadlineSeconds, List<String> searchedContentTypes) {
+    this(urls, failureMatchTexts, maxBodyKilobytes, checkDeadlineSeconds);
+    this.searchedContentTypes = searchedContentTypes;
+  }
   
   public List<String> getUrls() {
     return urls;
@@ -44,7 +82,36 @@ public class UrlCheckRequest {
     return failureMatchTexts;
   }
   
+  public List<String> getFailureMatchPatterns() {
+    return failureMatchPatterns;
+  }
+  
+  public Boolean getFailureMatchCaseInsensitive() {
+    return failureMatchCaseInsensitive;
+  }
+  
+  public Integer getMaxBodyKilobytes() {
+    return maxBodyKilobytes;
+  }
+  
+  public Integer getCheckDeadlineSeconds() {
+    return checkDeadlineSeconds;
+  }
+  
+  public List<String> getSearchedContentTypes() {
+    return searchedContentTypes;
+  }
+  
+  public Boolean getSortQueryParameters() {
+    return sortQueryParameters;
+  }
+  
+  public List<String> getStrippedQueryParameters() {
+    return strippedQueryParameters;
+  }
+  
   public boolean hasFailureMatchText() {
-    return failureMatchTexts != null && failureMatchTexts.size() > 0;
+    return (failureMatchTexts != null && failureMatchTexts.size() > 0)
+        || (failureMatchPatterns != null && failureMatchPatterns.size() > 0);
   }
 }
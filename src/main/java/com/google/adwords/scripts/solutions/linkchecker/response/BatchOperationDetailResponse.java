@@ -32,6 +32,16 @@ public class BatchOperationDetailResponse {
   private final String batchId;
   
   private final int checkedUrlCount;
+  // The number of URLs whose pages were longer than the limit, and so were only partly searched.
+  private final int truncatedUrlCount;
+  // The number of URLs whose pages were not searched, as their content type is not searched.
+  private final int contentSkippedUrlCount;
+  // The number of URLs resolved from the result cache, and the number that had to be fetched.
+  private final int cacheHitCount;
+  private final int cacheMissCount;
+  // The number of bytes of page content transferred, which may be compressed, and once decoded.
+  private final long transferredBytes;
+  private final long decodedBytes;
   
   private BatchOperationDetailResponse(BatchOperation op) {
     errors = new ArrayList<>(); 
@@ -39,19 +49,47 @@ public class BatchOperationDetailResponse {
     batchId = op.getBatchId();
     
     int count = 0;
+    int truncatedCount = 0;
+    int contentSkippedCount = 0;
+    int hitCount = 0;
+    int missCount = 0;
+    long transferred = 0;
+    long decoded = 0;
     if (status == BatchOperationStatus.COMPLETE) {
       List<BatchSubOperation> subOps = op.getSubOperations();
       for (BatchSubOperation subOp : subOps) {
         List<UrlCheckStatus> urlResults = subOp.getUrlStatuses();
         for (UrlCheckStatus urlResult : urlResults) {
+          // Each URL was checked in its canonical form, but is reported in each form submitted.
+          List<String> originalUrls = urlResult.getOriginalUrls();
           if (urlResult.getStatus() == UrlCheckStatus.Status.FAILURE) {
-            errors.add(urlResult);
+            for (String originalUrl : originalUrls) {
+              errors.add(originalUrl.equals(urlResult.getUrl())
+                  ? urlResult
+                  : urlResult.copyWithUrl(originalUrl));
+            }
+          }
+          count += originalUrls.size();
+          transferred += urlResult.getTransferredBytes();
+          decoded += urlResult.getDecodedBytes();
+          if (urlResult.isTruncated()) {
+            truncatedCount += originalUrls.size();
+          }
+          if (urlResult.isContentSkipped()) {
+            contentSkippedCount += originalUrls.size();
           }
         }
-        count += urlResults.size();
+        hitCount += subOp.getCacheHitCount();
+        missCount += subOp.getCacheMissCount();
       }
     }
     checkedUrlCount = count;
+    truncatedUrlCount = truncatedCount;
+    contentSkippedUrlCount = contentSkippedCount;
+    cacheHitCount = hitCount;
+    cacheMissCount = missCount;
+    transferredBytes = transferred;
+    decodedBytes = decoded;
   }
   
   /**
@@ -80,4 +118,28 @@ public class BatchOperationDetailResponse {
   public int getCheckedUrlCount() {
     return checkedUrlCount;
   }
+  
+  public int getTruncatedUrlCount() {
+    return truncatedUrlCount;
+  }
+  
+  public int getContentSkippedUrlCount() {
+    return contentSkippedUrlCount;
+  }
+  
+  public int getCacheHitCount() {
+    return cacheHitCount;
+  }
+  
+  public int getCacheMissCount() {
+    return cacheMissCount;
+  }
+  
+  public long getTransferredBytes() {
+    return transferredBytes;
+  }
+  
+  public long getDecodedBytes() {
+    return decodedBytes;
+  }
 }
@@ -17,14 +17,19 @@ package com.google.adwords.scripts.solutions.linkchecker.service;
 import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchOperation;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
 import com.google.adwords.scripts.solutions.linkchecker.request.UrlCheckRequest;
 import com.google.adwords.scripts.solutions.linkchecker.response.BatchOperationDetailResponse;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.ContentTypeFilter;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.FailureTextMatcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCanonicalizer;
 import com.google.inject.Inject;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Provides the means for creating and manipulating "batches" of URLs to check the status of.
@@ -33,14 +38,20 @@ public class BatchOperationService {
   // Limit the number of URLs to be processed in one unit. This is to limit the size of the request
   // and response from the service. Large lists of URLs should be submitted as multiple operations.
   public static final int MAX_BATCH_URLS = 15000;
+  // The number of URLs in each sub operation, where sub operations are not sized by the time to
+  // check them.
+  public static final int DEFAULT_SUB_OPERATION_URLS = 100;
 
   private final Datastore datastore;
   private final TaskService taskService;
+  private final SettingsService settingsService;
 
   @Inject
-  public BatchOperationService(Datastore datastore, TaskService taskService) {
+  public BatchOperationService(
+      Datastore datastore, TaskService taskService, SettingsService settingsService) {
     this.datastore = datastore;
     this.taskService = taskService;
+    this.settingsService = settingsService;
   }
 
   /**
@@ -54,16 +65,50 @@ public class BatchOperationService {
    */
   public String createNewBatchOperation(String accountId, UrlCheckRequest request)
       throws InterruptedException {
-    // Deduplicate the list of URLs
-    List<String> dedupedUrls = Lists.newArrayList(Sets.newHashSet(request.getUrls()));
-    if (dedupedUrls.size() > MAX_BATCH_URLS) {
+    // Canonicalize and deduplicate the list of URLs, and divide them between sub operations such
+    // that the URLs for each host are kept together. The submitted URLs are kept with each
+    // canonical URL, so that results are reported as submitted.
+    UrlCanonicalizer canonicalizer = new UrlCanonicalizer(
+        Boolean.TRUE.equals(request.getSortQueryParameters()),
+        request.getStrippedQueryParameters());
+    Map<String, List<String>> originalUrls = canonicalizer.canonicalize(request.getUrls());
+    if (originalUrls.size() > MAX_BATCH_URLS) {
       throw new IllegalArgumentException("Too many URLs supplied");
     }
+    // Reject patterns and content types that cannot be parsed before any work is done, rather
+    // than failing every task later.
+    FailureTextMatcher.compile(request.getFailureMatchTexts(),
+        Boolean.TRUE.equals(request.getFailureMatchCaseInsensitive()),
+        request.getFailureMatchPatterns());
+    ContentTypeFilter.of(request.getSearchedContentTypes());
+    Settings settings = settingsService.getSettings();
+    SubOperationPartitioner partitioner =
+        new SubOperationPartitioner(settings.isPartitionByRegistrableDomain());
+    List<List<String>> partitions;
+    if (settings.getTargetTaskDurationSeconds() > 0) {
+      // Sub operations are sized so that each task takes about the target time, from the latencies
+      // last saved for the hosts, so that slow hosts are spread over more tasks than fast ones.
+      Set<String> hosts = new LinkedHashSet<>();
+      for (String url : originalUrls.keySet()) {
+        String host = HostSchedulerService.getHost(url);
+        if (!host.isEmpty()) {
+          hosts.add(host);
+        }
+      }
+      TaskDurationEstimator estimator =
+          new TaskDurationEstimator(settings, datastore.loadHostLatencyProfiles(hosts));
+      partitions = partitioner.partition(originalUrls.keySet(), BatchSubOperation.MAX_URLS,
+          estimator, settings.getTargetTaskDurationSeconds());
+    } else {
+      partitions = partitioner.partition(originalUrls.keySet(), DEFAULT_SUB_OPERATION_URLS);
+    }
+    partitions = limitUrlBytes(partitions, originalUrls);
 
-    BatchOperation operation = new BatchOperation(accountId, request.getFailureMatchTexts());
+    BatchOperation operation = BatchOperation.fromRequest(accountId, request);
+    operation.setWorkStealingEnabled(settings.isWorkStealingEnabled());
     List<BatchSubOperation> subOperations = new ArrayList<>();
-    for (List<String> urls : Lists.partition(dedupedUrls, BatchSubOperation.MAX_URLS)) {
-      BatchSubOperation subOp = new BatchSubOperation(operation, urls);
+    for (List<String> urls : partitions) {
+      BatchSubOperation subOp = new BatchSubOperation(operation, urls, originalUrls);
       subOperations.add(subOp);
     }
     operation.addSubOperations(subOperations);
@@ -77,6 +122,31 @@ public class BatchOperationService {
     return operation.getBatchId();
   }
 
+  /**
+   * Splits any list of URLs that would make too large a {@code BatchSubOperation}, which only
+   * happens where the URLs are unusually long.
+   */
+  private static List<List<String>> limitUrlBytes(
+      List<List<String>> partitions, Map<String, List<String>> originalUrls) {
+    List<List<String>> limited = new ArrayList<>(partitions.size());
+    for (List<String> partition : partitions) {
+      List<String> part = new ArrayList<>();
+      long partBytes = 0;
+      for (String url : partition) {
+        int urlBytes = BatchSubOperation.getUrlBytes(url, originalUrls.get(url));
+        if (!part.isEmpty() && partBytes + urlBytes > BatchSubOperation.MAX_URL_BYTES) {
+          limited.add(part);
+          part = new ArrayList<>();
+          partBytes = 0;
+        }
+        part.add(url);
+        partBytes += urlBytes;
+      }
+      limited.add(part);
+    }
+    return limited;
+  }
+
   /**
    * Retrieves details of a {@code BatchOperation} state.
    *
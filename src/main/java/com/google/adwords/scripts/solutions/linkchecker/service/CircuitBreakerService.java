@@ -0,0 +1,209 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops checking hosts that appear to be down. Once a number of consecutive checks for a host have
+ * failed without a response, the circuit for the host opens, and its remaining URLs fail at once
+ * rather than each waiting for a timeout. After a cool-down, a single probe check is allowed
+ * through: If it gets a response the circuit closes again, otherwise it stays open for another
+ * cool-down.
+ *
+ * <p>The state of each host is shared by all tasks running on the instance.
+ */
+public class CircuitBreakerService {
+  /** Whether a check for a host may go ahead. */
+  public enum State {
+    /** The host is healthy, or the circuit breaker is disabled: The check may go ahead. */
+    CLOSED,
+    /** The host is down: The check should fail without being made. */
+    OPEN,
+    /** The cool-down has passed: The check may go ahead, as a probe of whether the host is up. */
+    HALF_OPEN,
+    /** A probe of the host is in flight: The check should wait for its outcome. */
+    PROBING
+  }
+
+  /** Returned by {@link #recordStart(String)} where the check may not start. */
+  public static final long REFUSED = -1;
+  /** Returned by {@link #recordStart(String)} where the check may start, but is not the probe. */
+  public static final long NOT_PROBE = 0;
+
+  // Probes are numbered across all hosts, so that a probe is told apart from any other check, even
+  // of a host whose circuit has since been evicted and created afresh.
+  private final AtomicLong lastProbe = new AtomicLong();
+  private final Ticker ticker;
+  private final LoadingCache<String, HostCircuit> hosts =
+      CacheBuilder.newBuilder()
+          .expireAfterAccess(Duration.ofHours(1))
+          .build(
+              new CacheLoader<String, HostCircuit>() {
+                @Override
+                public HostCircuit load(String host) {
+                  return new HostCircuit();
+                }
+              });
+
+  private volatile int failureThreshold = Settings.DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+  private volatile long cooldownNanos =
+      TimeUnit.SECONDS.toNanos(Settings.DEFAULT_CIRCUIT_BREAKER_COOLDOWN_SECONDS);
+
+  public CircuitBreakerService() {
+    this(Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CircuitBreakerService(Ticker ticker) {
+    this.ticker = ticker;
+  }
+
+  /**
+   * Applies the threshold and cool-down from the current settings.
+   *
+   * @param settings The current settings.
+   */
+  public void configure(Settings settings) {
+    failureThreshold = Math.max(0, settings.getCircuitBreakerFailureThreshold());
+    cooldownNanos =
+        TimeUnit.SECONDS.toNanos(Math.max(0, settings.getCircuitBreakerCooldownSeconds()));
+  }
+
+  public boolean isEnabled() {
+    return failureThreshold > 0;
+  }
+
+  /**
+   * Gets whether a check for a host may go ahead. Where it may, {@link #recordStart(String)} must
+   * be called to start the check.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @return The state of the circuit for the host.
+   */
+  public State getState(String host) {
+    if (!isEnabled() || host.isEmpty()) {
+      return State.CLOSED;
+    }
+    HostCircuit circuit = hosts.getUnchecked(host);
+    synchronized (circuit) {
+      return getState(circuit);
+    }
+  }
+
+  /**
+   * Records that a check for a host is starting, which makes it the probe where the circuit for
+   * the host is half-open. Only one check can become the probe, however many saw the circuit as
+   * half-open. Where the check starts, {@link #recordResult(String, long, UrlCheckStatus)} or
+   * {@link #releaseProbe(String, long)} must be called with the returned value once it ends.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @return {@code REFUSED} if the check may not start, which is where the circuit has opened, or
+   *     another check has become the probe, since the state was got. Otherwise, the number that
+   *     identifies the check as the probe, or {@code NOT_PROBE}.
+   */
+  public long recordStart(String host) {
+    if (!isEnabled() || host.isEmpty()) {
+      return NOT_PROBE;
+    }
+    HostCircuit circuit = hosts.getUnchecked(host);
+    synchronized (circuit) {
+      State state = getState(circuit);
+      if (state == State.HALF_OPEN) {
+        circuit.probe = lastProbe.incrementAndGet();
+        return circuit.probe;
+      }
+      return state == State.CLOSED ? NOT_PROBE : REFUSED;
+    }
+  }
+
+  /**
+   * Records that a check for a host ended without an outcome, such as where it threw, so that
+   * where it was the probe, another check may become the probe in its place.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @param check The value returned by {@link #recordStart(String)} for the check.
+   */
+  public void releaseProbe(String host, long check) {
+    if (!isEnabled() || host.isEmpty() || check == NOT_PROBE) {
+      return;
+    }
+    HostCircuit circuit = hosts.getUnchecked(host);
+    synchronized (circuit) {
+      if (circuit.probe == check) {
+        circuit.probe = NOT_PROBE;
+      }
+    }
+  }
+
+  /**
+   * Records the outcome of a check. A check that failed without a response counts towards opening
+   * the circuit for the host, while any response from the host closes it. Only the outcome of the
+   * probe ends the probe: A check that started before the circuit opened may end during it.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @param check The value returned by {@link #recordStart(String)} for the check.
+   * @param urlCheckStatus The outcome of the check.
+   */
+  public void recordResult(String host, long check, UrlCheckStatus urlCheckStatus) {
+    if (!isEnabled() || host.isEmpty()) {
+      return;
+    }
+    HostCircuit circuit = hosts.getUnchecked(host);
+    synchronized (circuit) {
+      boolean isProbe = check != NOT_PROBE && circuit.probe == check;
+      if (urlCheckStatus.getHttpStatusCode() > 0) {
+        circuit.consecutiveFailures = 0;
+      } else {
+        circuit.consecutiveFailures++;
+        if (circuit.consecutiveFailures >= failureThreshold
+            && (isProbe || circuit.consecutiveFailures == failureThreshold)) {
+          // Opening, or failing a probe, starts a new cool-down.
+          circuit.openedNanos = ticker.read();
+        }
+      }
+      if (isProbe) {
+        circuit.probe = NOT_PROBE;
+      }
+    }
+  }
+
+  private State getState(HostCircuit circuit) {
+    if (circuit.consecutiveFailures < failureThreshold) {
+      return State.CLOSED;
+    }
+    if (circuit.probe != NOT_PROBE) {
+      return State.PROBING;
+    }
+    return ticker.read() - circuit.openedNanos >= cooldownNanos ? State.HALF_OPEN : State.OPEN;
+  }
+
+  /** The recent failures of a host. */
+  private static class HostCircuit {
+    int consecutiveFailures;
+    long openedNanos;
+    // The probe in flight, or NOT_PROBE.
+    long probe = NOT_PROBE;
+  }
+}
@@ -0,0 +1,32 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+/**
+ * A store of counters that may be shared between instances, used to coordinate limits that apply
+ * to the application as a whole.
+ */
+public interface CounterStore {
+  /**
+   * Adds to a counter, creating it with a value of zero first if it does not exist. Counters that
+   * are no longer used may be discarded.
+   *
+   * @param key The name of the counter.
+   * @param delta The amount to add.
+   * @return The new value of the counter, or zero if it is not available, so that callers are not
+   *     held up by a problem with the store.
+   */
+  long increment(String key, long delta);
+}
@@ -0,0 +1,172 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the resolution of host names across the tasks on an instance. The hosts for a task can be
+ * resolved together before any checks start, and URLs for hosts that do not resolve can then be
+ * failed without a fetch being attempted.
+ *
+ * <p>The JVM does not make the TTLs of DNS records available, so entries are held for the times
+ * given in the settings, with failed lookups held for a shorter time. Note that resolution by the
+ * JVM only precedes fetches that use the JVM's own sockets: When the URLFetch stream handler is
+ * used, as in the default configuration, names are also resolved by the URLFetch service.
+ */
+public class DnsCacheService {
+  private static final int MAX_ENTRIES = 10000;
+
+  /** Resolves a host name to its addresses. */
+  @VisibleForTesting
+  interface HostResolver {
+    InetAddress[] resolve(String host) throws UnknownHostException;
+  }
+
+  private final HostResolver resolver;
+  private final Cache<String, Entry> entries =
+      CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong negativeHitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  private volatile boolean enabled;
+  private volatile long ttlMillis;
+  private volatile long negativeTtlMillis;
+
+  public DnsCacheService() {
+    this(InetAddress::getAllByName);
+  }
+
+  @VisibleForTesting
+  DnsCacheService(HostResolver resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Applies the current settings to the cache.
+   *
+   * @param settings The current settings.
+   */
+  public void configure(Settings settings) {
+    enabled = settings.isDnsCacheEnabled();
+    ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, settings.getDnsCacheTtlSeconds()));
+    negativeTtlMillis =
+        TimeUnit.SECONDS.toMillis(Math.max(0, settings.getDnsNegativeCacheTtlSeconds()));
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Determines whether a host name resolves, using the cached result where there is one that has
+   * not expired.
+   *
+   * @param host The host name.
+   * @return {@code true} if the name resolves to at least one address.
+   */
+  public boolean isResolvable(String host) {
+    Entry entry = entries.getIfPresent(host);
+    if (entry != null && System.currentTimeMillis() < entry.expiresMillis) {
+      if (entry.resolvable) {
+        hitCount.incrementAndGet();
+      } else {
+        negativeHitCount.incrementAndGet();
+      }
+      return entry.resolvable;
+    }
+    missCount.incrementAndGet();
+    return resolve(host).resolvable;
+  }
+
+  /**
+   * Resolves a number of host names in parallel, so that they are cached before they are needed.
+   * Names with an unexpired entry are not resolved again.
+   *
+   * @param hosts The host names.
+   * @param executor The executor to resolve the names on.
+   * @throws InterruptedException If interrupted while waiting for the names to be resolved.
+   */
+  public void prewarm(Collection<String> hosts, ExecutorService executor)
+      throws InterruptedException {
+    List<Future<?>> lookups = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (final String host : hosts) {
+      Entry entry = entries.getIfPresent(host);
+      if (entry == null || now >= entry.expiresMillis) {
+        missCount.incrementAndGet();
+        lookups.add(executor.submit(() -> resolve(host)));
+      }
+    }
+    for (Future<?> lookup : lookups) {
+      try {
+        lookup.get();
+      } catch (ExecutionException e) {
+        // Resolution failures are cached as negative entries, so anything else is unexpected, and
+        // is left for the checks themselves to encounter.
+      }
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getNegativeHitCount() {
+    return negativeHitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  private Entry resolve(String host) {
+    Entry entry;
+    try {
+      boolean resolvable = resolver.resolve(host).length > 0;
+      entry = new Entry(resolvable, resolvable ? ttlMillis : negativeTtlMillis);
+    } catch (UnknownHostException e) {
+      entry = new Entry(false, negativeTtlMillis);
+    }
+    entries.put(host, entry);
+    return entry;
+  }
+
+  /** Whether a host name resolved, and until when that result may be used. */
+  private static class Entry {
+    final boolean resolvable;
+    final long expiresMillis;
+
+    Entry(boolean resolvable, long ttlMillis) {
+      this.resolvable = resolvable;
+      this.expiresMillis = System.currentTimeMillis() + ttlMillis;
+    }
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Learns how quickly each host connects and responds, and derives the connect and read timeouts
+ * for checks against it: A multiple of the 99th percentile of recent latencies, clamped between
+ * {@code MIN_TIMEOUT_MILLIS} and the default timeout. A fast host then fails quickly where it stops
+ * responding, rather than being given the same time as the slowest. Until enough latencies have
+ * been observed for a host, the default timeout applies. A check that times out is recorded as
+ * having taken at least the timeout, so that the timeouts for a host that slows down widen again,
+ * rather than every check failing at the old timeout.
+ *
+ * <p>The latencies are shared by all tasks running on the instance, and are saved as
+ * {@code HostLatencyProfile}s at the end of each task so that later batches start with them.
+ */
+public class HostLatencyService {
+  // The number of most recent latencies kept for each host.
+  static final int MAX_SAMPLES = 100;
+  // The number of latencies needed before the timeouts for a host are adapted.
+  static final int MIN_SAMPLES = 10;
+  static final int TIMEOUT_MULTIPLIER = 4;
+  static final int MIN_TIMEOUT_MILLIS = 1000;
+  private static final double PERCENTILE = 0.99;
+  private static final int MAX_HOSTS = 10000;
+
+  private final LoadingCache<String, HostLatency> hosts =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_HOSTS)
+          .expireAfterAccess(Duration.ofDays(1))
+          .build(
+              new CacheLoader<String, HostLatency>() {
+                @Override
+                public HostLatency load(String host) {
+                  return new HostLatency();
+                }
+              });
+
+  private volatile boolean enabled;
+
+  /**
+   * Applies the current settings.
+   *
+   * @param settings The current settings.
+   */
+  public void configure(Settings settings) {
+    enabled = settings.isAdaptiveTimeoutsEnabled();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the connect timeout for a host.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @param defaultMillis The timeout to use where too little is known about the host, which is also
+   *     the maximum timeout.
+   * @return The timeout in milliseconds.
+   */
+  public int getConnectTimeoutMillis(String host, int defaultMillis) {
+    HostLatency latency = enabled ? hosts.getIfPresent(host) : null;
+    return latency != null ? latency.connect.getTimeoutMillis(defaultMillis) : defaultMillis;
+  }
+
+  /**
+   * Gets the read timeout for a host.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @param defaultMillis The timeout to use where too little is known about the host, which is also
+   *     the maximum timeout.
+   * @return The timeout in milliseconds.
+   */
+  public int getReadTimeoutMillis(String host, int defaultMillis) {
+    HostLatency latency = enabled ? hosts.getIfPresent(host) : null;
+    return latency != null ? latency.response.getTimeoutMillis(defaultMillis) : defaultMillis;
+  }
+
+  /**
+   * Records the latencies of a check that made a new connection and received a response.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @param connectMillis The time taken to connect.
+   * @param responseMillis The time taken from connecting to the response headers arriving.
+   */
+  public void record(String host, long connectMillis, long responseMillis) {
+    recordConnect(host, connectMillis);
+    recordResponse(host, responseMillis);
+  }
+
+  /**
+   * Records the time taken to make a new connection to a host. A connection reused from the
+   * keep-alive cache says nothing of how long connecting takes, so is not recorded.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @param millis The time taken to connect, or the connect timeout where it timed out.
+   */
+  public void recordConnect(String host, long millis) {
+    if (!enabled || host.isEmpty()) {
+      return;
+    }
+    hosts.getUnchecked(host).connect.add(millis);
+  }
+
+  /**
+   * Records the time taken for a host to respond once connected.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @param millis The time taken from connecting to the response headers arriving, or the read
+   *     timeout where it timed out.
+   */
+  public void recordResponse(String host, long millis) {
+    if (!enabled || host.isEmpty()) {
+      return;
+    }
+    hosts.getUnchecked(host).response.add(millis);
+  }
+
+  /**
+   * Adds saved profiles for hosts that have not yet been seen by this instance. Hosts that have
+   * been seen already have more recent latencies than those saved.
+   *
+   * @param profiles The saved profiles.
+   */
+  public void warm(Collection<HostLatencyProfile> profiles) {
+    for (HostLatencyProfile profile : profiles) {
+      hosts.asMap().computeIfAbsent(profile.getHost(), host -> {
+        HostLatency latency = new HostLatency();
+        latency.connect.addAll(profile.getConnectMillis());
+        latency.response.addAll(profile.getResponseMillis());
+        return latency;
+      });
+    }
+  }
+
+  /**
+   * Gets the profiles to save for a number of hosts.
+   *
+   * @param hostNames The hosts.
+   * @return The profiles, for those hosts for which latencies have been recorded.
+   */
+  public List<HostLatencyProfile> getProfiles(Collection<String> hostNames) {
+    List<HostLatencyProfile> profiles = new ArrayList<>();
+    for (String host : hostNames) {
+      HostLatency latency = hosts.getIfPresent(host);
+      if (latency != null) {
+        profiles.add(
+            new HostLatencyProfile(host, latency.connect.toList(), latency.response.toList()));
+      }
+    }
+    return profiles;
+  }
+
+  /** The latencies observed for a host. */
+  private static class HostLatency {
+    final Samples connect = new Samples();
+    final Samples response = new Samples();
+  }
+
+  /** The most recent latencies of one kind, held in a ring buffer. */
+  private static class Samples {
+    private final int[] millis = new int[MAX_SAMPLES];
+    private int count;
+    private int next;
+
+    synchronized void add(long sample) {
+      millis[next] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, sample));
+      next = (next + 1) % MAX_SAMPLES;
+      count = Math.min(MAX_SAMPLES, count + 1);
+    }
+
+    synchronized void addAll(Collection<Integer> samples) {
+      for (Integer sample : samples) {
+        add(sample);
+      }
+    }
+
+    synchronized int getTimeoutMillis(int defaultMillis) {
+      if (count < MIN_SAMPLES) {
+        return defaultMillis;
+      }
+      int[] sorted = Arrays.copyOf(millis, count);
+      Arrays.sort(sorted);
+      long percentile = sorted[(int) Math.ceil(PERCENTILE * count) - 1];
+      long timeout = percentile * TIMEOUT_MULTIPLIER;
+      return (int) Math.max(MIN_TIMEOUT_MILLIS, Math.min(defaultMillis, timeout));
+    }
+
+    /** Gets the latencies, oldest first. */
+    synchronized List<Integer> toList() {
+      List<Integer> samples = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        samples.add(millis[(next - count + i + MAX_SAMPLES) % MAX_SAMPLES]);
+      }
+      return samples;
+    }
+  }
+}
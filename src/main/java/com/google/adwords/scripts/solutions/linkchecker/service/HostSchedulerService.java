@@ -0,0 +1,125 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Limits the number of checks in flight, and the rate at which checks are started, for each host.
+ * The limits are shared by all tasks running on the instance, so that many tasks checking URLs on
+ * the same site do not multiply the load on it, while checks for other hosts are not held up.
+ *
+ * <p>A check may only start once {@link #tryAcquire(String)} has returned zero for its host, and
+ * must then be followed by {@link #release(String)} once complete.
+ */
+public class HostSchedulerService {
+  // A host at its concurrency limit is retried after this time, as the slot will be released by a
+  // check that may belong to another task.
+  private static final long CONCURRENCY_RETRY_NANO_SECONDS = 50_000_000L;
+  private static final long ONE_MINUTE_NANO_SECONDS = 60_000_000_000L;
+
+  // The state for hosts that have not been seen for some time is discarded. No check is in flight
+  // for this long, so this only loses the time the host was last used, which has long passed.
+  private final LoadingCache<String, HostState> hosts =
+      CacheBuilder.newBuilder()
+          .expireAfterAccess(Duration.ofHours(1))
+          .build(
+              new CacheLoader<String, HostState>() {
+                @Override
+                public HostState load(String host) {
+                  return new HostState();
+                }
+              });
+
+  private volatile int maxConcurrentChecksPerHost = Settings.DEFAULT_MAX_CONCURRENT_CHECKS_PER_HOST;
+  private volatile long nanosPerCheck =
+      ONE_MINUTE_NANO_SECONDS / Settings.DEFAULT_MAX_CHECKS_PER_HOST_PER_MINUTE;
+
+  /**
+   * Applies the per-host limits from the current settings.
+   *
+   * @param settings The current settings.
+   */
+  public void configure(Settings settings) {
+    maxConcurrentChecksPerHost = Math.max(1, settings.getMaxConcurrentChecksPerHost());
+    nanosPerCheck = ONE_MINUTE_NANO_SECONDS / Math.max(1, settings.getMaxChecksPerHostPerMinute());
+  }
+
+  /**
+   * Attempts to start a check for a host.
+   *
+   * @param host The host, as returned by {@link #getHost(String)}.
+   * @return Zero if the check may start, in which case {@link #release(String)} must be called when
+   *     it completes, otherwise the time in nanoseconds after which to try again.
+   */
+  public long tryAcquire(String host) {
+    HostState state = hosts.getUnchecked(host);
+    synchronized (state) {
+      long now = System.nanoTime();
+      if (state.inFlight >= maxConcurrentChecksPerHost) {
+        return CONCURRENCY_RETRY_NANO_SECONDS;
+      }
+      if (state.started && now < state.nextStartNanos) {
+        return state.nextStartNanos - now;
+      }
+      state.inFlight++;
+      state.started = true;
+      state.nextStartNanos = now + nanosPerCheck;
+      return 0;
+    }
+  }
+
+  /**
+   * Marks a check for a host as complete, allowing another to start.
+   *
+   * @param host The host passed to the successful call to {@link #tryAcquire(String)}.
+   */
+  public void release(String host) {
+    HostState state = hosts.getUnchecked(host);
+    synchronized (state) {
+      state.inFlight = Math.max(0, state.inFlight - 1);
+    }
+  }
+
+  /**
+   * Gets the host that a URL is scheduled under.
+   *
+   * @param url The URL.
+   * @return The host in lower case, or an empty string where the URL cannot be parsed, so that
+   *     such URLs are scheduled together.
+   */
+  public static String getHost(String url) {
+    try {
+      return new URL(url).getHost().toLowerCase(Locale.ROOT);
+    } catch (MalformedURLException e) {
+      return "";
+    }
+  }
+
+  /** The checks in flight for a host, and when the next may start. */
+  private static class HostState {
+    int inFlight;
+    boolean started;
+    long nextStartNanos;
+  }
+}
@@ -22,8 +22,9 @@ import java.util.Date;
 import java.util.List;
 
 /**
- * Provides the means to periodically delete {@code BatchOperation}s over a given age, to avoid the
- * Datastore becoming clogged up.
+ * Provides the means to periodically delete {@code BatchOperation}s, and {@code UrlValidators} and
+ * {@code HostLatencyProfile}s that have not been updated, over a given age, to avoid the Datastore
+ * becoming clogged up.
  */
 public class JobsCleanupService {
   public static final int OLD_JOB_CUTOFF_DAYS = 30;
@@ -41,7 +42,8 @@ public class JobsCleanupService {
   }
 
   /**
-   * Deletes {@code BatchOperation}s that were created before then cutoff number of days ago.
+   * Deletes {@code BatchOperation}s that were created before then cutoff number of days ago, and
+   * {@code UrlValidators} and {@code HostLatencyProfile}s that have not been updated since then.
    */
   public void cleanup() {
     Calendar cal = Calendar.getInstance();
@@ -53,5 +55,7 @@ public class JobsCleanupService {
     for (BatchOperation oldOp : oldOps) {
       datastore.deleteBatchOperation(oldOp.getAccountId(), oldOp.getBatchId());
     }
+    datastore.deleteUrlValidatorsBefore(cutoffDate);
+    datastore.deleteHostLatencyProfilesBefore(cutoffDate);
   }
 }
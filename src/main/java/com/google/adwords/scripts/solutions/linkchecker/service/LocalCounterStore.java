@@ -0,0 +1,43 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code CounterStore} held in memory, so only shared by the users on the same instance. This
+ * stands in for the {@code MemcacheCounterStore} in tests and where only one instance is run.
+ */
+public class LocalCounterStore implements CounterStore {
+  private final LoadingCache<String, AtomicLong> counters =
+      CacheBuilder.newBuilder()
+          .expireAfterAccess(Duration.ofMinutes(10))
+          .build(
+              new CacheLoader<String, AtomicLong>() {
+                @Override
+                public AtomicLong load(String key) {
+                  return new AtomicLong();
+                }
+              });
+
+  @Override
+  public long increment(String key, long delta) {
+    return counters.getUnchecked(key).addAndGet(delta);
+  }
+}
@@ -0,0 +1,42 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.util.logging.Level;
+
+/**
+ * A {@code CounterStore} held in memcache, so shared by all instances. Increments are atomic, but
+ * counters may be evicted at any time, so they are only suitable for limits that are approximate.
+ */
+public class MemcacheCounterStore implements CounterStore {
+  private static final String MEMCACHE_NAMESPACE = "Counters";
+
+  private final MemcacheService memcache;
+
+  public MemcacheCounterStore() {
+    memcache = MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+    // Errors are logged, and leave the counter unavailable rather than failing the caller.
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.WARNING));
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    Long value = memcache.increment(key, delta, 0L);
+    return value != null ? value : 0;
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.inject.Inject;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which checks are started by all tasks running on the instance together, so
+ * that {@code Settings.getRateInChecksPerMinute()} is the actual rate of fetches however many tasks
+ * the queue runs at once. The limit is a token bucket: Tokens accrue at the configured rate, up to
+ * a second's worth, and each check takes one. Tokens not taken by a task that is waiting on slow
+ * checks, or that has finished, are free to be taken by the others.
+ *
+ * <p>Where enabled in the settings, the rate also applies across all instances. Checks are then
+ * also counted in the {@code CounterStore} in fixed windows of time, and a check that would exceed
+ * the window's share of the rate waits until the next window.
+ *
+ * <p>A check may only start once {@link #tryAcquire()} has returned zero. A token that is then not
+ * used should be handed back with {@link #refund()}.
+ */
+public class RateLimiterService {
+  private static final long ONE_MINUTE_NANO_SECONDS = 60_000_000_000L;
+  private static final long WINDOW_NANO_SECONDS = 10_000_000_000L;
+  private static final String WINDOW_KEY_PREFIX = "RateLimiterWindow:";
+  // Windows are counted by the time of day, so that they line up across instances, rather than by
+  // System.nanoTime(), which has an arbitrary origin on each instance.
+  private static final Ticker WALL_CLOCK = new Ticker() {
+    @Override
+    public long read() {
+      return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    }
+  };
+
+  private final CounterStore counterStore;
+  private final Ticker ticker;
+
+  // The state of the bucket, guarded by this.
+  private boolean enabled;
+  private boolean shared;
+  private double nanosPerCheck =
+      (double) ONE_MINUTE_NANO_SECONDS / Settings.DEFAULT_CHECKS_PER_MINUTE;
+  private double capacity = 1;
+  private double tokens = 1;
+  private long lastRefillNanos;
+  private long checksPerWindow = 1;
+
+  @Inject
+  public RateLimiterService(CounterStore counterStore) {
+    this(counterStore, WALL_CLOCK);
+  }
+
+  @VisibleForTesting
+  RateLimiterService(CounterStore counterStore, Ticker ticker) {
+    this.counterStore = counterStore;
+    this.ticker = ticker;
+    this.lastRefillNanos = ticker.read();
+  }
+
+  /**
+   * Applies the rate from the current settings. Tokens already in the bucket are kept, up to the
+   * new capacity.
+   *
+   * @param settings The current settings.
+   */
+  public synchronized void configure(Settings settings) {
+    refill();
+    int checksPerMinute = Math.max(1, settings.getRateInChecksPerMinute());
+    enabled = settings.isGlobalRateLimitEnabled();
+    shared = settings.isGlobalRateLimitSharedViaMemcache();
+    nanosPerCheck = (double) ONE_MINUTE_NANO_SECONDS / checksPerMinute;
+    capacity = Math.max(1, checksPerMinute / 60.0);
+    tokens = Math.min(tokens, capacity);
+    double checksPerNano = (double) checksPerMinute / ONE_MINUTE_NANO_SECONDS;
+    checksPerWindow = Math.max(1, (long) Math.ceil(checksPerNano * WINDOW_NANO_SECONDS));
+  }
+
+  public synchronized boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Attempts to take a token to start a check. This always succeeds where the limit is disabled.
+   *
+   * @return Zero if the check may start, otherwise the time in nanoseconds after which to try
+   *     again.
+   */
+  public long tryAcquire() {
+    long windowStart;
+    long limit;
+    synchronized (this) {
+      if (!enabled) {
+        return 0;
+      }
+      refill();
+      if (tokens < 1) {
+        return (long) Math.ceil((1 - tokens) * nanosPerCheck);
+      }
+      tokens--;
+      if (!shared) {
+        return 0;
+      }
+      windowStart = lastRefillNanos - Math.floorMod(lastRefillNanos, WINDOW_NANO_SECONDS);
+      limit = checksPerWindow;
+    }
+
+    // The count is made outside the lock, as it may involve a call to another service.
+    long count = counterStore.increment(WINDOW_KEY_PREFIX + windowStart / WINDOW_NANO_SECONDS, 1);
+    if (count <= limit) {
+      return 0;
+    }
+    // The other instances have used the window's share. The token is handed back, as this
+    // instance has not used it, and the check waits for the next window.
+    refund();
+    return Math.max(1, windowStart + WINDOW_NANO_SECONDS - ticker.read());
+  }
+
+  /** Hands back a token taken by {@link #tryAcquire()} that was not used to start a check. */
+  public synchronized void refund() {
+    tokens = Math.min(capacity, tokens + 1);
+  }
+
+  /** Adds the tokens accrued since the bucket was last refilled. */
+  private void refill() {
+    long now = ticker.read();
+    // The wall clock may be adjusted backwards, in which case no tokens are added.
+    if (now > lastRefillNanos) {
+      tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / nanosPerCheck);
+    }
+    lastRefillNanos = now;
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.common.net.InternetDomainName;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Divides the URLs in a batch into the lists for each {@code BatchSubOperation}, keeping the URLs
+ * for each host together where possible. This allows a single task to reuse connections to a host,
+ * and to pace its requests to it.
+ *
+ * <p>URLs are grouped by host, or optionally by registrable domain, such that www.example.com and
+ * shop.example.com are grouped together. Groups too large for one sub operation are split evenly
+ * between as few as possible. The groups are then packed into sub operations largest first, each
+ * going into the first with room, which keeps the number of sub operations close to the minimum.
+ *
+ * <p>Where a {@code TaskDurationEstimator} is given, the sub operations are also limited by the
+ * estimated time to check their URLs, both overall and for each host, as checks of the same host
+ * are paced separately. Groups are packed longest first, and the parts of a split group are never
+ * packed together, so that URLs for slow hosts are spread over more sub operations than those for
+ * fast hosts.
+ */
+public class SubOperationPartitioner {
+  private final boolean groupByRegistrableDomain;
+
+  /**
+   * Creates a new partitioner.
+   *
+   * @param groupByRegistrableDomain Whether to group URLs by registrable domain, rather than host.
+   */
+  public SubOperationPartitioner(boolean groupByRegistrableDomain) {
+    this.groupByRegistrableDomain = groupByRegistrableDomain;
+  }
+
+  /**
+   * Divides URLs into lists, removing any duplicates.
+   *
+   * @param urls The URLs to divide.
+   * @param maxUrlsPerPartition The maximum number of URLs in each list.
+   * @return The lists of URLs, in which each URL appears once.
+   */
+  public List<List<String>> partition(Collection<String> urls, int maxUrlsPerPartition) {
+    return partition(urls, maxUrlsPerPartition, null, 0);
+  }
+
+  /**
+   * Divides URLs into lists, removing any duplicates, such that checking each list is estimated to
+   * take no longer than a given time. A URL estimated to take longer is placed in a list by itself.
+   *
+   * @param urls The URLs to divide.
+   * @param maxUrlsPerPartition The maximum number of URLs in each list.
+   * @param estimator The estimator of the time to check each URL, or {@code null} to limit the
+   *     lists by the number of URLs alone.
+   * @param maxSecondsPerPartition The estimated time in seconds to check each list, which is
+   *     ignored where there is no estimator.
+   * @return The lists of URLs, in which each URL appears once.
+   */
+  public List<List<String>> partition(Collection<String> urls, int maxUrlsPerPartition,
+      TaskDurationEstimator estimator, double maxSecondsPerPartition) {
+    // Deduplicate, retaining the order in which URLs were submitted within each group.
+    Map<String, List<String>> groups = new LinkedHashMap<>();
+    for (String url : new LinkedHashSet<>(urls)) {
+      String key = getGroupKey(url);
+      List<String> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<>();
+        groups.put(key, group);
+      }
+      group.add(url);
+    }
+
+    List<Item> items = new ArrayList<>();
+    for (Map.Entry<String, List<String>> entry : groups.entrySet()) {
+      String groupKey = entry.getKey();
+      List<String> group = entry.getValue();
+      int numParts = (group.size() + maxUrlsPerPartition - 1) / maxUrlsPerPartition;
+      if (estimator != null) {
+        double maxSeconds = Math.max(0, maxSecondsPerPartition);
+        numParts = Math.max(numParts, getNumParts(group, estimator, maxSeconds));
+      }
+      for (List<String> part : split(group, numParts)) {
+        items.add(new Item(groupKey, part, estimator));
+      }
+    }
+    // The sort is stable, so groups of the same size remain in the order they were submitted.
+    items.sort(
+        Comparator.comparingDouble(Item::getSeconds)
+            .thenComparingInt(item -> item.urls.size())
+            .reversed());
+
+    List<Partition> partitions = new ArrayList<>();
+    for (Item item : items) {
+      Partition target = null;
+      for (Partition partition : partitions) {
+        if (partition.canAdd(item, maxUrlsPerPartition, estimator, maxSecondsPerPartition)) {
+          target = partition;
+          break;
+        }
+      }
+      if (target == null) {
+        target = new Partition();
+        partitions.add(target);
+      }
+      target.add(item);
+    }
+    List<List<String>> lists = new ArrayList<>(partitions.size());
+    for (Partition partition : partitions) {
+      lists.add(partition.urls);
+    }
+    return lists;
+  }
+
+  /**
+   * Gets the number of parts into which to split a group, so that each part is estimated to take
+   * no longer than the maximum time, both overall and for each of its hosts.
+   */
+  private static int getNumParts(
+      List<String> group, TaskDurationEstimator estimator, double maxSeconds) {
+    double seconds = 0;
+    Map<String, Double> secondsByHost = new HashMap<>();
+    for (String url : group) {
+      String host = HostSchedulerService.getHost(url);
+      seconds += estimator.getSecondsPerUrl(host);
+      secondsByHost.merge(host, estimator.getSecondsPerHostUrl(host), Double::sum);
+    }
+    for (double hostSeconds : secondsByHost.values()) {
+      seconds = Math.max(seconds, hostSeconds);
+    }
+    if (maxSeconds <= 0) {
+      return group.size();
+    }
+    return (int) Math.min(group.size(), Math.max(1, Math.ceil(seconds / maxSeconds)));
+  }
+
+  /** Splits a group into a number of parts, differing in size by at most one URL. */
+  private static List<List<String>> split(List<String> group, int numParts) {
+    List<List<String>> parts = new ArrayList<>(numParts);
+    int start = 0;
+    for (int i = 0; i < numParts; i++) {
+      int size = group.size() / numParts + (i < group.size() % numParts ? 1 : 0);
+      parts.add(group.subList(start, start + size));
+      start += size;
+    }
+    return parts;
+  }
+
+  private String getGroupKey(String url) {
+    String host = HostSchedulerService.getHost(url);
+    if (groupByRegistrableDomain) {
+      try {
+        InternetDomainName domain = InternetDomainName.from(host);
+        if (domain.isUnderPublicSuffix()) {
+          return domain.topPrivateDomain().toString();
+        }
+      } catch (IllegalArgumentException e) {
+        // Not a domain name, such as an IP address, so the host is used as is.
+      }
+    }
+    return host;
+  }
+
+  /**
+   * A group of URLs, or one of the parts into which it was split, and the estimated time in
+   * seconds to check them, both overall and for each of their hosts.
+   */
+  private static class Item {
+    final String groupKey;
+    final List<String> urls;
+    double seconds;
+    // The time taken by a host's URLs alone, as checks of the same host are limited separately.
+    double hostSeconds;
+
+    Item(String groupKey, List<String> urls, TaskDurationEstimator estimator) {
+      this.groupKey = groupKey;
+      this.urls = urls;
+      if (estimator != null) {
+        Map<String, Double> secondsByHost = new HashMap<>();
+        for (String url : urls) {
+          String host = HostSchedulerService.getHost(url);
+          seconds += estimator.getSecondsPerUrl(host);
+          hostSeconds = Math.max(hostSeconds,
+              secondsByHost.merge(host, estimator.getSecondsPerHostUrl(host), Double::sum));
+        }
+      }
+    }
+
+    /** Gets the estimated time to check the URLs, which is bounded by the slowest host. */
+    double getSeconds() {
+      return Math.max(seconds, hostSeconds);
+    }
+  }
+
+  /** The items packed into a list of URLs. */
+  private static class Partition {
+    final List<String> urls = new ArrayList<>();
+    final Set<String> groupKeys = new HashSet<>();
+    double seconds;
+    double hostSeconds;
+
+    /**
+     * Determines whether an item fits. The parts of a group were split so as to be checked by
+     * different tasks, so are never put back together. Groups have no hosts in common, so the
+     * time for each host is that of the item or partition it comes from.
+     */
+    boolean canAdd(Item item, int maxUrls, TaskDurationEstimator estimator, double maxSeconds) {
+      return !groupKeys.contains(item.groupKey)
+          && urls.size() + item.urls.size() <= maxUrls
+          && (estimator == null
+              || Math.max(seconds + item.seconds, Math.max(hostSeconds, item.hostSeconds))
+                  <= maxSeconds);
+    }
+
+    void add(Item item) {
+      urls.addAll(item.urls);
+      groupKeys.add(item.groupKey);
+      seconds += item.seconds;
+      hostSeconds = Math.max(hostSeconds, item.hostSeconds);
+    }
+  }
+}
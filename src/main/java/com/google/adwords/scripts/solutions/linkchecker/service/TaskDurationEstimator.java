@@ -0,0 +1,107 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates how long a task will take to check URLs, from the latencies saved in
+ * {@code HostLatencyProfile}s and the settings that limit the rate of checks, so that batches can
+ * be divided into sub operations that each take about the same time, rather than each having the
+ * same number of URLs.
+ *
+ * <p>Each URL is estimated to take the time to connect and receive the response headers, on
+ * average, from its host, or {@code DEFAULT_LATENCY_MILLIS} where nothing is known of the host.
+ * Checks of different hosts overlap, up to the number of checks a task has in flight, while those
+ * of the same host are also limited by the per-host settings. The rate in checks per minute is
+ * taken to apply to each task, so the estimate is optimistic where the global rate limit is
+ * enabled and several tasks run at once.
+ */
+public class TaskDurationEstimator {
+  // The latency assumed for hosts for which none has been observed.
+  static final int DEFAULT_LATENCY_MILLIS = 1000;
+  private static final double ONE_MINUTE_SECONDS = 60.0;
+
+  private final Map<String, Double> latencySecondsByHost = new HashMap<>();
+  private final double secondsPerCheck;
+  private final double secondsPerHostCheck;
+  private final int maxConcurrentChecks;
+  private final int maxConcurrentChecksPerHost;
+
+  /**
+   * Creates an estimator.
+   *
+   * @param settings The current settings.
+   * @param profiles The saved latencies for the hosts to be checked.
+   */
+  public TaskDurationEstimator(Settings settings, Collection<HostLatencyProfile> profiles) {
+    secondsPerCheck = ONE_MINUTE_SECONDS / Math.max(1, settings.getRateInChecksPerMinute());
+    secondsPerHostCheck =
+        ONE_MINUTE_SECONDS / Math.max(1, settings.getMaxChecksPerHostPerMinute());
+    maxConcurrentChecks = Math.max(1, settings.getMaxConcurrentChecks());
+    maxConcurrentChecksPerHost =
+        Math.min(maxConcurrentChecks, Math.max(1, settings.getMaxConcurrentChecksPerHost()));
+    for (HostLatencyProfile profile : profiles) {
+      if (!profile.getResponseMillis().isEmpty()) {
+        double millis = mean(profile.getConnectMillis()) + mean(profile.getResponseMillis());
+        latencySecondsByHost.put(profile.getHost(), millis / 1000);
+      }
+    }
+  }
+
+  /**
+   * Gets the time a URL for a host adds to a task that also checks URLs for other hosts.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @return The time in seconds.
+   */
+  public double getSecondsPerUrl(String host) {
+    return Math.max(secondsPerCheck, getLatencySeconds(host) / maxConcurrentChecks);
+  }
+
+  /**
+   * Gets the time between the checks of URLs for the same host, which bounds how many of them one
+   * task can check in a given time however few URLs it has for other hosts.
+   *
+   * @param host The host, as returned by {@code HostSchedulerService.getHost(String)}.
+   * @return The time in seconds.
+   */
+  public double getSecondsPerHostUrl(String host) {
+    return Math.max(
+        getSecondsPerUrl(host),
+        Math.max(secondsPerHostCheck, getLatencySeconds(host) / maxConcurrentChecksPerHost));
+  }
+
+  private double getLatencySeconds(String host) {
+    Double seconds = latencySecondsByHost.get(host);
+    return seconds != null ? seconds : DEFAULT_LATENCY_MILLIS / 1000.0;
+  }
+
+  private static double mean(List<Integer> millis) {
+    if (millis.isEmpty()) {
+      return 0;
+    }
+    long total = 0;
+    for (int sample : millis) {
+      total += sample;
+    }
+    return (double) total / millis.size();
+  }
+}
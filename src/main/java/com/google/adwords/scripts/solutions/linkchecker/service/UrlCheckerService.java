@@ -14,22 +14,74 @@
 
 package com.google.adwords.scripts.solutions.linkchecker.service;
 
+import com.google.adwords.scripts.solutions.linkchecker.model.UrlValidators;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.FailureTextMatcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.Fetcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.PooledInflaterInputStream;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckOptions;
 import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
-import java.io.BufferedReader;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlConnectionFetcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlResultKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.net.MediaType;
+import com.google.inject.Inject;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Provides the means to request web pages and check the returning HTTP status code, or determine
  * whether text indicative of a failure is in the page (e.g. "out of stock").
+ *
+ * <p>Response bodies are closed, not disconnected, so that the connection can be reused. This only
+ * saves handshakes with the JDK's own HTTP client, as used in tests and off App Engine: There,
+ * subsequent checks against the same host reuse the open connection from the keep-alive cache
+ * (and, for HTTPS, the cached TLS session), and only connections that are left in an unknown
+ * state by an error are disconnected. Under URLFetch, which App Engine is configured to use, the
+ * app opens no sockets of its own, and whether connections are reused is up to the fetch service.
  */
 public class UrlCheckerService {
   private static final int DEFAULT_TIMEOUT_MILLIS = 15000;
   private static final String DEFAULT_USER_AGENT = "GAE Link Checker";
+  private static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+  // Brotli is not offered, as there is no decoder for it.
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+  // A connect that takes less than this made no round trip to the host: The connection was reused
+  // from the keep-alive cache, or, with URLFetch, the connection is only made with the request.
+  private static final long MIN_CONNECT_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Fetcher fetcher;
+  private final HostLatencyService hostLatency;
+
+  /** Creates a service that fetches URLs through the JVM, and always uses the default timeouts. */
+  public UrlCheckerService() {
+    this(new UrlConnectionFetcher(), new HostLatencyService());
+  }
+
+  /**
+   * Creates a service whose timeouts are adapted to the latencies observed for each host, where
+   * enabled in the settings.
+   *
+   * @param fetcher The means by which URLs are fetched.
+   * @param hostLatency The latencies observed for each host.
+   */
+  @Inject
+  public UrlCheckerService(Fetcher fetcher, HostLatencyService hostLatency) {
+    this.fetcher = fetcher;
+    this.hostLatency = hostLatency;
+  }
+
   /**
    * Fetches a URL and updates the status to whether the fetch was a success or a failure.
    *
@@ -41,75 +93,362 @@ public class UrlCheckerService {
    */
   public void check(
       UrlCheckStatus urlCheckStatus, List<String> failureMatchTexts, String userAgent) {
+    check(
+        urlCheckStatus,
+        new UrlCheckOptions(
+            FailureTextMatcher.compile(failureMatchTexts),
+            UrlCheckOptions.UNLIMITED_BODY_BYTES,
+            userAgent));
+  }
+
+  /**
+   * Fetches a URL and updates the status to whether the fetch was a success or a failure. Where
+   * many URLs are to be checked with the same options, this avoids compiling the failure texts for
+   * every check.
+   *
+   * @param urlCheckStatus The details and status of the URL to be checked. Note that this object is
+   *     modified in place with the results of the check.
+   * @param options The options shared by all checks in the batch.
+   */
+  public void check(UrlCheckStatus urlCheckStatus, UrlCheckOptions options) {
+    check(urlCheckStatus, options, null);
+  }
+
+  /**
+   * Fetches a URL and updates the status to whether the fetch was a success or a failure. Where the
+   * page is to be searched for failure texts and validators are available from a previous check,
+   * the request is made conditional: If the server responds that the page has not changed, the
+   * outcome of the previous check is reused without downloading the page again.
+   *
+   * @param urlCheckStatus The details and status of the URL to be checked. Note that this object is
+   *     modified in place with the results of the check.
+   * @param options The options shared by all checks in the batch.
+   * @param previous The validators and outcome from the previous check of the page with the same
+   *     options, or {@code null}.
+   * @return New validators to store for the page, or {@code null} if there are none, or they are
+   *     unchanged from {@code previous} and were saved within the last day.
+   */
+  public UrlValidators check(
+      UrlCheckStatus urlCheckStatus, UrlCheckOptions options, UrlValidators previous) {
+    return check(urlCheckStatus, options, previous, null);
+  }
+
+  /**
+   * Fetches a URL as above, abandoning the check if it has not completed within the deadline in
+   * the options. The connect and read timeouts only bound each step of a fetch, so a server that
+   * trickles its response could otherwise hold a check open for far longer: Instead, the watchdog
+   * disconnects the fetch the moment the deadline passes, which unblocks the checking thread and
+   * releases the connection, and the check is recorded as a timed out failure.
+   *
+   * <p>This only holds for the JDK HTTP client. Under the {@code urlfetch} URL stream handler,
+   * which App Engine is configured to use, disconnecting does not abort a fetch in progress, so in
+   * production a check is only bounded by the connect and read timeouts, which are capped at the
+   * deadline: A check that overruns is still recorded as timed out, but only once the fetch ends.
+   *
+   * @param urlCheckStatus The details and status of the URL to be checked. Note that this object is
+   *     modified in place with the results of the check.
+   * @param options The options shared by all checks in the batch.
+   * @param previous The validators and outcome from the previous check of the page with the same
+   *     options, or {@code null}.
+   * @param watchdog The executor on which to enforce the deadline, or {@code null} to only bound
+   *     the check by the connect and read timeouts.
+   * @return New validators to store for the page, or {@code null} if there are none, they are
+   *     unchanged from {@code previous} and were saved within the last day, or the check timed
+   *     out.
+   */
+  public UrlValidators check(UrlCheckStatus urlCheckStatus, UrlCheckOptions options,
+      UrlValidators previous, ScheduledExecutorService watchdog) {
+    FailureTextMatcher failureTextMatcher = options.getFailureTextMatcher();
+    UrlValidators validators = null;
     HttpURLConnection urlConnection = null;
-    
-    System.setProperty("http.keepAlive", "false");
+    PooledInflaterInputStream decoder = null;
+    ScheduledFuture<?> deadline = null;
+    AtomicBoolean expired = new AtomicBoolean();
+    // The status may hold the outcome of an earlier attempt at the check.
+    urlCheckStatus.setTimedOut(false);
+    urlCheckStatus.setContentBytes(0, 0);
+    // The timeouts are learned from the latencies of the host, but no single step may take longer
+    // than the check as a whole is allowed to.
+    String host = HostSchedulerService.getHost(urlCheckStatus.getUrl());
+    int maxTimeoutMillis = options.hasDeadline()
+        ? (int) Math.min(DEFAULT_TIMEOUT_MILLIS, options.getDeadlineMillis())
+        : DEFAULT_TIMEOUT_MILLIS;
+    int connectTimeoutMillis = hostLatency.getConnectTimeoutMillis(host, maxTimeoutMillis);
+    int readTimeoutMillis = hostLatency.getReadTimeoutMillis(host, maxTimeoutMillis);
+    long startNanos = System.nanoTime();
+    long connectedNanos = 0;
+    boolean connected = false;
+    boolean responded = false;
+    boolean patternsTimedOut = false;
     try {
       URL url = new URL(urlCheckStatus.getUrl());
-      urlConnection = (HttpURLConnection) url.openConnection();
-      urlConnection.setConnectTimeout(DEFAULT_TIMEOUT_MILLIS);
-      urlConnection.setReadTimeout(DEFAULT_TIMEOUT_MILLIS);
-      // Aim for gzip if possible to reduce the use of the App Engine network quota.
-      urlConnection.setRequestProperty("Accept-Encoding", "gzip");
-      urlConnection.setRequestProperty("User-Agent", userAgent);
+      urlConnection = fetcher.open(url);
+      urlConnection.setConnectTimeout(connectTimeoutMillis);
+      urlConnection.setReadTimeout(readTimeoutMillis);
+      if (options.hasDeadline() && watchdog != null) {
+        HttpURLConnection connection = urlConnection;
+        deadline = watchdog.schedule(() -> {
+          expired.set(true);
+          connection.disconnect();
+        }, options.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+      }
+      // Aim for compression if possible to reduce the use of the App Engine network quota. Only
+      // the encodings that can be decoded for searching are offered.
+      urlConnection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+      urlConnection.setRequestProperty("User-Agent", options.getUserAgent());
       
       // If there is no failure text to scan for, then no need to request the
       // entire body, a HEAD request will suffice and save on data transfer.
-      if (failureMatchTexts == null || failureMatchTexts.isEmpty()) {
+      if (failureTextMatcher.isEmpty()) {
         urlConnection.setRequestMethod("HEAD");
+      } else if (previous != null) {
+        // Ask the server to only send the page if it has changed since it was last searched.
+        if (previous.getEtag() != null) {
+          urlConnection.setRequestProperty("If-None-Match", previous.getEtag());
+        }
+        if (previous.getLastModified() != null) {
+          urlConnection.setRequestProperty("If-Modified-Since", previous.getLastModified());
+        }
       }
       
       // Ensure that 30x messages are honoured and cached versions are not used.
       urlConnection.setInstanceFollowRedirects(true);
       urlConnection.setUseCaches(false);
       
+      // Connecting separately from requesting the response allows the two latencies to be learned
+      // independently.
+      startNanos = System.nanoTime();
+      urlConnection.connect();
+      connectedNanos = System.nanoTime();
+      connected = true;
+      if (connectedNanos - startNanos >= MIN_CONNECT_SAMPLE_NANOS) {
+        hostLatency.recordConnect(
+            host, TimeUnit.NANOSECONDS.toMillis(connectedNanos - startNanos));
+      }
       int statusCode = urlConnection.getResponseCode();
-      // A status code less than 400 indicates a non-error condition, however
-      // if there is text to scan for such as "Out of stock", then this can
-      // still cause the overall result to be a failure.
-      if (statusCode < 400) {
+      responded = true;
+      hostLatency.recordResponse(
+          host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedNanos));
+      if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+        // The page has not changed, so neither has the outcome of searching it.
+        previous.applyTo(urlCheckStatus);
+        validators = refreshIfDue(previous);
+        release(urlConnection, urlConnection.getInputStream(), deadline);
+      } else if (statusCode < 400) {
+        // A status code less than 400 indicates a non-error condition, however
+        // if there is text to scan for such as "Out of stock", then this can
+        // still cause the overall result to be a failure.
         urlCheckStatus.setStatus(UrlCheckStatus.Status.SUCCESS, statusCode, null);
-        if (failureMatchTexts != null && !failureMatchTexts.isEmpty()) {
-          BufferedReader bufferedReader;
-          if ("gzip".equals(urlConnection.getContentEncoding())) {
-             bufferedReader = new BufferedReader(
-               new InputStreamReader(new GZIPInputStream(urlConnection.getInputStream())));
+        urlCheckStatus.setTruncated(false);
+        urlCheckStatus.setContentSkipped(false);
+        if (!failureTextMatcher.isEmpty()
+            && !options.getContentTypeFilter().isSearched(urlConnection.getContentType())) {
+          // Images, videos, PDFs and the like are judged by status code alone. The headers have
+          // been read, but not the content: Disconnect rather than have a potentially large
+          // download drained from the connection.
+          urlCheckStatus.setContentSkipped(true);
+          validators = getValidators(urlConnection, urlCheckStatus, options, previous);
+          urlConnection.disconnect();
+        } else if (!failureTextMatcher.isEmpty()) {
+          // The content is counted as transferred, and as decoded, to measure the saving made by
+          // compression.
+          CountingInputStream transferredStream =
+              new CountingInputStream(urlConnection.getInputStream());
+          String contentEncoding = urlConnection.getContentEncoding();
+          if ("gzip".equalsIgnoreCase(contentEncoding)
+              || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            decoder = PooledInflaterInputStream.gzip(transferredStream);
+          } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            decoder = PooledInflaterInputStream.deflate(transferredStream);
+          }
+          CountingInputStream inputStream =
+              new CountingInputStream(decoder != null ? decoder : transferredStream);
+          // The page is scanned for all failure texts in a single pass, without decoding it. Where
+          // the search is limited to the start of the page, the rest is never read.
+          InputStream searchedStream = options.hasMaxBodyBytes()
+              ? ByteStreams.limit(inputStream, options.getMaxBodyBytes())
+              : inputStream;
+          // Failure patterns are given what remains of the deadline, as matching them is the one
+          // step that disconnecting cannot cut short.
+          long timeLimitMillis = options.hasDeadline()
+              ? Math.max(1, options.getDeadlineMillis()
+                  - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+              : FailureTextMatcher.NO_TIME_LIMIT;
+          String failureMatchText = null;
+          try {
+            failureMatchText = failureTextMatcher.find(
+                searchedStream, getCharset(urlConnection.getContentType()), timeLimitMillis);
+          } catch (FailureTextMatcher.PatternTimeoutException e) {
+            // The page was received, so the failure keeps its status code: It is neither retried,
+            // nor held against the host, as neither would make the patterns any faster.
+            patternsTimedOut = true;
+            urlCheckStatus.setStatus(UrlCheckStatus.Status.FAILURE, statusCode, e.getMessage());
+          }
+          if (failureMatchText != null) {
+            urlCheckStatus.setStatus(
+                UrlCheckStatus.Status.FAILURE,
+                statusCode,
+                "Content contains '" + failureMatchText + "'");
+          }
+          boolean truncated = failureMatchText == null && !patternsTimedOut
+              && options.hasMaxBodyBytes()
+              && hasMore(urlConnection, inputStream, options.getMaxBodyBytes());
+          urlCheckStatus.setTruncated(truncated);
+          urlCheckStatus.setContentBytes(transferredStream.getCount(), inputStream.getCount());
+
+          if (failureMatchText != null || truncated || patternsTimedOut) {
+            // The rest of the page is not needed: Disconnect rather than have it drained from the
+            // connection, which would use network quota for no benefit.
+            urlConnection.disconnect();
           } else {
-             bufferedReader = new BufferedReader(
-               new InputStreamReader(urlConnection.getInputStream()));
+            // Closing the stream, rather than disconnecting, returns the connection to the
+            // keep-alive cache for reuse.
+            release(urlConnection, inputStream, deadline);
           }
-          
-          String line;
-          htmlcheck:
-          while ((line = bufferedReader.readLine()) != null) {
-            for (String failureMatchText : failureMatchTexts) {
-              if (line.contains(failureMatchText)) {
-                urlCheckStatus.setStatus(
-                    UrlCheckStatus.Status.FAILURE,
-                    statusCode,
-                    "Content contains '" + failureMatchText + "'");
-                break htmlcheck;
-              }
-            }
+          if (!patternsTimedOut) {
+            validators = getValidators(urlConnection, urlCheckStatus, options, previous);
           }
-          bufferedReader.close();
+        } else {
+          release(urlConnection, urlConnection.getInputStream(), deadline);
         }
       } else {
         // Error due to status code being >= 400
         urlCheckStatus.setStatus(
             UrlCheckStatus.Status.FAILURE, statusCode, String.valueOf(statusCode));
+        // As above, consuming the error response allows the connection to be reused.
+        release(urlConnection, urlConnection.getErrorStream(), deadline);
       }
     } catch (IOException e) {
-      // Error due to some other condition such as network error.
+      // Error due to some other condition such as network error. The state of the connection is
+      // unknown, so ensure that it is not reused.
       urlCheckStatus.setStatus(UrlCheckStatus.Status.FAILURE, -1, e.getMessage());
-    } finally {
       if (urlConnection != null) {
         urlConnection.disconnect();
       }
+      // A step that timed out, or was cut short by the deadline, is recorded as having taken at
+      // least the timeout, so that the timeouts for a host that has slowed down widen again.
+      if (!responded && (e instanceof SocketTimeoutException || expired.get())) {
+        long stepStartNanos = connected ? connectedNanos : startNanos;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stepStartNanos);
+        if (connected) {
+          hostLatency.recordResponse(host, Math.max(elapsedMillis, readTimeoutMillis));
+        } else {
+          hostLatency.recordConnect(host, Math.max(elapsedMillis, connectTimeoutMillis));
+        }
+      }
+    }
+    // The decoder is released whether it was closed, or the connection was disconnected.
+    if (decoder != null) {
+      decoder.release();
+    }
+    // Where the deadline has expired, the watchdog has disconnected the fetch, so whatever outcome
+    // was reached above is unreliable. Note that cancelling does not tell whether the watchdog has
+    // started to run, only whether it has finished.
+    if (deadline != null) {
+      deadline.cancel(false);
     }
+    // The patterns are given until the deadline, so the watchdog may fire as they time out, by when
+    // the page has been read in full: That outcome stands.
+    if (expired.get() && !patternsTimedOut) {
+      urlCheckStatus.setStatus(UrlCheckStatus.Status.FAILURE, -1,
+          "Check did not complete within " + options.getDeadlineMillis() + " ms");
+      urlCheckStatus.setTruncated(false);
+      urlCheckStatus.setTimedOut(true);
+      return null;
+    }
+    return validators;
   }
 
   public void check(UrlCheckStatus urlCheckStatus, List<String> failureMatchTexts) {
     check(urlCheckStatus, failureMatchTexts, DEFAULT_USER_AGENT);
   }
+
+  /**
+   * Determines the charset of a response from its Content-Type header, defaulting to UTF-8 where
+   * none is given or the charset is not supported.
+   */
+  @VisibleForTesting
+  static Charset getCharset(String contentType) {
+    if (contentType != null) {
+      try {
+        return MediaType.parse(contentType).charset().or(DEFAULT_CHARSET);
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        // Malformed Content-Type, or an illegal, unsupported or repeated charset.
+      }
+    }
+    return DEFAULT_CHARSET;
+  }
+
+  /**
+   * Determines whether there is content beyond the part that was searched. Where the Content-Length
+   * of an unencoded response is known, it tells this without waiting on the server for more of the
+   * page.
+   */
+  private static boolean hasMore(HttpURLConnection urlConnection, InputStream inputStream,
+      long searchedBytes) throws IOException {
+    long contentLength = urlConnection.getContentLengthLong();
+    if (contentLength >= 0 && urlConnection.getContentEncoding() == null) {
+      return contentLength > searchedBytes;
+    }
+    return inputStream.read() != -1;
+  }
+
+  /**
+   * Creates validators from a successful response that has been searched for failure texts, so
+   * that a later check can be made conditional.
+   *
+   * @return The validators, or {@code null} if the response has none or they are unchanged and
+   *     not yet due to be saved again.
+   */
+  private static UrlValidators getValidators(HttpURLConnection urlConnection,
+      UrlCheckStatus urlCheckStatus, UrlCheckOptions options, UrlValidators previous) {
+    int statusCode = urlCheckStatus.getHttpStatusCode();
+    String etag = urlConnection.getHeaderField("ETag");
+    String lastModified = urlConnection.getHeaderField("Last-Modified");
+    if (statusCode < 200 || statusCode >= 300 || (etag == null && lastModified == null)) {
+      return null;
+    }
+    UrlValidators validators = new UrlValidators(
+        UrlResultKey.of(urlCheckStatus.getUrl(), options), etag, lastModified, urlCheckStatus);
+    return validators.isSameAs(previous) && !previous.isDueForRefresh() ? null : validators;
+  }
+
+  /**
+   * Refreshes validators that the server has confirmed are unchanged, where they are due to be
+   * saved again.
+   *
+   * @return The refreshed validators, or {@code null} if they need not be saved.
+   */
+  private static UrlValidators refreshIfDue(UrlValidators previous) {
+    if (!previous.isDueForRefresh()) {
+      return null;
+    }
+    previous.refresh();
+    return previous;
+  }
+
+  /**
+   * Closes a response stream, which returns its connection to the keep-alive cache, having first
+   * stopped the watchdog for the check: Once returned, the connection may be taken by another
+   * check, which the watchdog would otherwise disconnect. Where the watchdog has already fired,
+   * the connection is disconnected rather than returned.
+   */
+  private static void release(
+      HttpURLConnection urlConnection, InputStream inputStream, ScheduledFuture<?> deadline) {
+    if (deadline != null && !deadline.cancel(false)) {
+      urlConnection.disconnect();
+      return;
+    }
+    closeQuietly(inputStream);
+  }
+
+  private static void closeQuietly(InputStream inputStream) {
+    if (inputStream != null) {
+      try {
+        inputStream.close();
+      } catch (IOException e) {
+        // The connection will not be reused, but the outcome of the check is unaffected.
+      }
+    }
+  }
 }
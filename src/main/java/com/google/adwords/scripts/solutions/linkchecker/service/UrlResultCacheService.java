@@ -0,0 +1,173 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckOptions;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.RetryPolicy;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlResultKey;
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Caches the results of URL checks across {@code BatchOperation}s, so that a URL submitted again
+ * within the configured time is not fetched again. Results are keyed by {@code UrlResultKey}, on
+ * the normalized URL and the options that affect the outcome of the check.
+ *
+ * <p>Results are held in a size-bounded, least-recently-used cache local to the instance and,
+ * where enabled in the settings, are also shared between instances via memcache. The cache is
+ * disabled unless a time to live is set.
+ */
+public class UrlResultCacheService {
+  private static final String MEMCACHE_NAMESPACE = "UrlResultCache";
+
+  // Configuration is replaced as a whole by each task, and read by many concurrent checks.
+  private volatile Cache<String, CachedResult> localCache;
+  private volatile int maxEntries;
+  private volatile long ttlMillis;
+  private volatile MemcacheService memcache;
+
+  public UrlResultCacheService() {
+    maxEntries = Settings.DEFAULT_RESULT_CACHE_MAX_ENTRIES;
+    localCache = createLocalCache(maxEntries);
+  }
+
+  /**
+   * Applies the current settings to the cache. Changing the maximum number of entries empties the
+   * local cache.
+   *
+   * @param settings The current settings.
+   */
+  public synchronized void configure(Settings settings) {
+    ttlMillis = TimeUnit.MINUTES.toMillis(Math.max(0, settings.getResultCacheTtlMinutes()));
+    if (settings.getResultCacheMaxEntries() != maxEntries) {
+      maxEntries = settings.getResultCacheMaxEntries();
+      localCache = createLocalCache(maxEntries);
+    }
+    if (!settings.isResultCacheSharedViaMemcache()) {
+      memcache = null;
+    } else if (memcache == null) {
+      MemcacheService service = MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+      // Memcache is only an optimization, so any errors are treated as cache misses.
+      service.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.WARNING));
+      memcache = service;
+    }
+  }
+
+  public boolean isEnabled() {
+    return ttlMillis > 0;
+  }
+
+  /**
+   * Looks up a previous result for a URL and, if one is found that has not expired, applies it to
+   * the status.
+   *
+   * @param urlCheckStatus The status of the URL to look up. This is modified in place on a hit.
+   * @param options The options the URL is to be checked with.
+   * @return {@code true} if a result was found and applied, otherwise {@code false}.
+   */
+  public boolean lookup(UrlCheckStatus urlCheckStatus, UrlCheckOptions options) {
+    Cache<String, CachedResult> cache = localCache;
+    long ttl = ttlMillis;
+    MemcacheService shared = memcache;
+    if (ttl <= 0) {
+      return false;
+    }
+
+    String key = UrlResultKey.of(urlCheckStatus.getUrl(), options);
+    CachedResult result = cache.getIfPresent(key);
+    if (result == null && shared != null) {
+      result = (CachedResult) shared.get(key);
+      if (result != null) {
+        cache.put(key, result);
+      }
+    }
+    // The age is checked on read, rather than relying on expiry alone, so that a reduction in the
+    // time to live applies to results that are already cached.
+    if (result == null || System.currentTimeMillis() - result.checkedMillis > ttl) {
+      return false;
+    }
+    urlCheckStatus.setStatus(result.status, result.httpStatusCode, result.message);
+    urlCheckStatus.setTruncated(result.truncated);
+    urlCheckStatus.setContentSkipped(result.contentSkipped);
+    return true;
+  }
+
+  /**
+   * Stores the result of a completed check. Results that may be due to a transient problem, such as
+   * a network error or an overloaded server, are not stored.
+   *
+   * @param urlCheckStatus The status of the checked URL.
+   * @param options The options the URL was checked with.
+   */
+  public void store(UrlCheckStatus urlCheckStatus, UrlCheckOptions options) {
+    Cache<String, CachedResult> cache = localCache;
+    long ttl = ttlMillis;
+    MemcacheService shared = memcache;
+    if (ttl <= 0 || !isCacheable(urlCheckStatus)) {
+      return;
+    }
+
+    String key = UrlResultKey.of(urlCheckStatus.getUrl(), options);
+    CachedResult result = new CachedResult(urlCheckStatus);
+    cache.put(key, result);
+    if (shared != null) {
+      shared.put(key, result, Expiration.byDeltaMillis((int) Math.min(ttl, Integer.MAX_VALUE)));
+    }
+  }
+
+  // Failures that the retry policy treats as transient, such as a request timeout, are not stored,
+  // so that later batches check the URL again.
+  private static boolean isCacheable(UrlCheckStatus urlCheckStatus) {
+    int code = urlCheckStatus.getHttpStatusCode();
+    return urlCheckStatus.getStatus() != UrlCheckStatus.Status.NOT_STARTED
+        && code > 0
+        && code < 500
+        && !RetryPolicy.isTransientStatusCode(code);
+  }
+
+  private static Cache<String, CachedResult> createLocalCache(int maxEntries) {
+    return CacheBuilder.newBuilder().maximumSize(Math.max(0, maxEntries)).build();
+  }
+
+  /** The outcome of a check, as held in the cache. */
+  private static class CachedResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final UrlCheckStatus.Status status;
+    private final int httpStatusCode;
+    private final String message;
+    private final boolean truncated;
+    private final boolean contentSkipped;
+    private final long checkedMillis;
+
+    CachedResult(UrlCheckStatus urlCheckStatus) {
+      status = urlCheckStatus.getStatus();
+      httpStatusCode = urlCheckStatus.getHttpStatusCode();
+      message = urlCheckStatus.getMessage();
+      truncated = urlCheckStatus.isTruncated();
+      contentSkipped = urlCheckStatus.isContentSkipped();
+      checkedMillis = System.currentTimeMillis();
+    }
+  }
+}
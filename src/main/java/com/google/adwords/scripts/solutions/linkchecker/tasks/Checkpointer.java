@@ -0,0 +1,128 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.tasks;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the progress of a task every so many URLs or seconds, whichever comes first, so that the
+ * outcomes of the checks made so far are not lost should the task fail, and a retry resumes from
+ * the last checkpoint.
+ *
+ * <p>Checkpoints are saved on a background thread, so that the checks are not held up. Only one
+ * save is in progress at a time: Checkpoints that fall due in the meantime are coalesced into the
+ * next save, which includes all of the outcomes since the last.
+ */
+class Checkpointer {
+  private static final Logger LOG = Logger.getLogger(Checkpointer.class.getName());
+
+  private final WorkSource work;
+  private final int intervalUrls;
+  private final long intervalNanos;
+  private final ExecutorService executor;
+  private Future<?> save;
+  private int lastNumUrlsChecked;
+  private long lastCheckpointNanos;
+
+  /**
+   * Creates a checkpointer for a task.
+   *
+   * @param work The source of the URLs checked by the task, from which the outcomes are taken.
+   * @param intervalUrls The number of URLs checked after which to save, or 0 for no limit.
+   * @param intervalSeconds The time in seconds after which to save, or 0 for no limit.
+   * @param threadFactory The factory for the thread on which to save.
+   */
+  Checkpointer(
+      WorkSource work, int intervalUrls, int intervalSeconds, ThreadFactory threadFactory) {
+    this.work = work;
+    this.intervalUrls = Math.max(0, intervalUrls);
+    this.intervalNanos = TimeUnit.SECONDS.toNanos(Math.max(0, intervalSeconds));
+    this.executor = isEnabled() ? Executors.newSingleThreadExecutor(threadFactory) : null;
+    this.lastCheckpointNanos = System.nanoTime();
+  }
+
+  boolean isEnabled() {
+    return intervalUrls > 0 || intervalNanos > 0;
+  }
+
+  /**
+   * Starts saving a checkpoint if one is due, and the last has finished saving.
+   *
+   * @param numUrlsChecked The number of URLs the task has checked so far.
+   */
+  void update(int numUrlsChecked) {
+    if (!isEnabled()) {
+      return;
+    }
+    long now = System.nanoTime();
+    boolean due = (intervalUrls > 0 && numUrlsChecked - lastNumUrlsChecked >= intervalUrls)
+        || (intervalNanos > 0 && now - lastCheckpointNanos >= intervalNanos);
+    if (!due || (save != null && !save.isDone())) {
+      return;
+    }
+    awaitSave();
+    lastNumUrlsChecked = numUrlsChecked;
+    lastCheckpointNanos = now;
+    final Runnable checkpoint = work.checkpoint();
+    if (checkpoint != null) {
+      save =
+          executor.submit(
+              () -> {
+                // Objectify needs a context on each thread, which is only set up for requests.
+                ObjectifyService.run(
+                    new VoidWork() {
+                      @Override
+                      public void vrun() {
+                        checkpoint.run();
+                      }
+                    });
+              });
+    }
+  }
+
+  /**
+   * Waits for any checkpoint still being saved, so that the task can save its final outcomes after
+   * it, and stops the background thread.
+   */
+  void close() {
+    if (executor != null) {
+      awaitSave();
+      executor.shutdown();
+    }
+  }
+
+  /** Waits for the last checkpoint to be saved. A failed save is handed back to the next. */
+  private void awaitSave() {
+    if (save == null) {
+      return;
+    }
+    try {
+      Uninterruptibles.getUninterruptibly(save);
+    } catch (ExecutionException e) {
+      LOG.log(Level.WARNING, "Checkpoint could not be saved", e.getCause());
+    }
+    save = null;
+  }
+}
@@ -0,0 +1,208 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.tasks;
+
+import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides a task with URLs claimed a few at a time, from its own {@code BatchSubOperation} first
+ * and then from the other sub operations of the same batch. A task that finishes its own URLs
+ * early so goes on to help with those of tasks held up by slow hosts, and the batch completes once
+ * all of the URLs have been checked, rather than once the slowest task has.
+ *
+ * <p>Each claim is a lease recorded in Datastore, so that no URL is checked by two tasks. The
+ * outcomes are saved, and the leases given up, at each checkpoint, each time more URLs are claimed
+ * and when the task finishes. A lease outlasts the task, so only lapses where the task has failed
+ * without giving it up, after which the URL may be claimed again.
+ */
+class LeasedWorkSource implements WorkSource {
+  // Longer than a task may run, so that a lease only lapses once the task holding it has ended.
+  static final long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(11);
+
+  private final Datastore datastore;
+  private final String accountId;
+  private final String parentId;
+  private final String taskId;
+  private final int claimSize;
+  // The sub operations that may still have URLs to claim, in the order to claim from them.
+  private final Deque<String> claimable;
+  // The URLs claimed from each sub operation whose outcomes are yet to be saved. These are also
+  // handed back from another thread where a checkpoint fails, so are guarded by this.
+  private final Map<String, Claims> claims = new LinkedHashMap<>();
+  private final Map<UrlCheckStatus, Claims> claimsByStatus = new IdentityHashMap<>();
+
+  /**
+   * Creates a source of URLs for a task.
+   *
+   * @param datastore The Datastore in which the sub operations are held.
+   * @param accountId The account ID for the owning {@code BatchOperation}.
+   * @param parentId The ID of the owning {@code BatchOperation}.
+   * @param taskId The ID of the task, which is also that of its own sub operation.
+   * @param subOpIds The IDs of all of the sub operations of the batch.
+   * @param claimSize The maximum number of URLs to claim at a time.
+   */
+  LeasedWorkSource(Datastore datastore, String accountId, String parentId, String taskId,
+      List<String> subOpIds, int claimSize) {
+    this.datastore = datastore;
+    this.accountId = accountId;
+    this.parentId = parentId;
+    this.taskId = taskId;
+    this.claimSize = claimSize;
+    // Tasks with time to spare spread out over the other sub operations, rather than all claiming
+    // from the same one.
+    List<String> siblings = new ArrayList<>(subOpIds);
+    siblings.remove(taskId);
+    Collections.shuffle(siblings);
+    claimable = new ArrayDeque<>(siblings);
+    claimable.addFirst(taskId);
+  }
+
+  @Override
+  public synchronized List<UrlCheckStatus> claim() {
+    Runnable save = checkpoint();
+    if (save != null) {
+      save.run();
+    }
+    while (!claimable.isEmpty()) {
+      String subOpId = claimable.peek();
+      List<UrlCheckStatus> claimed =
+          datastore.claimUrls(accountId, parentId, subOpId, taskId, claimSize, LEASE_MILLIS);
+      if (!claimed.isEmpty()) {
+        Claims subOpClaims = claims.get(subOpId);
+        if (subOpClaims == null) {
+          subOpClaims = new Claims();
+          claims.put(subOpId, subOpClaims);
+        }
+        for (UrlCheckStatus status : claimed) {
+          subOpClaims.held.add(status);
+          claimsByStatus.put(status, subOpClaims);
+        }
+        return claimed;
+      }
+      // Every URL has been checked or claimed by another task.
+      claimable.remove();
+    }
+    return Collections.emptyList();
+  }
+
+  @Override
+  public synchronized void recordCacheHit(UrlCheckStatus status) {
+    claimsByStatus.get(status).cacheHits++;
+  }
+
+  @Override
+  public synchronized void recordCacheMiss(UrlCheckStatus status) {
+    claimsByStatus.get(status).cacheMisses++;
+  }
+
+  @Override
+  public synchronized void complete(UrlCheckStatus status) {
+    Claims subOpClaims = claimsByStatus.remove(status);
+    if (subOpClaims != null) {
+      subOpClaims.held.remove(status);
+      subOpClaims.completed.add(status);
+    }
+  }
+
+  @Override
+  public synchronized Runnable checkpoint() {
+    final Map<String, Claims> unsaved = new LinkedHashMap<>();
+    for (Map.Entry<String, Claims> entry : claims.entrySet()) {
+      Claims subOpClaims = entry.getValue();
+      if (subOpClaims.hasUnsaved()) {
+        Claims taken = new Claims();
+        taken.moveUnsavedFrom(subOpClaims);
+        unsaved.put(entry.getKey(), taken);
+      }
+    }
+    if (unsaved.isEmpty()) {
+      return null;
+    }
+    return () -> {
+      for (Iterator<Map.Entry<String, Claims>> it = unsaved.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<String, Claims> entry = it.next();
+        Claims taken = entry.getValue();
+        try {
+          datastore.saveClaimedUrls(accountId, parentId, entry.getKey(), taskId, taken.completed,
+              taken.cacheHits, taken.cacheMisses);
+        } catch (RuntimeException e) {
+          handBack(unsaved);
+          throw e;
+        }
+        it.remove();
+      }
+    };
+  }
+
+  @Override
+  public synchronized boolean finish(boolean stoppedEarly) {
+    // The outcome of any check still to be retried stands as it is.
+    boolean unchecked = false;
+    for (Map.Entry<String, Claims> entry : claims.entrySet()) {
+      Claims subOpClaims = entry.getValue();
+      for (UrlCheckStatus status : subOpClaims.held) {
+        unchecked |= status.getStatus() == UrlCheckStatus.Status.NOT_STARTED;
+      }
+      subOpClaims.completed.addAll(subOpClaims.held);
+      subOpClaims.held.clear();
+    }
+    Runnable save = checkpoint();
+    if (save != null) {
+      save.run();
+    }
+    // A task that stops early, such as between claims when out of time, may leave URLs unclaimed
+    // that no other task will check, so is retried to claim them.
+    return unchecked || (stoppedEarly && !claimable.isEmpty());
+  }
+
+  private synchronized void handBack(Map<String, Claims> unsaved) {
+    for (Map.Entry<String, Claims> entry : unsaved.entrySet()) {
+      claims.get(entry.getKey()).moveUnsavedFrom(entry.getValue());
+    }
+  }
+
+  /** The URLs claimed from a sub operation, and the cache lookups for them, yet to be saved. */
+  private static class Claims {
+    final List<UrlCheckStatus> held = new ArrayList<>();
+    final List<UrlCheckStatus> completed = new ArrayList<>();
+    int cacheHits;
+    int cacheMisses;
+
+    boolean hasUnsaved() {
+      return !completed.isEmpty() || cacheHits != 0 || cacheMisses != 0;
+    }
+
+    /** Moves the completed URLs and cache lookups from other claims to these. */
+    void moveUnsavedFrom(Claims other) {
+      completed.addAll(other.completed);
+      cacheHits += other.cacheHits;
+      cacheMisses += other.cacheMisses;
+      other.completed.clear();
+      other.cacheHits = 0;
+      other.cacheMisses = 0;
+    }
+  }
+}
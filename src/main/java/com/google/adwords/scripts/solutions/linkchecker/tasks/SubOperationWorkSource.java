@@ -0,0 +1,144 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.tasks;
+
+import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
+import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Provides a task with the URLs of its own {@code BatchSubOperation}, all claimed at once. The sub
+ * operation is saved as a whole once the task finishes, and is not shared with other tasks. The
+ * outcomes saved at checkpoints before then are merged into the saved sub operation, so that a
+ * retry of the task after a failure resumes from the last checkpoint.
+ */
+class SubOperationWorkSource implements WorkSource {
+  private final Datastore datastore;
+  private final String accountId;
+  private final String parentId;
+  private final BatchSubOperation subOp;
+  private List<UrlCheckStatus> claimed;
+  private boolean checked;
+  // The outcomes and cache lookups since the last checkpoint. These are also handed back from
+  // another thread where a checkpoint fails, so are guarded by this.
+  private List<UrlCheckStatus> unsaved = new ArrayList<>();
+  private int unsavedCacheHits;
+  private int unsavedCacheMisses;
+
+  SubOperationWorkSource(
+      Datastore datastore, String accountId, String parentId, BatchSubOperation subOp) {
+    this.datastore = datastore;
+    this.accountId = accountId;
+    this.parentId = parentId;
+    this.subOp = subOp;
+  }
+
+  @Override
+  public List<UrlCheckStatus> claim() {
+    if (claimed != null) {
+      return Collections.emptyList();
+    }
+    claimed = new ArrayList<>();
+    for (UrlCheckStatus status : subOp.getUrlStatuses()) {
+      if (status.getStatus() == UrlCheckStatus.Status.NOT_STARTED) {
+        claimed.add(status);
+      }
+    }
+    return claimed;
+  }
+
+  @Override
+  public synchronized void recordCacheHit(UrlCheckStatus status) {
+    subOp.recordCacheHit();
+    unsavedCacheHits++;
+  }
+
+  @Override
+  public synchronized void recordCacheMiss(UrlCheckStatus status) {
+    subOp.recordCacheMiss();
+    unsavedCacheMisses++;
+  }
+
+  @Override
+  public synchronized void complete(UrlCheckStatus status) {
+    checked = true;
+    unsaved.add(status);
+  }
+
+  @Override
+  public synchronized Runnable checkpoint() {
+    if (unsaved.isEmpty() && unsavedCacheHits == 0 && unsavedCacheMisses == 0) {
+      return null;
+    }
+    final List<UrlCheckStatus> statuses = unsaved;
+    final int cacheHits = unsavedCacheHits;
+    final int cacheMisses = unsavedCacheMisses;
+    unsaved = new ArrayList<>();
+    unsavedCacheHits = 0;
+    unsavedCacheMisses = 0;
+    return () -> {
+      try {
+        datastore.saveUrlOutcomes(
+            accountId, parentId, subOp.getId(), statuses, cacheHits, cacheMisses);
+      } catch (RuntimeException e) {
+        handBack(statuses, cacheHits, cacheMisses);
+        throw e;
+      }
+    };
+  }
+
+  @Override
+  public synchronized boolean finish(boolean stoppedEarly) {
+    if (stoppedEarly) {
+      // It is only necessary to save progress if some has been made, otherwise avoid the hit on
+      // the Datastore quota. The remaining URLs will be picked up when the task is retried.
+      if (hasProgress()) {
+        datastore.saveBatchSubOperation(subOp);
+      }
+      return true;
+    }
+    // All URLs in this task have been checked. The results are saved, and then the number of
+    // remaining BatchSubOperations for the parent is decremented, with the aim that when this
+    // reaches zero, the overall parent is also marked as complete.
+    datastore.saveBatchSubOperation(subOp);
+    datastore.decrementSubOperationsRemaining(accountId, parentId);
+    return false;
+  }
+
+  private synchronized void handBack(List<UrlCheckStatus> statuses, int cacheHits,
+      int cacheMisses) {
+    unsaved.addAll(statuses);
+    unsavedCacheHits += cacheHits;
+    unsavedCacheMisses += cacheMisses;
+  }
+
+  private boolean hasProgress() {
+    if (checked) {
+      return true;
+    }
+    // A check that failed and was to be retried has an outcome, even though it is not complete.
+    if (claimed != null) {
+      for (UrlCheckStatus status : claimed) {
+        if (status.getStatus() != UrlCheckStatus.Status.NOT_STARTED) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
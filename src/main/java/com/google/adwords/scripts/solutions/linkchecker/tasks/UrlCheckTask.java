@@ -15,31 +15,99 @@
 package com.google.adwords.scripts.solutions.linkchecker.tasks;
 
 import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
+import com.google.adwords.scripts.solutions.linkchecker.model.BatchOperation;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
 import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.model.UrlValidators;
+import com.google.adwords.scripts.solutions.linkchecker.service.CircuitBreakerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.DnsCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostLatencyService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostSchedulerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.RateLimiterService;
 import com.google.adwords.scripts.solutions.linkchecker.service.SettingsService;
 import com.google.adwords.scripts.solutions.linkchecker.service.UrlCheckerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.UrlResultCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.ContentTypeFilter;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.FailureTextMatcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.RetryPolicy;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckOptions;
 import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlResultKey;
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.taskqueue.DeferredTask;
 import com.google.appengine.api.taskqueue.DeferredTaskContext;
 import com.google.apphosting.api.ApiProxy.OverQuotaException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Provides a Task that can be run by the TaskQueue to check URLs for as much of the alloted 10mins
  * as possible. Note some points about this implementation:
- * 1.  The {@code UrlCheckerService} does not use connection timeouts to try to limit the length of
- *     each connection. This is because they are actually difficult to control: It is hard to
- *     specify that a connection must have *finished* within X seconds, the available methods relate
- *     more to the time in which some connection or some data must have been read (but not all).
+ * 1.  Connection timeouts cannot limit the length of each check: They relate to the time in which
+ *     some connection or some data must have been read (but not all). Instead, each check is given
+ *     a wall-clock deadline from the batch or {@code Settings.getCheckDeadlineSeconds()}, enforced
+ *     by a watchdog thread that disconnects any check still running once its deadline passes.
+ *     Under URLFetch, which App Engine is configured to use, disconnecting does not abort a fetch
+ *     in progress, so in production each check is only bounded by its connect and read timeouts,
+ *     which are capped at the deadline.
  * 2.  Where the allotted URLs for this task are not completed in the time, the results so far are
  *     saved to Datastore and the Task is then marked for retry. Those URLs that have not been
  *     checked in each iteration will then be checked on the next attempt.
+ * 3.  Up to {@code Settings.getMaxConcurrentChecks()} checks are kept in flight at once, so that
+ *     slow pages do not leave the task idle. The rate of starting checks is still limited by
+ *     {@code Settings.getRateInChecksPerMinute()}: For this task alone or, where the global rate
+ *     limit is enabled, for all tasks together by the {@code RateLimiterService}. In addition,
+ *     the {@code HostSchedulerService} limits the checks for each host across all tasks on the
+ *     instance: Where a host is at its limits, URLs for other hosts are checked first.
+ * 4.  Where the result cache is enabled, URLs with a recent result from any batch are resolved
+ *     from the {@code UrlResultCacheService} without being fetched.
+ * 5.  Where the DNS cache is enabled, the hosts for the task are resolved before checks start, and
+ *     URLs for hosts that do not resolve fail without being fetched.
+ * 6.  Where pages are searched for failure texts, the {@code UrlValidators} from earlier checks are
+ *     used to make conditional requests, and any new validators are saved along with the results.
+ * 7.  Where the circuit breaker is enabled, the URLs for a host that has repeatedly failed to
+ *     respond fail without being fetched, until a probe check shows that the host is back up.
+ * 8.  Checks that fail transiently, such as with a timeout or a 503 response, are retried with
+ *     exponential backoff once the other URLs have been started, where there is time left.
+ * 9.  Where adaptive timeouts are enabled, the saved {@code HostLatencyProfile}s for the hosts are
+ *     loaded before checks start, and saved again with the latencies observed by the task.
+ * 10. Where work stealing is enabled for the batch, URLs are claimed a few at a time, and once the
+ *     task's own URLs have all been claimed it goes on to claim those that the other tasks of the
+ *     batch have not yet started. See {@code LeasedWorkSource}.
+ * 11. Where checkpoints are enabled, the outcomes so far are saved in the background every
+ *     {@code Settings.getCheckpointIntervalUrls()} URLs or
+ *     {@code Settings.getCheckpointIntervalSeconds()} seconds, so that a task that fails does not
+ *     lose them, and its retry resumes from the last checkpoint.
  */
 public class UrlCheckTask implements DeferredTask {
+  private static final Logger LOG = Logger.getLogger(UrlCheckTask.class.getName());
+
   private final String accountId;
   private final String parentId;
   private final String taskId;
@@ -52,6 +120,11 @@ public class UrlCheckTask implements DeferredTask {
   private static final long MAX_LOOP_TIME_NANO_SECONDS = (long) (9.5 * 60_000_000_000L);
   private static final long ONE_MINUTE_NANO_SECONDS = 60_000_000_000L;
   private static final long MIN_SLEEP_TIME_NANO_SECONDS = 50_000_000L;
+  // URLs for a host being probed by the circuit breaker are retried after this time.
+  private static final long PROBE_RETRY_NANO_SECONDS = 50_000_000L;
+  // Where work stealing is enabled, URLs are claimed at least this many at a time, so that claims
+  // do not contend for the batch in Datastore too often.
+  private static final int MIN_CLAIM_URLS = 20;
 
   public UrlCheckTask(String accountId, String parentId, String taskId) {
     this.accountId = accountId;
@@ -64,68 +137,458 @@ public class UrlCheckTask implements DeferredTask {
     Datastore datastore = injector.getInstance(Datastore.class);
     SettingsService settingsService = injector.getInstance(SettingsService.class);
     UrlCheckerService urlCheckerService = injector.getInstance(UrlCheckerService.class);
-    check(datastore, settingsService, urlCheckerService);
+    UrlResultCacheService resultCache = injector.getInstance(UrlResultCacheService.class);
+    HostSchedulerService hostScheduler = injector.getInstance(HostSchedulerService.class);
+    DnsCacheService dnsCache = injector.getInstance(DnsCacheService.class);
+    HostLatencyService hostLatency = injector.getInstance(HostLatencyService.class);
+    CircuitBreakerService circuitBreaker = injector.getInstance(CircuitBreakerService.class);
+    RateLimiterService rateLimiter = injector.getInstance(RateLimiterService.class);
+    // Checks must run on request threads so that they are able to use the URLFetch service.
+    check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+        hostLatency, circuitBreaker, rateLimiter, ThreadManager.currentRequestThreadFactory());
   }
-  
+
   @VisibleForTesting
   void check(Datastore datastore, SettingsService settingsService,
-      UrlCheckerService urlCheckerService) {
+      UrlCheckerService urlCheckerService, UrlResultCacheService resultCache,
+      HostSchedulerService hostScheduler, DnsCacheService dnsCache,
+      HostLatencyService hostLatency, CircuitBreakerService circuitBreaker,
+      RateLimiterService rateLimiter) {
+    check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+        hostLatency, circuitBreaker, rateLimiter, Executors.defaultThreadFactory());
+  }
+
+  private void check(Datastore datastore, SettingsService settingsService,
+      final UrlCheckerService urlCheckerService, final UrlResultCacheService resultCache,
+      final HostSchedulerService hostScheduler, DnsCacheService dnsCache,
+      HostLatencyService hostLatency, final CircuitBreakerService circuitBreaker,
+      RateLimiterService rateLimiter, ThreadFactory threadFactory) {
     Settings settings = settingsService.getSettings();
+    resultCache.configure(settings);
+    hostScheduler.configure(settings);
+    dnsCache.configure(settings);
+    hostLatency.configure(settings);
+    circuitBreaker.configure(settings);
+    rateLimiter.configure(settings);
     long nanosPerUrl = ONE_MINUTE_NANO_SECONDS / settings.getRateInChecksPerMinute();
+    int maxConcurrentChecks = Math.max(1, settings.getMaxConcurrentChecks());
 
     BatchSubOperation subOp = datastore.loadBatchSubOperation(accountId, parentId, taskId);
-    List<String> failureMatchTexts = subOp.getParent().getFailureMatchTexts();
+    BatchOperation parent = subOp.getParent();
+    // A limit set for the batch takes precedence over the global setting.
+    int maxBodyKilobytes = parent.getMaxBodyKilobytes() != null
+        ? parent.getMaxBodyKilobytes()
+        : settings.getMaxBodyKilobytes();
+    int checkDeadlineSeconds = parent.getCheckDeadlineSeconds() != null
+        ? parent.getCheckDeadlineSeconds()
+        : settings.getCheckDeadlineSeconds();
+    // The failure texts are compiled once, and shared by all of the checks for this task.
+    final UrlCheckOptions options =
+        new UrlCheckOptions(
+            FailureTextMatcher.compile(parent.getFailureMatchTexts(),
+                parent.isFailureMatchCaseInsensitive(), parent.getFailureMatchPatterns()),
+            Math.max(0, maxBodyKilobytes) * 1024L,
+            Math.max(0, checkDeadlineSeconds) * 1000L,
+            ContentTypeFilter.of(parent.getSearchedContentTypes()),
+            settings.getUserAgentString());
+    RetryPolicy retryPolicy =
+        new RetryPolicy(settings.getMaxRetries(), settings.getRetryBaseDelayMillis());
+
+    // Where enabled for the batch, URLs are claimed a few at a time, from the other tasks of the
+    // batch as well as this one. Otherwise this task checks just its own URLs.
+    WorkSource work = parent.isWorkStealingEnabled()
+        ? new LeasedWorkSource(datastore, accountId, parentId, taskId,
+            parent.getSubOperationIds(), Math.max(MIN_CLAIM_URLS, 2 * maxConcurrentChecks))
+        : new SubOperationWorkSource(datastore, accountId, parentId, subOp);
+    Checkpointer checkpointer = new Checkpointer(work, settings.getCheckpointIntervalUrls(),
+        settings.getCheckpointIntervalSeconds(), threadFactory);
+    // Validators from earlier checks are loaded in one batch as URLs are claimed, so that pages
+    // which have not changed need not be downloaded again. They only apply where pages are searched
+    // for failure texts.
+    boolean loadValidators =
+        settings.isConditionalRequestsEnabled() && !options.getFailureTextMatcher().isEmpty();
+    final Map<String, UrlValidators> previousValidators = new ConcurrentHashMap<>();
+    final Queue<UrlValidators> updatedValidators = new ConcurrentLinkedQueue<>();
+
+    ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentChecks, threadFactory);
+    CompletionService<UrlCheckStatus> completionService =
+        new ExecutorCompletionService<>(executor);
+    // A single thread enforces the deadlines of all of the checks, which only needs to disconnect
+    // each overdue check. Deadlines are removed as soon as their checks complete.
+    final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, threadFactory);
+    watchdog.setRemoveOnCancelPolicy(true);
 
     long startTime = System.nanoTime();
-    List<UrlCheckStatus> statuses = subOp.getUrlStatuses();
+    int numUrlsStarted = 0;
     int numUrlsChecked = 0;
-    for (UrlCheckStatus status : statuses) {
+    int numUrlsInFlight = 0;
+    boolean outOfTime = false;
+    boolean overQuota = false;
+    boolean interrupted = false;
+    // Whether a token has been taken from the global rate limit, but not yet used to start a check.
+    boolean rateAcquired = false;
+    Set<String> hosts = new HashSet<>();
+    try {
+      Deque<UrlCheckStatus> pending = new ArrayDeque<>();
+      boolean claimable = true;
+      // Checks that fail transiently are retried once the other URLs have been started, so that
+      // waiting to retry them does not hold up the URLs that are yet to be checked.
+      Queue<Retry> retries = new PriorityQueue<>();
+      long endTime = startTime + maxLoopTimeNanos;
+      while (claimable || !pending.isEmpty() || !retries.isEmpty() || numUrlsInFlight > 0) {
+        long elapsedNanos = System.nanoTime() - startTime;
+        if (elapsedNanos > maxLoopTimeNanos) {
+          outOfTime = true;
+          break;
+        }
+        checkpointer.update(numUrlsChecked);
+        // Claim more URLs once those claimed so far have all been started.
+        if (claimable && pending.isEmpty()) {
+          List<UrlCheckStatus> claimed = work.claim();
+          if (claimed.isEmpty()) {
+            claimable = false;
+            continue;
+          }
+          if (loadValidators) {
+            previousValidators.putAll(datastore.loadUrlValidators(getResultKeys(claimed, options)));
+          }
+          // A URL checked recently by this or another batch needs no fetch, so is resolved before
+          // any checks start, and is neither paced nor counted against the limits.
+          Set<String> newHosts = new HashSet<>();
+          for (UrlCheckStatus status : claimed) {
+            if (resultCache.isEnabled()) {
+              if (resultCache.lookup(status, options)) {
+                work.recordCacheHit(status);
+                work.complete(status);
+                numUrlsChecked++;
+                continue;
+              }
+              work.recordCacheMiss(status);
+            }
+            pending.add(status);
+            String host = HostSchedulerService.getHost(status.getUrl());
+            if (!host.isEmpty() && hosts.add(host)) {
+              newHosts.add(host);
+            }
+          }
+          // Resolve the hosts for the claimed URLs together, rather than as each is first fetched.
+          if (dnsCache.isEnabled()) {
+            dnsCache.prewarm(newHosts, executor);
+          }
+          // Start with the latencies learned by earlier batches, for hosts new to this instance.
+          if (hostLatency.isEnabled() && !newHosts.isEmpty()) {
+            hostLatency.warm(datastore.loadHostLatencyProfiles(newHosts));
+          }
+          continue;
+        }
+        // Once the maximum number of checks are in flight, or there is nothing to start until a
+        // check completes, wait for one to complete before starting the next.
+        if (numUrlsInFlight == maxConcurrentChecks || (pending.isEmpty() && retries.isEmpty())) {
+          numUrlsInFlight--;
+          UrlCheckStatus completed = awaitCheck(completionService.take());
+          if (completed == null) {
+            overQuota = true;
+            break;
+          }
+          numUrlsChecked++;
+          if (!scheduleRetry(completed, retryPolicy, options, retries, endTime)) {
+            work.complete(completed);
+          }
+          continue;
+        }
+        // Once all other URLs have been started, retry those that are due.
+        if (pending.isEmpty()) {
+          long waitNanos = retries.peek().dueNanos - System.nanoTime();
+          if (waitNanos > 0) {
+            if (numUrlsInFlight > 0) {
+              Future<UrlCheckStatus> future =
+                  completionService.poll(waitNanos, TimeUnit.NANOSECONDS);
+              if (future != null) {
+                numUrlsInFlight--;
+                UrlCheckStatus completed = awaitCheck(future);
+                if (completed == null) {
+                  overQuota = true;
+                  break;
+                }
+                numUrlsChecked++;
+                if (!scheduleRetry(completed, retryPolicy, options, retries, endTime)) {
+                  work.complete(completed);
+                }
+              }
+            } else {
+              TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            continue;
+          }
+          UrlCheckStatus retry = retries.remove().urlCheckStatus;
+          retry.incrementRetryCount();
+          pending.add(retry);
+        }
 
-      long currTime = System.nanoTime();
-      if (currTime - startTime > maxLoopTimeNanos) {
-        // Not all of the available URLs have been checked in the time. Save what work has been done
-        // and mark this task for retry (to continue with the unprocessed URLs).
-        datastore.saveBatchSubOperation(subOp);
-        DeferredTaskContext.markForRetry();
-        return;
-      }
-      if (status.getStatus() == UrlCheckStatus.Status.NOT_STARTED) {
-        try {
-          urlCheckerService.check(status, failureMatchTexts, settings.getUserAgentString());
-        } catch (OverQuotaException e) {
-          // If there has been too much use of the network, save progress to this point and mark the
-          // task for retry - the remaining URLs will be picked up then. It is only necessary to
-          // save progress if some has been made, otherwise avoid the hit on the Datastore quota.
-          if (numUrlsChecked > 0) {
-            datastore.saveBatchSubOperation(subOp);
+        // Start the first URL whose host is within its limits, so that the URLs for a busy host do
+        // not hold up those for other hosts.
+        UrlCheckStatus next = null;
+        String nextHost = null;
+        long nextCheck = CircuitBreakerService.NOT_PROBE;
+        long retryNanos = maxLoopTimeNanos - elapsedNanos;
+        // Where the rate is limited for all tasks together, no URL may start until a token has been
+        // taken. The token is then held until a URL does start, however long the hosts are busy.
+        if (!rateAcquired) {
+          long waitNanos = rateLimiter.tryAcquire();
+          rateAcquired = waitNanos == 0;
+          retryNanos = Math.min(retryNanos, waitNanos);
+        }
+        Set<String> busyHosts = new HashSet<>();
+        for (Iterator<UrlCheckStatus> it = pending.iterator(); rateAcquired && it.hasNext(); ) {
+          UrlCheckStatus candidate = it.next();
+          String host = HostSchedulerService.getHost(candidate.getUrl());
+          if (busyHosts.contains(host)) {
+            continue;
+          }
+          // There is no need to fetch a URL whose host is known not to resolve.
+          if (dnsCache.isEnabled() && !host.isEmpty() && !dnsCache.isResolvable(host)) {
+            it.remove();
+            candidate.setStatus(UrlCheckStatus.Status.FAILURE, -1, "Unknown host: " + host);
+            work.complete(candidate);
+            numUrlsChecked++;
+            continue;
+          }
+          // Nor to fetch a URL whose host has stopped responding, until the cool-down has passed
+          // and a probe shows it to be back up.
+          CircuitBreakerService.State circuit = circuitBreaker.getState(host);
+          if (circuit == CircuitBreakerService.State.OPEN) {
+            it.remove();
+            candidate.setStatus(
+                UrlCheckStatus.Status.FAILURE, -1, "Host not responding, not checked: " + host);
+            work.complete(candidate);
+            numUrlsChecked++;
+            continue;
           }
-          DeferredTaskContext.markForRetry();
-          return;
+          long waitNanos = circuit == CircuitBreakerService.State.PROBING
+              ? PROBE_RETRY_NANO_SECONDS
+              : hostScheduler.tryAcquire(host);
+          // Where the host is half-open, only one of the checks that see it so becomes the probe.
+          long check = CircuitBreakerService.NOT_PROBE;
+          if (waitNanos == 0) {
+            check = circuitBreaker.recordStart(host);
+            if (check == CircuitBreakerService.REFUSED) {
+              hostScheduler.release(host);
+              waitNanos = PROBE_RETRY_NANO_SECONDS;
+            }
+          }
+          if (waitNanos == 0) {
+            it.remove();
+            next = candidate;
+            nextHost = host;
+            nextCheck = check;
+            break;
+          }
+          busyHosts.add(host);
+          retryNanos = Math.min(retryNanos, waitNanos);
         }
-        numUrlsChecked++;
-
-        // To control the rate of processing, compare the time taken for all URLs in this task so far
-        // with the time expected by the rate in the settings. If the expected time is sufficiently
-        // greater than the actual time, sleep until the two are the same.
-        long timeInHand = numUrlsChecked * nanosPerUrl - System.nanoTime() + startTime;
-        if (timeInHand > MIN_SLEEP_TIME_NANO_SECONDS) {
-          try {
-            Thread.sleep(timeInHand / 1000000);
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        if (next == null) {
+          if (pending.isEmpty()) {
+            continue;
           }
+          // Every host with URLs remaining is busy. Wait until one may be tried again, collecting
+          // any check that completes in the meantime.
+          if (numUrlsInFlight > 0) {
+            Future<UrlCheckStatus> future =
+                completionService.poll(retryNanos, TimeUnit.NANOSECONDS);
+            if (future != null) {
+              numUrlsInFlight--;
+              UrlCheckStatus completed = awaitCheck(future);
+              if (completed == null) {
+                overQuota = true;
+                break;
+              }
+              numUrlsChecked++;
+              if (!scheduleRetry(completed, retryPolicy, options, retries, endTime)) {
+                work.complete(completed);
+              }
+            }
+          } else {
+            TimeUnit.NANOSECONDS.sleep(retryNanos);
+          }
+          continue;
+        }
+
+        final UrlCheckStatus status = next;
+        final String host = nextHost;
+        final long check = nextCheck;
+        completionService.submit(
+            () -> {
+              boolean recorded = false;
+              try {
+                UrlValidators validators =
+                    urlCheckerService.check(
+                        status,
+                        options,
+                        previousValidators.get(UrlResultKey.of(status.getUrl(), options)),
+                        watchdog);
+                if (validators != null) {
+                  updatedValidators.add(validators);
+                }
+                circuitBreaker.recordResult(host, check, status);
+                recorded = true;
+              } finally {
+                // A probe that fails to complete, such as when over quota, must not leave the other
+                // checks for the host waiting on it.
+                if (!recorded) {
+                  circuitBreaker.releaseProbe(host, check);
+                }
+                hostScheduler.release(host);
+              }
+              resultCache.store(status, options);
+              return status;
+            });
+        numUrlsInFlight++;
+        numUrlsStarted++;
+        rateAcquired = false;
+
+        // To control the overall rate of processing, compare the time taken for all URLs in this
+        // task so far with the time expected by the rate in the settings. If the expected time is
+        // sufficiently greater than the actual time, sleep until the two are the same. Checks that
+        // are already in flight carry on in the meantime. Where the rate is limited for all tasks
+        // together, the RateLimiterService has already paced the check.
+        long timeInHand = numUrlsStarted * nanosPerUrl - System.nanoTime() + startTime;
+        if (!rateLimiter.isEnabled() && timeInHand > MIN_SLEEP_TIME_NANO_SECONDS) {
+          Thread.sleep(timeInHand / 1000000);
+        }
+      }
+
+      // Where the task has stopped early, allow any checks still in flight to complete, so that
+      // their results are not lost. There is no time to retry them.
+      while (numUrlsInFlight > 0) {
+        numUrlsInFlight--;
+        UrlCheckStatus completed = awaitCheck(completionService.take());
+        if (completed != null) {
+          work.complete(completed);
+          numUrlsChecked++;
+        } else {
+          overQuota = true;
         }
       }
+    } catch (InterruptedException e) {
+      interrupted = true;
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+      watchdog.shutdownNow();
+      // The final outcomes must be saved after any checkpoint, so that they are not overwritten.
+      checkpointer.close();
+      // A token not used by this task is left for the others.
+      if (rateAcquired) {
+        rateLimiter.refund();
+      }
+    }
+
+    if (!updatedValidators.isEmpty()) {
+      datastore.saveUrlValidators(updatedValidators);
+    }
+    if (hostLatency.isEnabled() && numUrlsStarted > 0) {
+      List<HostLatencyProfile> profiles = hostLatency.getProfiles(hosts);
+      if (!profiles.isEmpty()) {
+        datastore.saveHostLatencyProfiles(profiles);
+      }
+    }
+    if (dnsCache.isEnabled()) {
+      LOG.log(Level.INFO, "DNS cache hits: {0}, negative hits: {1}, misses: {2}",
+          new Object[] {
+            dnsCache.getHitCount(), dnsCache.getNegativeHitCount(), dnsCache.getMissCount()
+          });
+    }
+
+    // Where the task has stopped early, either not all of the URLs have been checked in the time,
+    // or there has been too much use of the network. Progress to this point is saved and, where
+    // URLs remain, the task is marked for retry - they will be picked up then.
+    if (work.finish(outOfTime || overQuota || interrupted)) {
+      DeferredTaskContext.markForRetry();
+    }
+  }
+
+  /**
+   * Gets the result keys for the URLs that are still to be checked.
+   *
+   * @param statuses The statuses of the URLs claimed by the task.
+   * @param options The options the URLs are to be checked with.
+   * @return The keys.
+   */
+  private static List<String> getResultKeys(
+      List<UrlCheckStatus> statuses, UrlCheckOptions options) {
+    List<String> keys = new ArrayList<>();
+    for (UrlCheckStatus status : statuses) {
+      if (status.getStatus() == UrlCheckStatus.Status.NOT_STARTED) {
+        keys.add(UrlResultKey.of(status.getUrl(), options));
+      }
     }
-    
-    // All URLs in this task have been checked. The results are saved, and then the number of
-    // remaining BatchSubOperations for the parent is decremented, with the aim that when this
-    // reaches zero, the overall parent is also marked as complete.
-    datastore.saveBatchSubOperation(subOp);
-    datastore.decrementSubOperationsRemaining(accountId, parentId);
+    return keys;
   }
-  
+
+  /**
+   * Schedules a completed check to be retried, where it failed transiently and there is time left
+   * in the task for the retry.
+   *
+   * @param status The outcome of the check.
+   * @param retryPolicy The policy that determines whether and when to retry.
+   * @param options The options the check was made with.
+   * @param retries The checks to be retried, to which the check is added.
+   * @param endTime The time, in nanoseconds, by which all checks in the task must complete.
+   * @return Whether the check is to be retried.
+   */
+  private static boolean scheduleRetry(UrlCheckStatus status, RetryPolicy retryPolicy,
+      UrlCheckOptions options, Queue<Retry> retries, long endTime) {
+    if (!retryPolicy.shouldRetry(status)) {
+      return false;
+    }
+    long dueNanos = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(retryPolicy.getBackoffMillis(status.getRetryCount()));
+    // Only retry where the check could complete in time, otherwise the failure stands.
+    if (dueNanos + TimeUnit.MILLISECONDS.toNanos(options.getDeadlineMillis()) < endTime) {
+      retries.add(new Retry(status, dueNanos));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Waits for a check to complete.
+   *
+   * @param check The check, as submitted to the executor.
+   * @return The outcome of the check, or {@code null} if it could not be carried out because there
+   *     is no network quota available.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  private static UrlCheckStatus awaitCheck(Future<UrlCheckStatus> check)
+      throws InterruptedException {
+    try {
+      return check.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof OverQuotaException) {
+        return null;
+      }
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
   public void setMaxLoopTimeNanoSeconds(long maxLoopTimeNanos) {
     this.maxLoopTimeNanos = maxLoopTimeNanos;
   }
+
+  /** A check that failed transiently, and when it is due to be retried. */
+  private static class Retry implements Comparable<Retry> {
+    final UrlCheckStatus urlCheckStatus;
+    final long dueNanos;
+
+    Retry(UrlCheckStatus urlCheckStatus, long dueNanos) {
+      this.urlCheckStatus = urlCheckStatus;
+      this.dueNanos = dueNanos;
+    }
+
+    @Override
+    public int compareTo(Retry other) {
+      return Long.compare(dueNanos, other.dueNanos);
+    }
+  }
 }
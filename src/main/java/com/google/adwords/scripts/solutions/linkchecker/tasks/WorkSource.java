@@ -0,0 +1,68 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.tasks;
+
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import java.util.List;
+
+/** The URLs checked by a {@code UrlCheckTask}, and where the outcomes of the checks are saved. */
+interface WorkSource {
+  /**
+   * Claims more URLs for the task to check.
+   *
+   * @return The statuses of the URLs, or an empty list once there are no more to check.
+   */
+  List<UrlCheckStatus> claim();
+
+  /**
+   * Records that a claimed URL was resolved from the result cache.
+   *
+   * @param status The status of the URL.
+   */
+  void recordCacheHit(UrlCheckStatus status);
+
+  /**
+   * Records that a claimed URL was not found in the result cache, so is to be fetched.
+   *
+   * @param status The status of the URL.
+   */
+  void recordCacheMiss(UrlCheckStatus status);
+
+  /**
+   * Records that a claimed URL has been checked, and will not be retried.
+   *
+   * @param status The status of the URL.
+   */
+  void complete(UrlCheckStatus status);
+
+  /**
+   * Takes the outcomes of the URLs completed since the last checkpoint, so that they can be saved
+   * before the task finishes. Should the save fail, the outcomes are handed back, to be saved with
+   * the next checkpoint or when the task finishes.
+   *
+   * @return The save, which may be run on another thread, or {@code null} if there is nothing new
+   *     to save.
+   */
+  Runnable checkpoint();
+
+  /**
+   * Saves the outcomes of the checks, and gives up the claims on any URLs not checked.
+   *
+   * @param stoppedEarly Whether the task stopped before checking all of the URLs it claimed, such
+   *     as when it ran out of time.
+   * @return Whether the task should be retried, to check the URLs that remain.
+   */
+  boolean finish(boolean stoppedEarly);
+}
@@ -0,0 +1,96 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.MediaType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides, from its Content-Type, whether a page is to be searched for failure texts. Images,
+ * videos, PDFs and other downloads cannot contain the texts in any meaningful sense, so reading
+ * them would use network quota for no benefit: Instead, they are judged by status code alone.
+ *
+ * <p>Content types are given as media ranges, e.g. {@code text/*} or {@code application/json}. Any
+ * parameters, such as the charset, are ignored.
+ */
+public final class ContentTypeFilter {
+  /** The content types that are searched where none are given for the batch. */
+  public static final List<String> DEFAULT_CONTENT_TYPES = ImmutableList.of(
+      "text/*",
+      "application/xhtml+xml",
+      "application/xml",
+      "application/json",
+      "application/javascript");
+
+  private static final ContentTypeFilter DEFAULT = new ContentTypeFilter(DEFAULT_CONTENT_TYPES);
+
+  private final List<String> contentTypes;
+  private final List<MediaType> mediaRanges;
+
+  private ContentTypeFilter(List<String> contentTypes) {
+    this.contentTypes = Collections.unmodifiableList(new ArrayList<>(contentTypes));
+    mediaRanges = new ArrayList<>();
+    for (String contentType : contentTypes) {
+      mediaRanges.add(MediaType.parse(contentType).withoutParameters());
+    }
+  }
+
+  /**
+   * Creates a filter that searches pages of the given content types.
+   *
+   * @param contentTypes The media ranges of the content types to search, or {@code null} or empty
+   *     for {@code DEFAULT_CONTENT_TYPES}.
+   * @return The filter.
+   * @throws IllegalArgumentException If a content type is not a valid media range.
+   */
+  public static ContentTypeFilter of(List<String> contentTypes) {
+    if (contentTypes == null || contentTypes.isEmpty()) {
+      return DEFAULT;
+    }
+    return new ContentTypeFilter(contentTypes);
+  }
+
+  /**
+   * Indicates whether a page is to be searched. Where the Content-Type is missing or malformed, the
+   * type of the page cannot be told, so it is searched.
+   *
+   * @param contentType The Content-Type header of the page, or {@code null}.
+   * @return {@code true} if the page is to be searched for failure texts.
+   */
+  public boolean isSearched(String contentType) {
+    if (contentType == null) {
+      return true;
+    }
+    MediaType mediaType;
+    try {
+      mediaType = MediaType.parse(contentType).withoutParameters();
+    } catch (IllegalArgumentException e) {
+      return true;
+    }
+    for (MediaType mediaRange : mediaRanges) {
+      if (mediaType.is(mediaRange)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public List<String> getContentTypes() {
+    return contentTypes;
+  }
+}
@@ -0,0 +1,550 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches page content for any of a set of failure texts (e.g. "Out of stock") in a single pass,
+ * using an Aho-Corasick automaton. Content is matched as raw bytes, without being decoded: The
+ * failure texts are instead encoded in the charset of the page, and an automaton is built for each
+ * charset the first time that it is seen. The matcher can be shared between threads to scan any
+ * number of pages.
+ *
+ * <p>Content is scanned as one continuous stream, so texts that span line breaks are found, and
+ * pages consisting of a single very long line need no special treatment.
+ *
+ * <p>Texts may be matched regardless of case, in which case letters that are encoded as single
+ * bytes are folded within the automaton itself, at no cost per byte, and other letters are matched
+ * in their lower and upper case forms.
+ *
+ * <p>Failure patterns, being regular expressions, cannot be matched as bytes: Where there are any,
+ * the first {@code MAX_PATTERN_CONTENT_BYTES} of content are held in memory as they are scanned for
+ * the texts, and only decoded and matched against the patterns where no text is found. Patterns
+ * are not matched against content beyond that, which bounds the memory used by each check however
+ * large the page, but the texts still are. Each pattern is given a time limit, so that one that
+ * backtracks heavily cannot stall the check.
+ *
+ * <p>Matchers are cached by their texts and patterns, so that those of a batch are compiled once,
+ * and shared by all of its tasks that run in the same instance.
+ */
+public final class FailureTextMatcher {
+  /** Indicates that failure patterns may take as long as they need to match. */
+  public static final long NO_TIME_LIMIT = 0;
+  /** The number of bytes at the start of the content that are matched against the patterns. */
+  public static final int MAX_PATTERN_CONTENT_BYTES = 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final int ALPHABET_SIZE = 256;
+  private static final int ROOT = 0;
+  private static final int NO_MATCH = -1;
+  // Limit the length of matched content reported in the message of a failure.
+  private static final int MAX_REPORTED_CHARS = 100;
+  private static final int MAX_CACHED_MATCHERS = 100;
+
+  private static final FailureTextMatcher EMPTY = new FailureTextMatcher(
+      Collections.<String>emptyList(), false, Collections.<String>emptyList());
+
+  private static final Cache<List<Object>, FailureTextMatcher> CACHE =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_MATCHERS).build();
+
+  // Each checking thread reads content into the same buffer for every page it searches.
+  private static final ThreadLocal<byte[]> BUFFERS =
+      ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+  private final List<String> failureMatchTexts;
+  private final boolean caseInsensitive;
+  private final List<String> failureMatchPatterns;
+  private final List<Pattern> patterns;
+  private final ConcurrentMap<Charset, Automaton> automata = new ConcurrentHashMap<>();
+
+  private FailureTextMatcher(
+      List<String> failureMatchTexts, boolean caseInsensitive, List<String> failureMatchPatterns) {
+    this.failureMatchTexts = Collections.unmodifiableList(failureMatchTexts);
+    this.caseInsensitive = caseInsensitive;
+    this.failureMatchPatterns = Collections.unmodifiableList(failureMatchPatterns);
+    int flags = caseInsensitive ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+    patterns = new ArrayList<>();
+    for (String pattern : failureMatchPatterns) {
+      patterns.add(Pattern.compile(pattern, flags));
+    }
+  }
+
+  /**
+   * Compiles a list of failure texts into a matcher. Null or empty texts are ignored.
+   *
+   * @param failureMatchTexts The texts to search for, may be null.
+   * @return The compiled matcher.
+   */
+  public static FailureTextMatcher compile(List<String> failureMatchTexts) {
+    return compile(failureMatchTexts, false, null);
+  }
+
+  /**
+   * Compiles failure texts and patterns into a matcher, or returns the matcher already compiled
+   * from them. Null or empty texts and patterns are ignored.
+   *
+   * @param failureMatchTexts The texts to search for, may be null.
+   * @param caseInsensitive Whether the texts and patterns are matched regardless of case.
+   * @param failureMatchPatterns The regular expressions to search for, may be null.
+   * @return The compiled matcher.
+   * @throws java.util.regex.PatternSyntaxException If a pattern is not a valid regular expression.
+   */
+  public static FailureTextMatcher compile(List<String> failureMatchTexts,
+      boolean caseInsensitive, List<String> failureMatchPatterns) {
+    List<String> texts = nonEmpty(failureMatchTexts);
+    List<String> patterns = nonEmpty(failureMatchPatterns);
+    if (texts.isEmpty() && patterns.isEmpty()) {
+      return EMPTY;
+    }
+    List<Object> key = ImmutableList.of(texts, caseInsensitive, patterns);
+    FailureTextMatcher matcher = CACHE.getIfPresent(key);
+    if (matcher == null) {
+      // Compiling the same matcher twice in a race is harmless, so no locking is required.
+      matcher = new FailureTextMatcher(texts, caseInsensitive, patterns);
+      CACHE.put(key, matcher);
+    }
+    return matcher;
+  }
+
+  private static List<String> nonEmpty(List<String> values) {
+    List<String> nonEmpty = new ArrayList<>();
+    if (values != null) {
+      for (String value : values) {
+        if (value != null && !value.isEmpty()) {
+          nonEmpty.add(value);
+        }
+      }
+    }
+    return nonEmpty;
+  }
+
+  /**
+   * Indicates whether there is nothing to search for, in which case page content need not be
+   * retrieved at all.
+   */
+  public boolean isEmpty() {
+    return failureMatchTexts.isEmpty() && failureMatchPatterns.isEmpty();
+  }
+
+  public List<String> getFailureMatchTexts() {
+    return failureMatchTexts;
+  }
+
+  public boolean isCaseInsensitive() {
+    return caseInsensitive;
+  }
+
+  public List<String> getFailureMatchPatterns() {
+    return failureMatchPatterns;
+  }
+
+  /**
+   * Reads content until one of the failure texts or patterns is found, or the content is
+   * exhausted, without a time limit.
+   *
+   * @param inputStream The content to search. The stream is not closed.
+   * @param charset The charset in which the content is encoded.
+   * @return The failure text found, or {@code null} if none was found.
+   * @throws IOException If the content cannot be read.
+   */
+  public String find(InputStream inputStream, Charset charset) throws IOException {
+    return find(inputStream, charset, NO_TIME_LIMIT);
+  }
+
+  /**
+   * Reads content until one of the failure texts or patterns is found, or the content is
+   * exhausted. The failure texts are searched for first, and the patterns are only matched against
+   * the first {@code MAX_PATTERN_CONTENT_BYTES} of content.
+   *
+   * @param inputStream The content to search. The stream is not closed.
+   * @param charset The charset in which the content is encoded.
+   * @param timeLimitMillis The time allowed to match the failure patterns, or
+   *     {@code NO_TIME_LIMIT}.
+   * @return The first failure text found or, where a pattern matched, the matching content, or
+   *     {@code null} if none was found.
+   * @throws PatternTimeoutException If the patterns could not be matched within the time limit.
+   * @throws IOException If the content cannot be read.
+   */
+  public String find(InputStream inputStream, Charset charset, long timeLimitMillis)
+      throws IOException {
+    if (isEmpty()) {
+      return null;
+    }
+    if (patterns.isEmpty()) {
+      return findText(inputStream, charset);
+    }
+    if (failureMatchTexts.isEmpty()) {
+      byte[] content =
+          ByteStreams.toByteArray(ByteStreams.limit(inputStream, MAX_PATTERN_CONTENT_BYTES));
+      return findPattern(new String(content, charset), timeLimitMillis);
+    }
+    // The start of the content is kept as the texts are searched for, so that the page is still
+    // read no further than a text that is found.
+    CapturingInputStream capturingStream =
+        new CapturingInputStream(inputStream, MAX_PATTERN_CONTENT_BYTES);
+    String text = findText(capturingStream, charset);
+    return text != null
+        ? text
+        : findPattern(capturingStream.getCaptured().toString(charset.name()), timeLimitMillis);
+  }
+
+  private String findText(InputStream inputStream, Charset charset) throws IOException {
+    if (failureMatchTexts.isEmpty()) {
+      return null;
+    }
+    Automaton automaton = automata.get(charset);
+    if (automaton == null) {
+      // Building the same automaton twice in a race is harmless, so no locking is required.
+      automaton = createAutomaton(charset);
+      automata.putIfAbsent(charset, automaton);
+    }
+    int match = automaton.find(inputStream);
+    return match != NO_MATCH ? failureMatchTexts.get(match) : null;
+  }
+
+  private String findPattern(String content, long timeLimitMillis) throws IOException {
+    CharSequence limitedContent = timeLimitMillis != NO_TIME_LIMIT
+        ? new TimeLimitedCharSequence(
+            content, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis))
+        : content;
+    try {
+      for (Pattern pattern : patterns) {
+        Matcher matcher = pattern.matcher(limitedContent);
+        if (matcher.find()) {
+          String match = content.substring(matcher.start(), matcher.end());
+          return match.length() > MAX_REPORTED_CHARS
+              ? match.substring(0, MAX_REPORTED_CHARS) + "..."
+              : match;
+        }
+      }
+    } catch (TimeLimitExceededException e) {
+      throw new PatternTimeoutException(
+          "Failure patterns could not be matched within " + timeLimitMillis + " ms");
+    }
+    return null;
+  }
+
+  /**
+   * Builds the automaton for a charset. Where the texts are matched regardless of case, each is
+   * added in its lower and upper case forms too, and letters encoded as single bytes are folded.
+   */
+  private Automaton createAutomaton(Charset charset) {
+    List<String> texts = new ArrayList<>();
+    List<Integer> owners = new ArrayList<>();
+    for (int i = 0; i < failureMatchTexts.size(); i++) {
+      String text = failureMatchTexts.get(i);
+      Set<String> variants = new LinkedHashSet<>();
+      variants.add(text);
+      if (caseInsensitive) {
+        variants.add(text.toLowerCase(Locale.ROOT));
+        variants.add(text.toUpperCase(Locale.ROOT));
+      }
+      for (String variant : variants) {
+        texts.add(variant);
+        owners.add(i);
+      }
+    }
+    int[] caseFolding = caseInsensitive ? getCaseFolding(charset) : null;
+    return new Automaton(encode(texts, charset), owners, caseFolding);
+  }
+
+  /**
+   * Maps each byte to the byte of its lower case form, where both are single characters in the
+   * charset. In UTF-8, only ASCII bytes are single characters, but every byte is in a single byte
+   * charset. In other charsets, such as UTF-16, bytes cannot be folded without regard to the bytes
+   * around them.
+   *
+   * @return The mapping, or {@code null} if no bytes can be folded.
+   */
+  private static int[] getCaseFolding(Charset charset) {
+    boolean utf8 = StandardCharsets.UTF_8.equals(charset);
+    if (!utf8 && charset.newEncoder().maxBytesPerChar() != 1) {
+      return null;
+    }
+    int[] caseFolding = new int[ALPHABET_SIZE];
+    for (int b = 0; b < ALPHABET_SIZE; b++) {
+      caseFolding[b] = b;
+      if (utf8 && b >= 0x80) {
+        continue;
+      }
+      String c = new String(new byte[] {(byte) b}, charset);
+      byte[] lowerCase = c.toLowerCase(Locale.ROOT).getBytes(charset);
+      // Characters whose lower case form cannot be encoded are replaced, so are not folded.
+      if (lowerCase.length == 1
+          && new String(lowerCase, charset).equals(c.toLowerCase(Locale.ROOT))) {
+        caseFolding[b] = lowerCase[0] & 0xff;
+      }
+    }
+    return caseFolding;
+  }
+
+  /**
+   * Encodes the failure texts in a given charset. Texts that cannot be represented in the charset
+   * cannot appear in the content either, so are left as {@code null}.
+   */
+  private static List<byte[]> encode(List<String> texts, Charset charset) {
+    CharsetEncoder encoder =
+        charset
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+    List<byte[]> encoded = new ArrayList<>();
+    for (String text : texts) {
+      try {
+        ByteBuffer bytes = encoder.reset().encode(CharBuffer.wrap(text));
+        encoded.add(Arrays.copyOf(bytes.array(), bytes.limit()));
+      } catch (CharacterCodingException e) {
+        encoded.add(null);
+      }
+    }
+    return encoded;
+  }
+
+  /** Content that keeps a copy of the bytes read from it, up to a limit. */
+  private static final class CapturingInputStream extends FilterInputStream {
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private final int maxBytes;
+
+    CapturingInputStream(InputStream inputStream, int maxBytes) {
+      super(inputStream);
+      this.maxBytes = maxBytes;
+    }
+
+    ByteArrayOutputStream getCaptured() {
+      return captured;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1 && captured.size() < maxBytes) {
+        captured.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        captured.write(buffer, offset, Math.min(read, maxBytes - captured.size()));
+      }
+      return read;
+    }
+  }
+
+  /**
+   * Thrown when the failure patterns cannot be matched within the time limit. By then the content
+   * has been read in full, so unlike other {@code IOException}s, this says nothing of the server.
+   */
+  public static final class PatternTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    PatternTimeoutException(String message) {
+      super(message);
+    }
+  }
+
+  /** Thrown when content is read beyond its time limit. */
+  private static final class TimeLimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Content that can only be read until a deadline. Matching a regular expression cannot otherwise
+   * be interrupted, but reads each character it considers, so this bounds the time it takes.
+   */
+  private static final class TimeLimitedCharSequence implements CharSequence {
+    // The clock is only read every so many characters, as reading it costs far more than a read.
+    private static final int CHARS_PER_CLOCK_READ = 4096;
+
+    private final CharSequence content;
+    private final long deadlineNanos;
+    private int charsUntilClockRead = CHARS_PER_CLOCK_READ;
+
+    TimeLimitedCharSequence(CharSequence content, long deadlineNanos) {
+      this.content = content;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public char charAt(int index) {
+      if (--charsUntilClockRead == 0) {
+        charsUntilClockRead = CHARS_PER_CLOCK_READ;
+        if (System.nanoTime() - deadlineNanos > 0) {
+          throw new TimeLimitExceededException();
+        }
+      }
+      return content.charAt(index);
+    }
+
+    @Override
+    public int length() {
+      return content.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new TimeLimitedCharSequence(content.subSequence(start, end), deadlineNanos);
+    }
+
+    @Override
+    public String toString() {
+      return content.toString();
+    }
+  }
+
+  /**
+   * An Aho-Corasick automaton over bytes. Failure links are resolved when the automaton is built,
+   * giving a full transition table so that each byte of content costs a single lookup.
+   */
+  private static final class Automaton {
+    // The transition for state s and byte b is at s * ALPHABET_SIZE + b.
+    private final int[] transitions;
+    // For each state, the index of the first text that ends at that state, or NO_MATCH.
+    private final int[] matches;
+
+    Automaton(List<byte[]> texts, List<Integer> owners, int[] caseFolding) {
+      // Build the trie of all the texts, with -1 representing no transition.
+      List<int[]> trie = new ArrayList<>();
+      List<Integer> trieMatches = new ArrayList<>();
+      trie.add(newState());
+      trieMatches.add(NO_MATCH);
+      for (int i = 0; i < texts.size(); i++) {
+        byte[] text = texts.get(i);
+        if (text == null || text.length == 0) {
+          continue;
+        }
+        int state = ROOT;
+        for (byte b : text) {
+          int c = caseFolding != null ? caseFolding[b & 0xff] : b & 0xff;
+          int next = trie.get(state)[c];
+          if (next == -1) {
+            next = trie.size();
+            trie.get(state)[c] = next;
+            trie.add(newState());
+            trieMatches.add(NO_MATCH);
+          }
+          state = next;
+        }
+        if (trieMatches.get(state) == NO_MATCH || owners.get(i) < trieMatches.get(state)) {
+          trieMatches.set(state, owners.get(i));
+        }
+      }
+
+      int numStates = trie.size();
+      transitions = new int[numStates * ALPHABET_SIZE];
+      matches = new int[numStates];
+      for (int state = 0; state < numStates; state++) {
+        matches[state] = trieMatches.get(state);
+      }
+
+      // Breadth-first, so that the transitions of each state's failure link (which is always
+      // shallower) are complete before they are needed. Missing transitions are replaced by those
+      // of the failure link, and each state inherits any match that ends at its failure link.
+      int[] failureLinks = new int[numStates];
+      Queue<Integer> queue = new ArrayDeque<>();
+      for (int b = 0; b < ALPHABET_SIZE; b++) {
+        int child = trie.get(ROOT)[b];
+        if (child == -1) {
+          transitions[b] = ROOT;
+        } else {
+          transitions[b] = child;
+          failureLinks[child] = ROOT;
+          queue.add(child);
+        }
+      }
+      while (!queue.isEmpty()) {
+        int state = queue.remove();
+        int link = failureLinks[state];
+        if (matches[link] != NO_MATCH
+            && (matches[state] == NO_MATCH || matches[link] < matches[state])) {
+          matches[state] = matches[link];
+        }
+        for (int b = 0; b < ALPHABET_SIZE; b++) {
+          int child = trie.get(state)[b];
+          int linkTransition = transitions[link * ALPHABET_SIZE + b];
+          if (child == -1) {
+            transitions[state * ALPHABET_SIZE + b] = linkTransition;
+          } else {
+            transitions[state * ALPHABET_SIZE + b] = child;
+            failureLinks[child] = linkTransition;
+            queue.add(child);
+          }
+        }
+      }
+      if (caseFolding != null) {
+        // Upper case letters take the transitions of their lower case forms, which are complete as
+        // the texts were folded when added to the trie.
+        for (int state = 0; state < numStates; state++) {
+          for (int b = 0; b < ALPHABET_SIZE; b++) {
+            transitions[state * ALPHABET_SIZE + b] =
+                transitions[state * ALPHABET_SIZE + caseFolding[b]];
+          }
+        }
+      }
+    }
+
+    private static int[] newState() {
+      int[] state = new int[ALPHABET_SIZE];
+      Arrays.fill(state, -1);
+      return state;
+    }
+
+    int find(InputStream inputStream) throws IOException {
+      byte[] buffer = BUFFERS.get();
+      int state = ROOT;
+      int length;
+      while ((length = inputStream.read(buffer)) != -1) {
+        for (int i = 0; i < length; i++) {
+          state = transitions[state * ALPHABET_SIZE + (buffer[i] & 0xff)];
+          if (matches[state] != NO_MATCH) {
+            return matches[state];
+          }
+        }
+      }
+      return NO_MATCH;
+    }
+  }
+}
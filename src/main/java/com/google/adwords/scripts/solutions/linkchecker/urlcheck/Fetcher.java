@@ -0,0 +1,36 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections through which URLs are checked. The {@code UrlCheckerService} makes its
+ * requests and reads responses through the standard {@code HttpURLConnection} interface, so an
+ * implementation can fetch pages by any means, or simulate them without any network access.
+ */
+public interface Fetcher {
+  /**
+   * Opens a connection to a URL. The request is not made until the connection is connected, so
+   * that request properties and timeouts can be set first.
+   *
+   * @param url The URL to fetch.
+   * @return The unconnected connection.
+   * @throws IOException If the URL cannot be fetched, for example as its protocol is unsupported.
+   */
+  HttpURLConnection open(URL url) throws IOException;
+}
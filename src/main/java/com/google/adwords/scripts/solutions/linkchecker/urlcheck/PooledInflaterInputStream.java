@@ -0,0 +1,232 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decodes gzip or deflate content using an {@code Inflater} and input buffer taken from a shared
+ * pool. A {@code GZIPInputStream} or {@code InflaterInputStream} allocates both for every page,
+ * and the {@code Inflater} also holds native memory until it is finalized, so at the volume of
+ * checks made this churns the heap for no benefit.
+ *
+ * <p>Only the first gzip member is decoded, and no trailer is verified: Pages are almost never
+ * served as more than one member, and a checksum adds nothing to a search for failure texts, while
+ * costing a pass over the content. As both formats wrap the same raw deflate data, their headers
+ * are read here, and the pooled inflaters need only handle raw data. The stream must be released,
+ * or closed, for its {@code Inflater} to be returned to the pool, even if the connection is
+ * disconnected instead.
+ */
+public final class PooledInflaterInputStream extends InputStream {
+  private static final int BUFFER_SIZE = 8192;
+  // Enough for every check in flight in a few concurrent tasks, beyond which surplus inflaters are
+  // ended rather than held.
+  private static final int MAX_POOLED = 64;
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int GZIP_METHOD_DEFLATE = 8;
+  private static final int FLAG_HEADER_CRC = 2;
+  private static final int FLAG_EXTRA = 4;
+  private static final int FLAG_NAME = 8;
+  private static final int FLAG_COMMENT = 16;
+  private static final int ZLIB_METHOD_DEFLATE = 8;
+  private static final int ZLIB_FLAG_DICTIONARY = 0x20;
+
+  private static final Deque<Decoder> POOL = new ConcurrentLinkedDeque<>();
+  private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+  private final InputStream in;
+  private Decoder decoder;
+  private boolean dummyByteGiven;
+
+  private PooledInflaterInputStream(InputStream in, byte[] initialInput) {
+    this.in = in;
+    this.decoder = acquire();
+    if (initialInput.length > 0) {
+      System.arraycopy(initialInput, 0, decoder.buffer, 0, initialInput.length);
+      decoder.inflater.setInput(decoder.buffer, 0, initialInput.length);
+    }
+  }
+
+  /**
+   * Creates a stream that decodes gzip content.
+   *
+   * @param in The gzip content, whose header is read immediately.
+   * @return The decoded content.
+   * @throws IOException If the header cannot be read, or is not a gzip header.
+   */
+  public static PooledInflaterInputStream gzip(InputStream in) throws IOException {
+    readGzipHeader(in);
+    return new PooledInflaterInputStream(in, new byte[0]);
+  }
+
+  /**
+   * Creates a stream that decodes deflate content. This is meant to be zlib data, but some servers
+   * send raw deflate data instead, so either is accepted.
+   *
+   * @param in The deflate content, whose header, if any, is read immediately.
+   * @return The decoded content.
+   * @throws IOException If the start of the content cannot be read, or requires a preset
+   *     dictionary.
+   */
+  public static PooledInflaterInputStream deflate(InputStream in) throws IOException {
+    int cmf = readUnsignedByte(in);
+    int flg = readUnsignedByte(in);
+    if ((cmf & 0x0f) == ZLIB_METHOD_DEFLATE && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0) {
+      if ((flg & ZLIB_FLAG_DICTIONARY) != 0) {
+        throw new ZipException("Preset dictionaries are not supported");
+      }
+      return new PooledInflaterInputStream(in, new byte[0]);
+    }
+    // Not a zlib header, so the bytes read are the start of raw deflate data.
+    return new PooledInflaterInputStream(in, new byte[] {(byte) cmf, (byte) flg});
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (decoder == null) {
+      throw new IOException("Stream closed");
+    }
+    if (length == 0) {
+      return 0;
+    }
+    Inflater inflater = decoder.inflater;
+    try {
+      while (true) {
+        int count = inflater.inflate(buffer, offset, length);
+        if (count > 0) {
+          return count;
+        }
+        if (inflater.finished()) {
+          return -1;
+        }
+        if (inflater.needsDictionary()) {
+          throw new ZipException("Preset dictionaries are not supported");
+        }
+        if (inflater.needsInput()) {
+          int read = in.read(decoder.buffer);
+          if (read == -1) {
+            // Raw deflate data that ends the content may need an extra byte of input to finish.
+            if (dummyByteGiven) {
+              throw new EOFException("Unexpected end of compressed content");
+            }
+            dummyByteGiven = true;
+            decoder.buffer[0] = 0;
+            read = 1;
+          }
+          inflater.setInput(decoder.buffer, 0, read);
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException(e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the {@code Inflater} to the pool, without closing the underlying stream. The stream
+   * cannot be read from afterwards. Releasing more than once has no effect.
+   */
+  public void release() {
+    if (decoder != null) {
+      Decoder released = decoder;
+      decoder = null;
+      released.inflater.reset();
+      if (POOL_SIZE.incrementAndGet() <= MAX_POOLED) {
+        POOL.push(released);
+      } else {
+        POOL_SIZE.decrementAndGet();
+        released.inflater.end();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    release();
+    in.close();
+  }
+
+  private static Decoder acquire() {
+    Decoder decoder = POOL.poll();
+    if (decoder == null) {
+      return new Decoder();
+    }
+    POOL_SIZE.decrementAndGet();
+    return decoder;
+  }
+
+  /** Reads and checks a gzip header, leaving the stream at the start of the deflate data. */
+  private static void readGzipHeader(InputStream in) throws IOException {
+    if (readUnsignedShort(in) != GZIP_MAGIC) {
+      throw new ZipException("Not in gzip format");
+    }
+    if (readUnsignedByte(in) != GZIP_METHOD_DEFLATE) {
+      throw new ZipException("Unsupported compression method");
+    }
+    int flags = readUnsignedByte(in);
+    // Modification time, extra flags and operating system.
+    skipBytes(in, 6);
+    if ((flags & FLAG_EXTRA) != 0) {
+      skipBytes(in, readUnsignedShort(in));
+    }
+    if ((flags & FLAG_NAME) != 0) {
+      while (readUnsignedByte(in) != 0) {}
+    }
+    if ((flags & FLAG_COMMENT) != 0) {
+      while (readUnsignedByte(in) != 0) {}
+    }
+    if ((flags & FLAG_HEADER_CRC) != 0) {
+      skipBytes(in, 2);
+    }
+  }
+
+  private static int readUnsignedShort(InputStream in) throws IOException {
+    return readUnsignedByte(in) | (readUnsignedByte(in) << 8);
+  }
+
+  private static int readUnsignedByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException("Unexpected end of gzip header");
+    }
+    return b;
+  }
+
+  private static void skipBytes(InputStream in, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      readUnsignedByte(in);
+    }
+  }
+
+  /** An {@code Inflater} for raw deflate data, with the buffer from which it is given input. */
+  private static final class Decoder {
+    final Inflater inflater = new Inflater(true);
+    final byte[] buffer = new byte[BUFFER_SIZE];
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Determines which failed checks are worth retrying, and how long to wait before doing so. Only
+ * transient failures are retried: Those without a response, such as a timeout or dropped
+ * connection, and responses indicating that the server is temporarily unable to serve the page.
+ *
+ * <p>The delay before each retry grows exponentially with the number of retries so far, with a
+ * random element so that retries for many URLs on the same host are spread out.
+ */
+public class RetryPolicy {
+  /** Indicates that failed checks are not retried. */
+  public static final int NO_RETRIES = 0;
+  // The longest delay before any retry, however many retries have been made.
+  static final long MAX_BACKOFF_MILLIS = 60_000;
+  private static final Set<Integer> TRANSIENT_STATUS_CODES =
+      ImmutableSet.of(408, 429, 502, 503, 504);
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final Random random;
+
+  /**
+   * Creates a new retry policy.
+   *
+   * @param maxRetries The maximum number of times to retry each URL, or {@code NO_RETRIES}.
+   * @param baseDelayMillis The delay before the first retry, which doubles for each retry after.
+   */
+  public RetryPolicy(int maxRetries, long baseDelayMillis) {
+    this(maxRetries, baseDelayMillis, new Random());
+  }
+
+  @VisibleForTesting
+  RetryPolicy(int maxRetries, long baseDelayMillis, Random random) {
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.random = random;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Determines whether a check should be retried.
+   *
+   * @param urlCheckStatus The outcome of the check.
+   * @return {@code true} if the check failed transiently, and has not been retried too often.
+   */
+  public boolean shouldRetry(UrlCheckStatus urlCheckStatus) {
+    return urlCheckStatus.getRetryCount() < maxRetries && isTransient(urlCheckStatus);
+  }
+
+  /**
+   * Gets the time to wait before retrying a check: Between half and all of the base delay doubled
+   * for each previous retry, up to {@code MAX_BACKOFF_MILLIS}.
+   *
+   * @param retryCount The number of times the check has been retried so far.
+   * @return The delay in milliseconds.
+   */
+  public long getBackoffMillis(int retryCount) {
+    long backoff = Math.min(MAX_BACKOFF_MILLIS, baseDelayMillis << Math.min(retryCount, 16));
+    long half = backoff / 2;
+    return half + (long) (random.nextDouble() * (backoff - half));
+  }
+
+  /**
+   * Determines whether a failure may not recur when the check is retried.
+   *
+   * @param urlCheckStatus The outcome of the check.
+   * @return {@code true} if the failure is transient.
+   */
+  static boolean isTransient(UrlCheckStatus urlCheckStatus) {
+    if (urlCheckStatus.getStatus() != UrlCheckStatus.Status.FAILURE) {
+      return false;
+    }
+    int statusCode = urlCheckStatus.getHttpStatusCode();
+    if (statusCode == -1) {
+      // No response was received. A URL that cannot be parsed will fail in the same way again.
+      try {
+        new URL(urlCheckStatus.getUrl());
+        return true;
+      } catch (MalformedURLException e) {
+        return false;
+      }
+    }
+    return isTransientStatusCode(statusCode);
+  }
+
+  /**
+   * Determines whether a response indicates that the server is temporarily unable to serve the
+   * page, so that the same request may succeed later.
+   *
+   * @param statusCode The HTTP status code of the response.
+   * @return {@code true} if the status code is transient.
+   */
+  public static boolean isTransientStatusCode(int statusCode) {
+    return TRANSIENT_STATUS_CODES.contains(statusCode);
+  }
+}
@@ -0,0 +1,273 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates fetching URLs, without any network access, so that the checking of URLs can be
+ * exercised and benchmarked offline and repeatably. Each host responds as configured by a
+ * {@link Response}: After a latency, with a status code and a body of a given size, or with a
+ * connection failure at a given rate. Connect and read timeouts, and disconnection from another
+ * thread, are honoured as they would be by a real connection.
+ *
+ * <p>Failures are decided by a random number generator with a fixed seed, so that a run with the
+ * same URLs checked in the same order is repeated exactly.
+ */
+public class StubFetcher implements Fetcher {
+  private final Map<String, Response> responsesByHost = new ConcurrentHashMap<>();
+  private final Random random;
+  private final AtomicInteger fetchCount = new AtomicInteger();
+  private volatile Response defaultResponse = new Response(200, 0, 0, "", 0);
+
+  /**
+   * Creates a stub in which every host responds immediately with an empty page.
+   *
+   * @param seed The seed for deciding which fetches fail.
+   */
+  public StubFetcher(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Sets how hosts without a response of their own respond.
+   *
+   * @param response The response.
+   */
+  public void setDefaultResponse(Response response) {
+    this.defaultResponse = response;
+  }
+
+  /**
+   * Sets how a host responds.
+   *
+   * @param host The host.
+   * @param response The response.
+   */
+  public void setResponse(String host, Response response) {
+    responsesByHost.put(host.toLowerCase(Locale.ROOT), response);
+  }
+
+  /** Gets the number of connections opened by the stub so far. */
+  public int getFetchCount() {
+    return fetchCount.get();
+  }
+
+  @Override
+  public HttpURLConnection open(URL url) throws IOException {
+    fetchCount.incrementAndGet();
+    Response response = responsesByHost.get(url.getHost().toLowerCase(Locale.ROOT));
+    if (response == null) {
+      response = defaultResponse;
+    }
+    boolean fail;
+    synchronized (random) {
+      fail = random.nextDouble() < response.failureRate;
+    }
+    return new StubConnection(url, response, fail);
+  }
+
+  /** The simulated response of a host. */
+  public static class Response {
+    private final int statusCode;
+    private final long latencyMillis;
+    private final int bodyBytes;
+    private final byte[] bodyText;
+    private final double failureRate;
+    private final String contentType;
+
+    /**
+     * Creates a simulated HTML response.
+     *
+     * @param statusCode The HTTP status code.
+     * @param latencyMillis The time taken from opening the connection to the response headers,
+     *     half of which is spent connecting.
+     * @param bodyBytes The size of the body, which is padded with spaces after the body text.
+     * @param bodyText The text at the start of the body, for example a failure text.
+     * @param failureRate The proportion of fetches, between 0 and 1, whose connection fails.
+     */
+    public Response(
+        int statusCode, long latencyMillis, int bodyBytes, String bodyText, double failureRate) {
+      this(statusCode, latencyMillis, bodyBytes, bodyText, failureRate,
+          "text/html; charset=UTF-8");
+    }
+
+    /**
+     * Creates a simulated response with a given content type.
+     *
+     * @param statusCode The HTTP status code.
+     * @param latencyMillis The time taken from opening the connection to the response headers,
+     *     half of which is spent connecting.
+     * @param bodyBytes The size of the body, which is padded with spaces after the body text.
+     * @param bodyText The text at the start of the body, for example a failure text.
+     * @param failureRate The proportion of fetches, between 0 and 1, whose connection fails.
+     * @param contentType The Content-Type header, or {@code null} to send none.
+     */
+    public Response(int statusCode, long latencyMillis, int bodyBytes, String bodyText,
+        double failureRate, String contentType) {
+      this.statusCode = statusCode;
+      this.latencyMillis = latencyMillis;
+      this.bodyBytes = bodyBytes;
+      this.bodyText = bodyText.getBytes(StandardCharsets.UTF_8);
+      this.failureRate = failureRate;
+      this.contentType = contentType;
+    }
+  }
+
+  /** A connection that plays out a simulated response. */
+  private static class StubConnection extends HttpURLConnection {
+    private final Response response;
+    private final boolean fail;
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+    private boolean responded;
+
+    StubConnection(URL url, Response response, boolean fail) {
+      super(url);
+      this.response = response;
+      this.fail = fail;
+    }
+
+    @Override
+    public void connect() throws IOException {
+      if (connected) {
+        return;
+      }
+      simulateDelay(response.latencyMillis / 2, getConnectTimeout(), "connect timed out");
+      if (fail) {
+        throw new ConnectException("Connection refused (simulated)");
+      }
+      connected = true;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+      connect();
+      if (!responded) {
+        simulateDelay(response.latencyMillis - response.latencyMillis / 2, getReadTimeout(),
+            "Read timed out");
+        responded = true;
+      }
+      return response.statusCode;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      if (getResponseCode() >= 400) {
+        throw new FileNotFoundException(url.toString());
+      }
+      return new Body();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return responded && response.statusCode >= 400 ? new Body() : null;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+      if (!responded) {
+        return null;
+      }
+      if ("content-type".equalsIgnoreCase(name)) {
+        return response.contentType;
+      }
+      if ("content-length".equalsIgnoreCase(name)) {
+        return String.valueOf(response.bodyBytes);
+      }
+      return null;
+    }
+
+    @Override
+    public void disconnect() {
+      disconnected.countDown();
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    /** Waits as a real connection would, until the timeout or a disconnection if sooner. */
+    private void simulateDelay(long millis, int timeoutMillis, String timeoutMessage)
+        throws IOException {
+      boolean timesOut = timeoutMillis > 0 && millis > timeoutMillis;
+      try {
+        if (disconnected.await(timesOut ? timeoutMillis : millis, TimeUnit.MILLISECONDS)) {
+          throw new SocketException("Socket closed");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      if (timesOut) {
+        throw new SocketTimeoutException(timeoutMessage);
+      }
+    }
+
+    /** The body of the response: The body text, padded with spaces. */
+    private class Body extends InputStream {
+      private final int length = "HEAD".equals(method) ? 0 : response.bodyBytes;
+      private int position;
+
+      @Override
+      public int read() throws IOException {
+        if (disconnected.getCount() == 0) {
+          throw new SocketException("Socket closed");
+        }
+        if (position >= length) {
+          return -1;
+        }
+        int b = position < response.bodyText.length ? response.bodyText[position] & 0xff : ' ';
+        position++;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+          return 0;
+        }
+        int b = read();
+        if (b == -1) {
+          return -1;
+        }
+        buffer[offset] = (byte) b;
+        int read = 1;
+        while (read < count && position < length) {
+          buffer[offset + read++] =
+              position < response.bodyText.length ? response.bodyText[position] : (byte) ' ';
+          position++;
+        }
+        return read;
+      }
+    }
+  }
+}
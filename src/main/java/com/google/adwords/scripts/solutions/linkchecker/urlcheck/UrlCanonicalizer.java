@@ -0,0 +1,138 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import com.google.common.base.Splitter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Rewrites the URLs of a batch to a canonical form before they are deduplicated, so that URLs
+ * which differ only in ways that do not affect the page retrieved are checked once. The case of the
+ * scheme and host, a default port, an empty path and the fragment are always normalized, as by
+ * {@link UrlResultKey#normalize}. Optionally, query parameters are sorted by name, and tracking
+ * parameters, such as {@code gclid}, are removed.
+ */
+public class UrlCanonicalizer {
+  private static final Splitter QUERY_SPLITTER = Splitter.on('&').omitEmptyStrings();
+
+  private final boolean sortQueryParameters;
+  private final List<String> strippedQueryParameters;
+
+  /**
+   * Creates a new canonicalizer.
+   *
+   * @param sortQueryParameters Whether to sort query parameters by name. Parameters of the same
+   *     name are kept in their original order.
+   * @param strippedQueryParameters The names of query parameters to remove, e.g. {@code gclid}, or
+   *     {@code null}. A trailing {@code *} matches any name with the given prefix, e.g.
+   *     {@code utm_*}. Names are matched regardless of case.
+   */
+  public UrlCanonicalizer(boolean sortQueryParameters, List<String> strippedQueryParameters) {
+    this.sortQueryParameters = sortQueryParameters;
+    this.strippedQueryParameters = new ArrayList<>();
+    if (strippedQueryParameters != null) {
+      for (String name : strippedQueryParameters) {
+        if (name != null && !name.isEmpty()) {
+          this.strippedQueryParameters.add(name.toLowerCase(Locale.ROOT));
+        }
+      }
+    }
+  }
+
+  /**
+   * Canonicalizes a list of URLs, mapping each canonical URL to the URLs it was derived from.
+   *
+   * @param urls The URLs as submitted.
+   * @return The distinct canonical URLs, in the order they were first submitted, each with the
+   *     distinct submitted URLs that it represents.
+   */
+  public Map<String, List<String>> canonicalize(Collection<String> urls) {
+    Map<String, List<String>> canonicalUrls = new LinkedHashMap<>();
+    for (String url : urls) {
+      String canonicalUrl = canonicalize(url);
+      List<String> originalUrls = canonicalUrls.get(canonicalUrl);
+      if (originalUrls == null) {
+        originalUrls = new ArrayList<>();
+        canonicalUrls.put(canonicalUrl, originalUrls);
+      }
+      if (!originalUrls.contains(url)) {
+        originalUrls.add(url);
+      }
+    }
+    return canonicalUrls;
+  }
+
+  /**
+   * Canonicalizes a URL.
+   *
+   * @param url The URL to canonicalize.
+   * @return The canonical URL, or the URL unchanged if it cannot be parsed.
+   */
+  public String canonicalize(String url) {
+    String normalized = UrlResultKey.normalize(url);
+    if (!sortQueryParameters && strippedQueryParameters.isEmpty()) {
+      return normalized;
+    }
+    URI uri;
+    try {
+      uri = new URI(normalized);
+    } catch (URISyntaxException e) {
+      return normalized;
+    }
+    String query = uri.getRawQuery();
+    if (query == null || uri.getRawFragment() != null) {
+      return normalized;
+    }
+    List<String> parameters = new ArrayList<>();
+    for (String parameter : QUERY_SPLITTER.split(query)) {
+      if (!isStripped(getName(parameter))) {
+        parameters.add(parameter);
+      }
+    }
+    if (sortQueryParameters) {
+      // The sort is stable, so repeated parameters, whose order may matter, keep their order.
+      Collections.sort(parameters, Comparator.comparing(UrlCanonicalizer::getName));
+    }
+    // There is no fragment, so the query is at the end.
+    String base = normalized.substring(0, normalized.length() - query.length() - 1);
+    return parameters.isEmpty() ? base : base + '?' + String.join("&", parameters);
+  }
+
+  private boolean isStripped(String name) {
+    String lowerCaseName = name.toLowerCase(Locale.ROOT);
+    for (String stripped : strippedQueryParameters) {
+      if (stripped.endsWith("*")
+          ? lowerCaseName.startsWith(stripped.substring(0, stripped.length() - 1))
+          : lowerCaseName.equals(stripped)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String getName(String parameter) {
+    int equals = parameter.indexOf('=');
+    return equals == -1 ? parameter : parameter.substring(0, equals);
+  }
+}
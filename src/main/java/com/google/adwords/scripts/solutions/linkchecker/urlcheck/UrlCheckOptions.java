@@ -0,0 +1,110 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+/**
+ * Holds the options that apply to every URL check in a {@code BatchOperation}. These are resolved
+ * once, from the batch and the global settings, and then shared by all of the checks.
+ */
+public class UrlCheckOptions {
+  /** Indicates that the whole of the page content should be searched. */
+  public static final long UNLIMITED_BODY_BYTES = 0;
+  /** Indicates that checks are only limited by the connect and read timeouts. */
+  public static final long NO_DEADLINE = 0;
+
+  private final FailureTextMatcher failureTextMatcher;
+  private final long maxBodyBytes;
+  private final long deadlineMillis;
+  private final ContentTypeFilter contentTypeFilter;
+  private final String userAgent;
+
+  /**
+   * Creates a new set of options.
+   *
+   * @param failureTextMatcher The compiled failure texts to search for on each page.
+   * @param maxBodyBytes The number of bytes of page content to search, after which the rest of the
+   *     page is ignored, or {@code UNLIMITED_BODY_BYTES}.
+   * @param userAgent The user-agent to set with each request.
+   */
+  public UrlCheckOptions(
+      FailureTextMatcher failureTextMatcher, long maxBodyBytes, String userAgent) {
+    this(failureTextMatcher, maxBodyBytes, NO_DEADLINE, userAgent);
+  }
+
+  /**
+   * Creates a new set of options, including a deadline for each check.
+   *
+   * @param failureTextMatcher The compiled failure texts to search for on each page.
+   * @param maxBodyBytes The number of bytes of page content to search, after which the rest of the
+   *     page is ignored, or {@code UNLIMITED_BODY_BYTES}.
+   * @param deadlineMillis The time after which each check is abandoned, however far it has got, or
+   *     {@code NO_DEADLINE}.
+   * @param userAgent The user-agent to set with each request.
+   */
+  public UrlCheckOptions(FailureTextMatcher failureTextMatcher, long maxBodyBytes,
+      long deadlineMillis, String userAgent) {
+    this(failureTextMatcher, maxBodyBytes, deadlineMillis, ContentTypeFilter.of(null), userAgent);
+  }
+
+  /**
+   * Creates a new set of options, including a deadline for each check and the content types of the
+   * pages to search.
+   *
+   * @param failureTextMatcher The compiled failure texts to search for on each page.
+   * @param maxBodyBytes The number of bytes of page content to search, after which the rest of the
+   *     page is ignored, or {@code UNLIMITED_BODY_BYTES}.
+   * @param deadlineMillis The time after which each check is abandoned, however far it has got, or
+   *     {@code NO_DEADLINE}.
+   * @param contentTypeFilter The content types of the pages to search. Other pages are judged by
+   *     status code alone.
+   * @param userAgent The user-agent to set with each request.
+   */
+  public UrlCheckOptions(FailureTextMatcher failureTextMatcher, long maxBodyBytes,
+      long deadlineMillis, ContentTypeFilter contentTypeFilter, String userAgent) {
+    this.failureTextMatcher = failureTextMatcher;
+    this.maxBodyBytes = maxBodyBytes;
+    this.deadlineMillis = deadlineMillis;
+    this.contentTypeFilter = contentTypeFilter;
+    this.userAgent = userAgent;
+  }
+
+  public FailureTextMatcher getFailureTextMatcher() {
+    return failureTextMatcher;
+  }
+
+  public long getMaxBodyBytes() {
+    return maxBodyBytes;
+  }
+
+  public boolean hasMaxBodyBytes() {
+    return maxBodyBytes != UNLIMITED_BODY_BYTES;
+  }
+
+  public long getDeadlineMillis() {
+    return deadlineMillis;
+  }
+
+  public boolean hasDeadline() {
+    return deadlineMillis != NO_DEADLINE;
+  }
+
+  public ContentTypeFilter getContentTypeFilter() {
+    return contentTypeFilter;
+  }
+
+  public String getUserAgent() {
+    return userAgent;
+  }
+}
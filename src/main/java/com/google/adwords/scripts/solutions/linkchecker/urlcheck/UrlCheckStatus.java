@@ -19,6 +19,8 @@ import com.google.api.server.spi.config.ApiResourceProperty;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -47,6 +49,40 @@ public class UrlCheckStatus {
   private String message;
   private int httpStatusCode;
 
+  // Whether only the start of the page was searched for failure texts, as it was longer than the
+  // maximum size allowed for the batch.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private boolean truncated;
+
+  // Whether the page was not searched for failure texts, as its content type is not searched.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private boolean contentSkipped;
+
+  // Whether the check was abandoned as it did not complete within the deadline for the batch.
+  private boolean timedOut;
+
+  // The number of times the check was retried after failing transiently.
+  private int retryCount;
+
+  // The URLs, as submitted, that were canonicalized to this URL, or null where the only one is the
+  // URL itself.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private List<String> originalUrls;
+
+  // The number of bytes of page content read as transferred, which may be compressed, and once
+  // decoded. Both are zero where the content was not read.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private long transferredBytes;
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private long decodedBytes;
+
+  // Where the tasks of a batch share its URLs, the task that has claimed this URL to check it, and
+  // the time at which the claim lapses if the task has not saved the outcome by then.
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private String leaseOwner;
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private long leaseExpiryMillis;
+
   public UrlCheckStatus() {};
 
   private UrlCheckStatus(String url, String message) {
@@ -81,6 +117,117 @@ public class UrlCheckStatus {
     return httpStatusCode;
   }
 
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public void setTruncated(boolean truncated) {
+    this.truncated = truncated;
+  }
+
+  public boolean isContentSkipped() {
+    return contentSkipped;
+  }
+
+  public void setContentSkipped(boolean contentSkipped) {
+    this.contentSkipped = contentSkipped;
+  }
+
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+
+  public void setTimedOut(boolean timedOut) {
+    this.timedOut = timedOut;
+  }
+
+  public int getRetryCount() {
+    return retryCount;
+  }
+
+  public void incrementRetryCount() {
+    retryCount++;
+  }
+
+  public long getTransferredBytes() {
+    return transferredBytes;
+  }
+
+  public long getDecodedBytes() {
+    return decodedBytes;
+  }
+
+  /**
+   * Records how much of the page content was read.
+   *
+   * @param transferredBytes The number of bytes read as transferred, which may be compressed.
+   * @param decodedBytes The number of bytes read once decoded.
+   */
+  public void setContentBytes(long transferredBytes, long decodedBytes) {
+    this.transferredBytes = transferredBytes;
+    this.decodedBytes = decodedBytes;
+  }
+
+  /**
+   * Creates a copy of the status, with a different URL.
+   *
+   * @param url The URL of the copy.
+   * @return The new {@code UrlCheckStatus} object.
+   */
+  public UrlCheckStatus copyWithUrl(String url) {
+    UrlCheckStatus copy = new UrlCheckStatus(url, message);
+    copy.status = status;
+    copy.httpStatusCode = httpStatusCode;
+    copy.truncated = truncated;
+    copy.contentSkipped = contentSkipped;
+    copy.timedOut = timedOut;
+    copy.retryCount = retryCount;
+    copy.transferredBytes = transferredBytes;
+    copy.decodedBytes = decodedBytes;
+    return copy;
+  }
+
+  /**
+   * Gets the URLs, as submitted, whose outcome this is.
+   *
+   * @return The submitted URLs, which may be just the URL itself.
+   */
+  public List<String> getOriginalUrls() {
+    return originalUrls != null ? originalUrls : Collections.singletonList(url);
+  }
+
+  public void setOriginalUrls(List<String> originalUrls) {
+    this.originalUrls =
+        originalUrls.size() == 1 && originalUrls.get(0).equals(url) ? null : originalUrls;
+  }
+
+  /**
+   * Determines whether the URL may be claimed by a task: It must not have been checked, nor be
+   * claimed by another task, unless that claim has lapsed.
+   *
+   * @param owner The task wanting to claim the URL.
+   * @param nowMillis The current time.
+   * @return {@code true} if the URL may be claimed.
+   */
+  public boolean isClaimableBy(String owner, long nowMillis) {
+    return status == Status.NOT_STARTED
+        && (leaseOwner == null || leaseOwner.equals(owner) || leaseExpiryMillis < nowMillis);
+  }
+
+  public boolean isLeasedBy(String owner) {
+    return owner.equals(leaseOwner);
+  }
+
+  public void setLease(String owner, long expiryMillis) {
+    leaseOwner = owner;
+    leaseExpiryMillis = expiryMillis;
+  }
+
+  public void clearLease() {
+    leaseOwner = null;
+    leaseExpiryMillis = 0;
+  }
+
   public void setStatus(Status status, int httpStatusCode, String message) {
     this.status = status;
     this.httpStatusCode = httpStatusCode;
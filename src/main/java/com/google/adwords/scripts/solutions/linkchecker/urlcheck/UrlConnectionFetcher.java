@@ -0,0 +1,40 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Fetches URLs through the connections provided by the JVM: URLFetch on App Engine, and the JDK
+ * HTTP client, with its keep-alive connection cache, elsewhere.
+ *
+ * <p>Neither speaks HTTP/2, so checks for the same host cannot be multiplexed over one connection:
+ * With URLFetch, the connections are made by the URLFetch service rather than the application, and
+ * the Java 8 runtime has no HTTP/2 client of its own. An HTTP/2 client would be bound as another
+ * {@code Fetcher}, given the native URL stream handler.
+ */
+public class UrlConnectionFetcher implements Fetcher {
+  @Override
+  public HttpURLConnection open(URL url) throws IOException {
+    URLConnection urlConnection = url.openConnection();
+    if (!(urlConnection instanceof HttpURLConnection)) {
+      throw new IOException("Unsupported protocol: " + url.getProtocol());
+    }
+    return (HttpURLConnection) urlConnection;
+  }
+}
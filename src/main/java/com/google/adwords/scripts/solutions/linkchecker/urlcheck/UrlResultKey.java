@@ -0,0 +1,108 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import com.google.common.hash.Hashing;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Creates keys identifying the result of checking a URL, so that results can be reused by later
+ * checks of the same page, with the same options. The key covers the normalized URL, and those
+ * options that affect the outcome, such as the failure texts.
+ */
+public final class UrlResultKey {
+  private UrlResultKey() {}
+
+  /**
+   * Creates the key for the result of checking a URL with the given options. As memcache keys are
+   * limited in length, the key is a hash of these details.
+   *
+   * @param url The URL to be checked.
+   * @param options The options the URL is to be checked with.
+   * @return The key.
+   */
+  public static String of(String url, UrlCheckOptions options) {
+    StringBuilder key = new StringBuilder(normalize(url));
+    // The order in which the failure texts were supplied does not affect the outcome, other than
+    // which text is reported, so they are sorted to allow more reuse.
+    FailureTextMatcher matcher = options.getFailureTextMatcher();
+    appendSorted(key, matcher.getFailureMatchTexts());
+    appendSorted(key, matcher.getFailureMatchPatterns());
+    key.append('\0').append(matcher.isCaseInsensitive());
+    key.append('\0').append(options.getMaxBodyBytes());
+    appendSorted(key, options.getContentTypeFilter().getContentTypes());
+    return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * Appends a list of values to a key, preceded by their number so that where one list ends and
+   * the next begins is part of the key: Otherwise a text would give the same key as a pattern.
+   */
+  private static void appendSorted(StringBuilder key, Collection<String> values) {
+    Set<String> sorted = new TreeSet<>(values);
+    key.append('\0').append(sorted.size());
+    for (String value : sorted) {
+      key.append('\0').append(value);
+    }
+  }
+
+  /**
+   * Normalizes the parts of a URL that do not affect which page is retrieved: The case of the
+   * scheme and host, a default port, an empty path and the fragment.
+   *
+   * @param url The URL to normalize.
+   * @return The normalized URL, or the URL unchanged if it cannot be parsed.
+   */
+  public static String normalize(String url) {
+    try {
+      URI uri = new URI(url);
+      if (uri.getScheme() == null || uri.getRawAuthority() == null) {
+        return url;
+      }
+      String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+      int port = uri.getPort();
+      if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+        port = -1;
+      }
+      String host = uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : null;
+      if (host == null) {
+        return url;
+      }
+      StringBuilder normalized = new StringBuilder(scheme).append("://");
+      if (uri.getRawUserInfo() != null) {
+        normalized.append(uri.getRawUserInfo()).append('@');
+      }
+      normalized.append(host);
+      if (port != -1) {
+        normalized.append(':').append(port);
+      }
+      String path = uri.getRawPath();
+      normalized.append(path == null || path.isEmpty() ? "/" : path);
+      if (uri.getRawQuery() != null) {
+        normalized.append('?').append(uri.getRawQuery());
+      }
+      return normalized.toString();
+    } catch (URISyntaxException e) {
+      return url;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.benchmark;
+
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.FailureTextMatcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.PooledInflaterInputStream;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the heap allocated to decode and search each gzip page, between a new {@code
+ * GZIPInputStream}, {@code InputStreamReader} and {@code BufferedReader} per page, as the {@code
+ * UrlCheckerService} used to, and pooled inflaters with a per-thread read buffer. Allocation is
+ * measured for the benchmark thread alone, so is unaffected by the rest of the JVM.
+ *
+ * <p>Run with:
+ * <pre>
+ * PACKAGE=com.google.adwords.scripts.solutions.linkchecker.benchmark
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=$PACKAGE.AllocationBenchmark
+ * </pre>
+ */
+public class AllocationBenchmark {
+  private static final int NUM_CHECKS = 2000;
+  private static final List<String> FAILURE_MATCH_TEXTS = ImmutableList.of("out of stock");
+  private static final FailureTextMatcher MATCHER =
+      FailureTextMatcher.compile(FAILURE_MATCH_TEXTS);
+
+  public static void main(String[] args) throws IOException {
+    byte[] page = createGzipPage();
+
+    // Warm up both paths before measuring.
+    runPerPageDecoders(page, NUM_CHECKS);
+    runPooledDecoders(page, NUM_CHECKS);
+
+    long start = allocatedBytes();
+    runPerPageDecoders(page, NUM_CHECKS);
+    report("Decoder and readers per page", start);
+
+    start = allocatedBytes();
+    runPooledDecoders(page, NUM_CHECKS);
+    report("Pooled decoders", start);
+  }
+
+  private static int runPerPageDecoders(byte[] page, int numChecks) throws IOException {
+    int found = 0;
+    for (int i = 0; i < numChecks; i++) {
+      InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(page));
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.contains(FAILURE_MATCH_TEXTS.get(0))) {
+            found++;
+            break;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  private static int runPooledDecoders(byte[] page, int numChecks) throws IOException {
+    int found = 0;
+    for (int i = 0; i < numChecks; i++) {
+      try (InputStream inputStream =
+          PooledInflaterInputStream.gzip(new ByteArrayInputStream(page))) {
+        if (MATCHER.find(inputStream, StandardCharsets.UTF_8) != null) {
+          found++;
+        }
+      }
+    }
+    return found;
+  }
+
+  /** Creates a page of about 64 kilobytes, in lines of typical length, without the failure text. */
+  private static byte[] createGzipPage() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      for (int i = 0; i < 1000; i++) {
+        gzip.write(("<div class=\"product\" id=\"p" + i + "\">This product is in stock.</div>\n")
+            .getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void report(String name, long startBytes) {
+    long bytesPerCheck = (allocatedBytes() - startBytes) / NUM_CHECKS;
+    System.out.printf("%-30s %,10d bytes allocated per check%n", name, bytesPerCheck);
+  }
+}
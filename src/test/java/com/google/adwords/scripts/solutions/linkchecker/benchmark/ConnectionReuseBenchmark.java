@@ -0,0 +1,171 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.benchmark;
+
+import com.google.adwords.scripts.solutions.linkchecker.service.UrlCheckerService;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the cost of checking URLs on a single host with a new connection per check, as the
+ * {@code UrlCheckerService} used to, against the reuse of kept-alive connections. A local server
+ * counts the client connections accepted, each of which represents a TCP (and, for HTTPS, TLS)
+ * handshake.
+ *
+ * <p>Run with:
+ * <pre>
+ * PACKAGE=com.google.adwords.scripts.solutions.linkchecker.benchmark
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=$PACKAGE.ConnectionReuseBenchmark
+ * </pre>
+ */
+public class ConnectionReuseBenchmark {
+  private static final int NUM_CHECKS = 500;
+  private static final List<String> FAILURE_MATCH_TEXTS = ImmutableList.of("out of stock");
+  private static final byte[] PAGE =
+      "<html><body>This product is in stock.</body></html>".getBytes(StandardCharsets.UTF_8);
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private ServerSocket serverSocket;
+
+  public static void main(String[] args) throws IOException {
+    ConnectionReuseBenchmark benchmark = new ConnectionReuseBenchmark();
+    benchmark.start();
+    try {
+      // Warm up both paths before measuring.
+      benchmark.runNewConnectionPerCheck(NUM_CHECKS);
+      benchmark.runUrlCheckerService(NUM_CHECKS);
+
+      benchmark.connections.set(0);
+      long start = System.nanoTime();
+      benchmark.runNewConnectionPerCheck(NUM_CHECKS);
+      report("New connection per check", start, benchmark.connections.get());
+
+      benchmark.connections.set(0);
+      start = System.nanoTime();
+      benchmark.runUrlCheckerService(NUM_CHECKS);
+      report("UrlCheckerService", start, benchmark.connections.get());
+    } finally {
+      benchmark.stop();
+    }
+  }
+
+  /**
+   * Starts a minimal HTTP/1.1 server that serves the same page for every request, and honours
+   * "Connection: close". Each response is written in one go, to avoid Nagle's algorithm skewing
+   * the timings of kept-alive connections.
+   */
+  private void start() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final byte[] response =
+        ("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + PAGE.length
+                + "\r\n\r\n" + new String(PAGE, StandardCharsets.UTF_8))
+            .getBytes(StandardCharsets.UTF_8);
+    Thread acceptor =
+        new Thread(
+            () -> {
+              while (!serverSocket.isClosed()) {
+                try {
+                  Socket socket = serverSocket.accept();
+                  connections.incrementAndGet();
+                  Thread handler = new Thread(() -> serve(socket, response));
+                  handler.setDaemon(true);
+                  handler.start();
+                } catch (IOException e) {
+                  // The server has been stopped.
+                }
+              }
+            });
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  private static void serve(Socket socket, byte[] response) {
+    try (Socket s = socket) {
+      s.setTcpNoDelay(true);
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+      OutputStream out = s.getOutputStream();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        boolean close = false;
+        while (line != null && !line.isEmpty()) {
+          close |= line.equalsIgnoreCase("Connection: close");
+          line = reader.readLine();
+        }
+        out.write(response);
+        out.flush();
+        if (close) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      // The client has gone away.
+    }
+  }
+
+  private void stop() throws IOException {
+    serverSocket.close();
+  }
+
+  private String url(int i) {
+    return "http://localhost:" + serverSocket.getLocalPort() + "/product/" + i;
+  }
+
+  private void runUrlCheckerService(int numChecks) {
+    UrlCheckerService urlCheckerService = new UrlCheckerService();
+    for (int i = 0; i < numChecks; i++) {
+      urlCheckerService.check(UrlCheckStatus.fromUrl(url(i)), FAILURE_MATCH_TEXTS);
+    }
+  }
+
+  /** Fetches each page in the same way as the service did before connections were reused. */
+  private void runNewConnectionPerCheck(int numChecks) throws IOException {
+    byte[] buffer = new byte[8192];
+    for (int i = 0; i < numChecks; i++) {
+      HttpURLConnection urlConnection = (HttpURLConnection) new URL(url(i)).openConnection();
+      // Equivalent to the JVM-wide http.keepAlive=false property the service used to set.
+      urlConnection.setRequestProperty("Connection", "close");
+      try {
+        urlConnection.getResponseCode();
+        try (InputStream in = urlConnection.getInputStream()) {
+          while (in.read(buffer) != -1) {}
+        }
+      } finally {
+        urlConnection.disconnect();
+      }
+    }
+  }
+
+  private static void report(String name, long startNanos, int numConnections) {
+    double micros = (System.nanoTime() - startNanos) / 1000.0 / NUM_CHECKS;
+    System.out.printf(
+        "%-26s %4d checks, %4d connections, %8.1f us/check%n",
+        name, NUM_CHECKS, numConnections, micros);
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.adwords.scripts.solutions.linkchecker.datastore;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -24,14 +25,19 @@ import com.google.adwords.scripts.solutions.linkchecker.model.BatchOperationStat
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
 import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
 import com.google.adwords.scripts.solutions.linkchecker.model.SharedKey;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.collect.ImmutableList;
 import com.googlecode.objectify.NotFoundException;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
 import java.lang.reflect.Field;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -228,6 +234,147 @@ public class DatastoreTest {
     assertEquals(BatchOperationStatus.COMPLETE, op.getStatus());
   }
 
+  @Test
+  public void testClaimUrls() {
+    List<String> urls =
+        ImmutableList.of("http://www.example.com/1", "http://www.example.com/2",
+            "http://www.example.com/3", "http://www.example.com/4");
+    BatchOperation op = new BatchOperation(TEST_ACCOUNT_ID, null);
+    BatchSubOperation subOp = new BatchSubOperation(op, urls);
+    op.addSubOperations(ImmutableList.of(subOp));
+    datastore.saveBatchOperationAndChildren(op, ImmutableList.of(subOp));
+    String opId = op.getBatchId();
+
+    List<UrlCheckStatus> claimed =
+        datastore.claimUrls(TEST_ACCOUNT_ID, opId, subOp.getId(), "a", 2, 60_000);
+    assertEquals(2, claimed.size());
+    assertEquals("http://www.example.com/1", claimed.get(0).getUrl());
+    // A claim that has already lapsed.
+    claimed = datastore.claimUrls(TEST_ACCOUNT_ID, opId, subOp.getId(), "b", 1, -1);
+    assertEquals("http://www.example.com/3", claimed.get(0).getUrl());
+
+    claimed = datastore.claimUrls(TEST_ACCOUNT_ID, opId, subOp.getId(), "c", 10, 60_000);
+    assertEquals(2, claimed.size());
+    assertEquals("http://www.example.com/3", claimed.get(0).getUrl());
+    assertTrue(
+        datastore.claimUrls(TEST_ACCOUNT_ID, opId, subOp.getId(), "d", 10, 60_000).isEmpty());
+    // The URLs claimed by a task may be claimed again by the same task.
+    assertEquals(
+        2, datastore.claimUrls(TEST_ACCOUNT_ID, opId, subOp.getId(), "a", 10, 60_000).size());
+  }
+
+  @Test
+  public void testSaveClaimedUrls() {
+    BatchOperation op = new BatchOperation(TEST_ACCOUNT_ID, null);
+    BatchSubOperation subOp = new BatchSubOperation(op, ImmutableList.of("http://example.com"));
+    BatchSubOperation subOp2 = new BatchSubOperation(op, ImmutableList.of("http://example.org"));
+    List<BatchSubOperation> subOps = ImmutableList.of(subOp, subOp2);
+    op.addSubOperations(subOps);
+    datastore.saveBatchOperationAndChildren(op, subOps);
+    String opId = op.getBatchId();
+
+    UrlCheckStatus status =
+        datastore.claimUrls(TEST_ACCOUNT_ID, opId, subOp.getId(), "a", 10, 60_000).get(0);
+    status.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    datastore.saveClaimedUrls(
+        TEST_ACCOUNT_ID, opId, subOp.getId(), "a", ImmutableList.of(status), 1, 0);
+    // Saving again does not count the sub operation as complete twice.
+    datastore.saveClaimedUrls(
+        TEST_ACCOUNT_ID, opId, subOp.getId(), "a", ImmutableList.of(status), 0, 0);
+    Datastore.ofy().clear();
+    BatchSubOperation saved =
+        datastore.loadBatchSubOperation(TEST_ACCOUNT_ID, opId, subOp.getId());
+    assertEquals(UrlCheckStatus.Status.SUCCESS, saved.getUrlStatuses().get(0).getStatus());
+    assertEquals(1, saved.getCacheHitCount());
+    assertTrue(saved.isComplete());
+    assertEquals(
+        BatchOperationStatus.PROCESSING,
+        datastore.loadBatchOperation(TEST_ACCOUNT_ID, opId).getStatus());
+
+    // Outcomes are only saved by the task holding the claim.
+    UrlCheckStatus status2 =
+        datastore.claimUrls(TEST_ACCOUNT_ID, opId, subOp2.getId(), "a", 10, 60_000).get(0);
+    status2.setStatus(UrlCheckStatus.Status.FAILURE, 404, "404");
+    datastore.saveClaimedUrls(
+        TEST_ACCOUNT_ID, opId, subOp2.getId(), "b", ImmutableList.of(status2), 0, 1);
+    Datastore.ofy().clear();
+    assertEquals(
+        BatchOperationStatus.PROCESSING,
+        datastore.loadBatchOperation(TEST_ACCOUNT_ID, opId).getStatus());
+    datastore.saveClaimedUrls(
+        TEST_ACCOUNT_ID, opId, subOp2.getId(), "a", ImmutableList.of(status2), 0, 1);
+    Datastore.ofy().clear();
+    assertEquals(
+        BatchOperationStatus.COMPLETE,
+        datastore.loadBatchOperation(TEST_ACCOUNT_ID, opId).getStatus());
+  }
+
+  @Test
+  public void testSaveUrlOutcomes() {
+    BatchOperation op = new BatchOperation(TEST_ACCOUNT_ID, null);
+    BatchSubOperation subOp = new BatchSubOperation(
+        op, ImmutableList.of("http://example.com", "http://example.org"));
+    List<BatchSubOperation> subOps = ImmutableList.of(subOp);
+    op.addSubOperations(subOps);
+    datastore.saveBatchOperationAndChildren(op, subOps);
+    String opId = op.getBatchId();
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://example.org");
+    status.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    datastore.saveUrlOutcomes(TEST_ACCOUNT_ID, opId, subOp.getId(), ImmutableList.of(status), 0, 1);
+    Datastore.ofy().clear();
+    BatchSubOperation saved =
+        datastore.loadBatchSubOperation(TEST_ACCOUNT_ID, opId, subOp.getId());
+    assertEquals(UrlCheckStatus.Status.NOT_STARTED, saved.getUrlStatuses().get(0).getStatus());
+    assertEquals(UrlCheckStatus.Status.SUCCESS, saved.getUrlStatuses().get(1).getStatus());
+    assertEquals(1, saved.getCacheMissCount());
+    // Completion is left to the task, which saves the whole sub operation when it finishes.
+    assertFalse(saved.isComplete());
+    assertEquals(
+        BatchOperationStatus.PROCESSING,
+        datastore.loadBatchOperation(TEST_ACCOUNT_ID, opId).getStatus());
+  }
+
+  @Test
+  public void testContendedTransactionRetried() {
+    final AtomicInteger attempts = new AtomicInteger();
+    String result = Datastore.transactWithBackoff(
+        new Work<String>() {
+          @Override
+          public String run() {
+            if (attempts.incrementAndGet() < 3) {
+              throw new ConcurrentModificationException("Too much contention");
+            }
+            return "saved";
+          }
+        },
+        Datastore.MAX_TRANSACTION_ATTEMPTS,
+        1);
+    assertEquals("saved", result);
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void testContendedTransactionGivesUp() {
+    final AtomicInteger attempts = new AtomicInteger();
+    try {
+      Datastore.transactWithBackoff(
+          new VoidWork() {
+            @Override
+            public void vrun() {
+              attempts.incrementAndGet();
+              throw new ConcurrentModificationException("Too much contention");
+            }
+          },
+          4,
+          1);
+      fail();
+    } catch (ConcurrentModificationException e) {
+      // The task fails, and is retried by the queue.
+      assertEquals(4, attempts.get());
+    }
+  }
+
   @Test
   public void testSaveBatchOperationAndChildren() {
     List<String> urls = ImmutableList.of("http://www.example.com");
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import com.google.appengine.repackaged.com.google.common.collect.Lists;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.util.Closeable;
@@ -75,4 +76,12 @@ public class BatchSubOperationTest {
     BatchOperation op = new BatchOperation(TEST_ACCOUNT_ID, null);
     BatchSubOperation subOp = new BatchSubOperation(op, urls);
   }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUrlsTooLong() {
+    String path = Strings.repeat("a", BatchSubOperation.MAX_URL_BYTES / 2);
+    List<String> urls = Lists.newArrayList("http://test/1" + path, "http://test/2" + path);
+    BatchOperation op = new BatchOperation(TEST_ACCOUNT_ID, null);
+    new BatchSubOperation(op, urls);
+  }
 }
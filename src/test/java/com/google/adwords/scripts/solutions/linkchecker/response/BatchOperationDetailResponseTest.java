@@ -24,6 +24,7 @@ import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.util.Closeable;
@@ -95,5 +96,71 @@ public class BatchOperationDetailResponseTest {
     assertEquals(BatchOperationStatus.COMPLETE, response2.getStatus());
     assertEquals(1, response2.getErrors().size());
     assertEquals(1, response2.getCheckedUrlCount());
+    assertEquals(0, response2.getTruncatedUrlCount());
+    assertEquals(0, response2.getContentSkippedUrlCount());
+  }
+
+  @Test
+  public void reportsOriginalUrlsTest()
+      throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+    BatchOperation op = new BatchOperation(TEST_ACCOUNT_ID, null);
+    BatchSubOperation subOp = new BatchSubOperation(
+        op,
+        ImmutableList.of("http://www.example.com/"),
+        ImmutableMap.<String, List<String>>of(
+            "http://www.example.com/",
+            ImmutableList.of("HTTP://WWW.EXAMPLE.COM", "http://www.example.com/#top")));
+    subOp.getUrlStatuses().get(0).setStatus(UrlCheckStatus.Status.FAILURE, 404, "Not found");
+    List<BatchSubOperation> subOps = ImmutableList.of(subOp);
+    op.addSubOperations(subOps);
+
+    Field statusField = op.getClass().getDeclaredField("status");
+    statusField.setAccessible(true);
+    statusField.set(op, BatchOperationStatus.COMPLETE);
+    ofy().save().entity(op).now();
+    ofy().save().entities(subOps).now();
+
+    // The URL was checked once, but is reported as each of the URLs that were submitted.
+    BatchOperationDetailResponse response = BatchOperationDetailResponse.fromBatchOperation(op);
+    assertEquals(2, response.getErrors().size());
+    assertEquals("HTTP://WWW.EXAMPLE.COM", response.getErrors().get(0).getUrl());
+    assertEquals("http://www.example.com/#top", response.getErrors().get(1).getUrl());
+    assertEquals("Not found", response.getErrors().get(1).getMessage());
+    assertEquals(2, response.getCheckedUrlCount());
+  }
+
+  @Test
+  public void countsOriginalUrlsTest()
+      throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+    BatchOperation op = new BatchOperation(TEST_ACCOUNT_ID, null);
+    BatchSubOperation subOp = new BatchSubOperation(
+        op,
+        ImmutableList.of("http://www.example.com/", "http://www.example.com/logo.png"),
+        ImmutableMap.<String, List<String>>of(
+            "http://www.example.com/",
+            ImmutableList.of("HTTP://WWW.EXAMPLE.COM", "http://www.example.com/#top"),
+            "http://www.example.com/logo.png",
+            ImmutableList.of(
+                "http://www.example.com/logo.png", "http://www.example.com/logo.png#full")));
+    UrlCheckStatus page = subOp.getUrlStatuses().get(0);
+    page.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    page.setTruncated(true);
+    UrlCheckStatus image = subOp.getUrlStatuses().get(1);
+    image.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    image.setContentSkipped(true);
+    List<BatchSubOperation> subOps = ImmutableList.of(subOp);
+    op.addSubOperations(subOps);
+
+    Field statusField = op.getClass().getDeclaredField("status");
+    statusField.setAccessible(true);
+    statusField.set(op, BatchOperationStatus.COMPLETE);
+    ofy().save().entity(op).now();
+    ofy().save().entities(subOps).now();
+
+    // Each count is of the URLs submitted, rather than of the pages checked for them.
+    BatchOperationDetailResponse response = BatchOperationDetailResponse.fromBatchOperation(op);
+    assertEquals(4, response.getCheckedUrlCount());
+    assertEquals(2, response.getTruncatedUrlCount());
+    assertEquals(2, response.getContentSkippedUrlCount());
   }
 }
@@ -15,21 +15,31 @@
 package com.google.adwords.scripts.solutions.linkchecker.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchOperation;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
 import com.google.adwords.scripts.solutions.linkchecker.request.UrlCheckRequest;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.util.Closeable;
+import java.lang.reflect.Field;
 import java.util.List;
 import org.junit.After;
 import org.junit.Before;
@@ -46,6 +56,7 @@ public class BatchOperationServiceTest {
 
   private Datastore datastore;
   private TaskService taskService;
+  private Settings settings;
   private BatchOperationService batchOperationService;
 
   @Before
@@ -56,7 +67,10 @@ public class BatchOperationServiceTest {
     closeable = ObjectifyService.begin();
     datastore = mock(Datastore.class);
     taskService = mock(TaskService.class);
-    batchOperationService = new BatchOperationService(datastore, taskService);
+    SettingsService settingsService = mock(SettingsService.class);
+    settings = Settings.createDefaultSettings();
+    when(settingsService.getSettings()).thenReturn(settings);
+    batchOperationService = new BatchOperationService(datastore, taskService, settingsService);
   }
 
   @After
@@ -76,16 +90,88 @@ public class BatchOperationServiceTest {
     batchOperationService.createNewBatchOperation(TEST_ACCOUNT_ID, request);
   }
 
+  @Test(expected = IllegalArgumentException.class)
+  public void createNewBatchInvalidContentType() throws InterruptedException {
+    UrlCheckRequest request = new UrlCheckRequest(Lists.newArrayList("http://test"),
+        Lists.newArrayList("out of stock"), null, null, Lists.newArrayList("not a type"));
+    batchOperationService.createNewBatchOperation(TEST_ACCOUNT_ID, request);
+  }
+
+  @Test
+  public void createNewBatchInvalidContentTypeRejectedFirst() throws Exception {
+    Field field = Settings.class.getDeclaredField("targetTaskDurationSeconds");
+    field.setAccessible(true);
+    field.set(settings, 180);
+    UrlCheckRequest request = new UrlCheckRequest(Lists.newArrayList("http://test"),
+        Lists.newArrayList("out of stock"), null, null, Lists.newArrayList("not a type"));
+    try {
+      batchOperationService.createNewBatchOperation(TEST_ACCOUNT_ID, request);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // The host latencies are not loaded for a batch that is rejected.
+      verify(datastore, never()).loadHostLatencyProfiles(anyCollectionOf(String.class));
+    }
+  }
+
+  @Test
+  public void createNewBatchSplitsLongUrls() throws InterruptedException {
+    // Each URL is submitted in two forms, both of which are held by the sub operation.
+    String path = Strings.repeat("a", 4000);
+    List<String> urls = Lists.newArrayList();
+    for (int i = 0; i < BatchOperationService.DEFAULT_SUB_OPERATION_URLS; i++) {
+      urls.add("http://test/" + i + path);
+      urls.add("http://test/" + i + path + "#top");
+    }
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<BatchSubOperation>> arg2 =
+        (ArgumentCaptor<List<BatchSubOperation>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(
+            List.class);
+
+    batchOperationService.createNewBatchOperation(TEST_ACCOUNT_ID, new UrlCheckRequest(urls));
+
+    verify(datastore).saveBatchOperationAndChildren(isA(BatchOperation.class), arg2.capture());
+    List<Integer> sizes = Lists.newArrayList();
+    for (BatchSubOperation subOp : arg2.getValue()) {
+      sizes.add(subOp.getUrlStatuses().size());
+    }
+    // 100 URLs of 12 KB each would exceed the limit of 512 KB for a sub operation.
+    assertEquals(ImmutableList.of(43, 43, 14), sizes);
+  }
+
+  @Test
+  public void createNewBatchCanonicalizesUrls() throws InterruptedException {
+    ArgumentCaptor<BatchOperation> arg1 = ArgumentCaptor.forClass(BatchOperation.class);
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<BatchSubOperation>> arg2 =
+        (ArgumentCaptor<List<BatchSubOperation>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(
+            List.class);
+    UrlCheckRequest request = new UrlCheckRequest(
+        Lists.newArrayList("HTTP://Example.com/a", "http://example.com/a#top", "http://test"));
+
+    batchOperationService.createNewBatchOperation(TEST_ACCOUNT_ID, request);
+
+    verify(datastore).saveBatchOperationAndChildren(arg1.capture(), arg2.capture());
+    List<UrlCheckStatus> statuses = arg2.getValue().get(0).getUrlStatuses();
+    assertEquals(2, statuses.size());
+    assertEquals("http://example.com/a", statuses.get(0).getUrl());
+    assertEquals(
+        Lists.newArrayList("HTTP://Example.com/a", "http://example.com/a#top"),
+        statuses.get(0).getOriginalUrls());
+    assertEquals(Lists.newArrayList("http://test"), statuses.get(1).getOriginalUrls());
+  }
+
   @Test
   public void createNewBatchTest() throws InterruptedException {
     List<BatchSubOperation> subOps = Lists.newArrayList();
 
     // The expected URL count, number of batches, and URLs in the last batch.
     // Test with slightly fewer than the maximum to make the last sub batch
-    // contain not a full BatchSubOperation.MAX_URLS worth.
+    // contain not a full BatchOperationService.DEFAULT_SUB_OPERATION_URLS worth.
     int expectedUrlCount = BatchOperationService.MAX_BATCH_URLS - 25;
-    int expectedSubBatchCount = expectedUrlCount / BatchSubOperation.MAX_URLS + 1;
-    int expectedLastBatchCount = expectedUrlCount % BatchSubOperation.MAX_URLS;
+    int expectedSubBatchCount =
+        expectedUrlCount / BatchOperationService.DEFAULT_SUB_OPERATION_URLS + 1;
+    int expectedLastBatchCount =
+        expectedUrlCount % BatchOperationService.DEFAULT_SUB_OPERATION_URLS;
 
     ArgumentCaptor<BatchOperation> arg1 = ArgumentCaptor.forClass(BatchOperation.class);
     ArgumentCaptor<? extends List> arg2 = ArgumentCaptor.forClass(subOps.getClass());
@@ -107,4 +193,38 @@ public class BatchOperationServiceTest {
     verify(taskService, times(1))
         .createTasksForBatchSubOperations(anyString(), isA(subOps.getClass()));
   }
+
+  @Test
+  public void createNewBatchSizedByTaskDuration() throws Exception {
+    Field field = Settings.class.getDeclaredField("targetTaskDurationSeconds");
+    field.setAccessible(true);
+    field.set(settings, 180);
+    // The slow host takes 5 seconds for each URL, and the other hosts are unknown so are assumed
+    // to take 1 second, the same as the default rate.
+    when(datastore.loadHostLatencyProfiles(anyCollectionOf(String.class)))
+        .thenReturn(ImmutableList.of(
+            new HostLatencyProfile("slow.example.com", ImmutableList.of(1000),
+                ImmutableList.of(4000))));
+    List<String> urls = Lists.newArrayList();
+    for (int i = 0; i < 72; i++) {
+      urls.add("http://slow.example.com/" + i);
+    }
+    for (int i = 0; i < 240; i++) {
+      urls.add("http://www.example.com/" + i);
+    }
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<BatchSubOperation>> arg2 =
+        (ArgumentCaptor<List<BatchSubOperation>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(
+            List.class);
+
+    batchOperationService.createNewBatchOperation(TEST_ACCOUNT_ID, new UrlCheckRequest(urls));
+
+    verify(datastore).saveBatchOperationAndChildren(isA(BatchOperation.class), arg2.capture());
+    List<Integer> sizes = Lists.newArrayList();
+    for (BatchSubOperation subOp : arg2.getValue()) {
+      sizes.add(subOp.getUrlStatuses().size());
+    }
+    // Each task is expected to take no more than 3 minutes.
+    assertEquals(ImmutableList.of(36, 36, 120, 120), sizes);
+  }
 }
@@ -0,0 +1,204 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.service.CircuitBreakerService.State;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.common.base.Ticker;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the CircuitBreakerService class. */
+public class CircuitBreakerServiceTest {
+  private static final String HOST = "www.example.com";
+
+  private long nowNanos;
+  private CircuitBreakerService circuitBreaker;
+  private Settings settings;
+
+  @Before
+  public void setUp() throws Exception {
+    circuitBreaker = new CircuitBreakerService(new Ticker() {
+      @Override
+      public long read() {
+        return nowNanos;
+      }
+    });
+    settings = Settings.createDefaultSettings();
+    setField("circuitBreakerFailureThreshold", 3);
+    setField("circuitBreakerCooldownSeconds", 30);
+    circuitBreaker.configure(settings);
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    circuitBreaker.configure(Settings.createDefaultSettings());
+    for (int i = 0; i < 10; i++) {
+      circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, failure());
+    }
+    assertEquals(State.CLOSED, circuitBreaker.getState(HOST));
+  }
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, failure());
+    circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, failure());
+    // A response resets the count.
+    circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, response(503));
+    circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, failure());
+    circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, failure());
+    assertEquals(State.CLOSED, circuitBreaker.getState(HOST));
+
+    circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, failure());
+    assertEquals(State.OPEN, circuitBreaker.getState(HOST));
+    // Other hosts are unaffected.
+    assertEquals(State.CLOSED, circuitBreaker.getState("other.example.com"));
+  }
+
+  @Test
+  public void testProbeClosesCircuit() {
+    openCircuit();
+    nowNanos += TimeUnit.SECONDS.toNanos(30);
+    assertEquals(State.HALF_OPEN, circuitBreaker.getState(HOST));
+
+    // Only a single probe is made, which other checks wait for.
+    long probe = circuitBreaker.recordStart(HOST);
+    assertTrue(probe > 0);
+    assertEquals(State.PROBING, circuitBreaker.getState(HOST));
+    assertEquals(CircuitBreakerService.REFUSED, circuitBreaker.recordStart(HOST));
+
+    circuitBreaker.recordResult(HOST, probe, response(200));
+    assertEquals(State.CLOSED, circuitBreaker.getState(HOST));
+  }
+
+  @Test
+  public void testFailedProbeRestartsCooldown() {
+    openCircuit();
+    nowNanos += TimeUnit.SECONDS.toNanos(30);
+    long probe = circuitBreaker.recordStart(HOST);
+    circuitBreaker.recordResult(HOST, probe, failure());
+    assertEquals(State.OPEN, circuitBreaker.getState(HOST));
+
+    nowNanos += TimeUnit.SECONDS.toNanos(29);
+    assertEquals(State.OPEN, circuitBreaker.getState(HOST));
+    nowNanos += TimeUnit.SECONDS.toNanos(1);
+    assertEquals(State.HALF_OPEN, circuitBreaker.getState(HOST));
+  }
+
+  @Test
+  public void testSingleProbeWhenStartedConcurrently() throws Exception {
+    openCircuit();
+    nowNanos += TimeUnit.SECONDS.toNanos(30);
+    final int numThreads = 16;
+    final CountDownLatch ready = new CountDownLatch(numThreads);
+    final CountDownLatch go = new CountDownLatch(1);
+    final AtomicInteger probes = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      futures.add(executor.submit(() -> {
+        // Every thread sees the circuit as half-open before any starts its check.
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState(HOST));
+        ready.countDown();
+        go.await();
+        if (circuitBreaker.recordStart(HOST) != CircuitBreakerService.REFUSED) {
+          probes.incrementAndGet();
+        }
+        return null;
+      }));
+    }
+    ready.await();
+    go.countDown();
+    for (Future<Void> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    assertEquals(1, probes.get());
+  }
+
+  @Test
+  public void testReleasedProbeAllowsAnother() {
+    openCircuit();
+    nowNanos += TimeUnit.SECONDS.toNanos(30);
+    long probe = circuitBreaker.recordStart(HOST);
+    assertTrue(probe > 0);
+
+    // The probe ended without an outcome, so another check may take its place.
+    circuitBreaker.releaseProbe(HOST, probe);
+    assertEquals(State.HALF_OPEN, circuitBreaker.getState(HOST));
+    assertTrue(circuitBreaker.recordStart(HOST) > 0);
+  }
+
+  @Test
+  public void testOnlyProbeEndsProbe() {
+    // A check starts while the circuit is closed, and is still in flight when it opens.
+    long check = circuitBreaker.recordStart(HOST);
+    assertEquals(CircuitBreakerService.NOT_PROBE, check);
+    openCircuit();
+    nowNanos += TimeUnit.SECONDS.toNanos(30);
+    long probe = circuitBreaker.recordStart(HOST);
+    assertTrue(probe > 0);
+
+    // Neither the outcome of the earlier check, nor its release, lets a second probe through.
+    circuitBreaker.recordResult(HOST, check, failure());
+    assertEquals(State.PROBING, circuitBreaker.getState(HOST));
+    circuitBreaker.releaseProbe(HOST, check);
+    assertEquals(State.PROBING, circuitBreaker.getState(HOST));
+    assertEquals(CircuitBreakerService.REFUSED, circuitBreaker.recordStart(HOST));
+
+    circuitBreaker.recordResult(HOST, probe, response(200));
+    assertEquals(State.CLOSED, circuitBreaker.getState(HOST));
+  }
+
+  private void openCircuit() {
+    for (int i = 0; i < 3; i++) {
+      circuitBreaker.recordResult(HOST, CircuitBreakerService.NOT_PROBE, failure());
+    }
+    assertEquals(State.OPEN, circuitBreaker.getState(HOST));
+  }
+
+  private static UrlCheckStatus failure() {
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://" + HOST + "/");
+    status.setStatus(UrlCheckStatus.Status.FAILURE, -1, "connect timed out");
+    return status;
+  }
+
+  private static UrlCheckStatus response(int httpStatusCode) {
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://" + HOST + "/");
+    status.setStatus(httpStatusCode < 400
+        ? UrlCheckStatus.Status.SUCCESS
+        : UrlCheckStatus.Status.FAILURE, httpStatusCode, null);
+    return status;
+  }
+
+  private void setField(String name, Object value) throws Exception {
+    Field field = Settings.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(settings, value);
+  }
+}
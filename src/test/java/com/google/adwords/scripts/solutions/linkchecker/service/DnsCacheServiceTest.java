@@ -0,0 +1,107 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the DnsCacheService class. */
+public class DnsCacheServiceTest {
+  private final AtomicInteger lookups = new AtomicInteger();
+  private DnsCacheService dnsCache;
+  private Settings settings;
+
+  @Before
+  public void setUp() throws Exception {
+    dnsCache =
+        new DnsCacheService(
+            host -> {
+              lookups.incrementAndGet();
+              if (host.endsWith(".invalid")) {
+                throw new UnknownHostException(host);
+              }
+              return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1})};
+            });
+    settings = Settings.createDefaultSettings();
+    setField("dnsCacheEnabled", true);
+  }
+
+  @Test
+  public void testCachesResults() {
+    dnsCache.configure(settings);
+    assertTrue(dnsCache.isEnabled());
+
+    assertTrue(dnsCache.isResolvable("www.example.com"));
+    assertTrue(dnsCache.isResolvable("www.example.com"));
+    assertFalse(dnsCache.isResolvable("www.example.invalid"));
+    assertFalse(dnsCache.isResolvable("www.example.invalid"));
+
+    assertEquals(2, lookups.get());
+    assertEquals(2, dnsCache.getMissCount());
+    assertEquals(1, dnsCache.getHitCount());
+    assertEquals(1, dnsCache.getNegativeHitCount());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    setField("dnsNegativeCacheTtlSeconds", 0);
+    dnsCache.configure(settings);
+
+    // Negative results are held for the shorter time, in this case not at all.
+    assertTrue(dnsCache.isResolvable("www.example.com"));
+    assertFalse(dnsCache.isResolvable("www.example.invalid"));
+    Thread.sleep(5);
+    assertTrue(dnsCache.isResolvable("www.example.com"));
+    assertFalse(dnsCache.isResolvable("www.example.invalid"));
+    assertEquals(3, lookups.get());
+  }
+
+  @Test
+  public void testPrewarm() throws Exception {
+    dnsCache.configure(settings);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      dnsCache.prewarm(
+          ImmutableList.of("a.example.com", "b.example.com", "c.example.invalid"), executor);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(3, lookups.get());
+
+    assertTrue(dnsCache.isResolvable("a.example.com"));
+    assertTrue(dnsCache.isResolvable("b.example.com"));
+    assertFalse(dnsCache.isResolvable("c.example.invalid"));
+    assertEquals(3, lookups.get());
+  }
+
+  private void setField(String name, Object value) throws Exception {
+    Field field = Settings.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(settings, value);
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the HostLatencyService class. */
+public class HostLatencyServiceTest {
+  private static final int DEFAULT_TIMEOUT_MILLIS = 15000;
+
+  private HostLatencyService hostLatency;
+  private Settings settings;
+
+  @Before
+  public void setUp() throws Exception {
+    hostLatency = new HostLatencyService();
+    settings = Settings.createDefaultSettings();
+    Field field = Settings.class.getDeclaredField("adaptiveTimeoutsEnabled");
+    field.setAccessible(true);
+    field.set(settings, true);
+    hostLatency.configure(settings);
+  }
+
+  @Test
+  public void testDefaultUntilEnoughSamples() {
+    for (int i = 0; i < HostLatencyService.MIN_SAMPLES - 1; i++) {
+      hostLatency.record("www.example.com", 10, 500);
+    }
+    assertEquals(DEFAULT_TIMEOUT_MILLIS,
+        hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+
+    hostLatency.record("www.example.com", 10, 500);
+    assertEquals(500 * HostLatencyService.TIMEOUT_MULTIPLIER,
+        hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+    // Other hosts are unaffected.
+    assertEquals(DEFAULT_TIMEOUT_MILLIS,
+        hostLatency.getReadTimeoutMillis("other.example.com", DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  @Test
+  public void testTimeoutsFollowPercentileWithinBounds() {
+    // Mostly fast responses, with slow ones at the 99th percentile.
+    for (int i = 0; i < HostLatencyService.MAX_SAMPLES - 2; i++) {
+      hostLatency.record("www.example.com", 20, 100);
+    }
+    hostLatency.record("www.example.com", 20, 5000);
+    hostLatency.record("www.example.com", 20, 5000);
+
+    // The connect timeout is clamped to the minimum, and the read timeout to the maximum.
+    assertEquals(HostLatencyService.MIN_TIMEOUT_MILLIS,
+        hostLatency.getConnectTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+    assertEquals(DEFAULT_TIMEOUT_MILLIS,
+        hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+
+    // Once the slow responses are no longer among the most recent, the read timeout falls.
+    for (int i = 0; i < HostLatencyService.MAX_SAMPLES; i++) {
+      hostLatency.record("www.example.com", 20, 1000);
+    }
+    assertEquals(1000 * HostLatencyService.TIMEOUT_MULTIPLIER,
+        hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    for (int i = 0; i < HostLatencyService.MIN_SAMPLES; i++) {
+      hostLatency.record("www.example.com", 10, 500);
+    }
+    Field field = Settings.class.getDeclaredField("adaptiveTimeoutsEnabled");
+    field.setAccessible(true);
+    field.set(settings, false);
+    hostLatency.configure(settings);
+
+    assertEquals(DEFAULT_TIMEOUT_MILLIS,
+        hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  @Test
+  public void testProfilesRoundTrip() {
+    List<Integer> connectMillis = new ArrayList<>();
+    List<Integer> responseMillis = new ArrayList<>();
+    for (int i = 0; i < HostLatencyService.MAX_SAMPLES + 5; i++) {
+      hostLatency.record("www.example.com", i, 2 * i);
+      if (i >= 5) {
+        connectMillis.add(i);
+        responseMillis.add(2 * i);
+      }
+    }
+
+    // Only the most recent latencies are kept, oldest first.
+    List<HostLatencyProfile> profiles =
+        hostLatency.getProfiles(ImmutableList.of("www.example.com", "other.example.com"));
+    assertEquals(1, profiles.size());
+    assertEquals("www.example.com", profiles.get(0).getHost());
+    assertEquals(connectMillis, profiles.get(0).getConnectMillis());
+    assertEquals(responseMillis, profiles.get(0).getResponseMillis());
+
+    // A new instance starts with the saved latencies.
+    HostLatencyService other = new HostLatencyService();
+    other.configure(settings);
+    other.warm(profiles);
+    assertEquals(hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS),
+        other.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  @Test
+  public void testWarmDoesNotReplaceObservedLatencies() {
+    for (int i = 0; i < HostLatencyService.MIN_SAMPLES; i++) {
+      hostLatency.record("www.example.com", 10, 500);
+    }
+    hostLatency.warm(ImmutableList.of(new HostLatencyProfile("www.example.com",
+        Collections.nCopies(HostLatencyService.MIN_SAMPLES, 10),
+        Collections.nCopies(HostLatencyService.MIN_SAMPLES, 3000))));
+
+    assertTrue(hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS)
+        < DEFAULT_TIMEOUT_MILLIS);
+    assertEquals(500 * HostLatencyService.TIMEOUT_MULTIPLIER,
+        hostLatency.getReadTimeoutMillis("www.example.com", DEFAULT_TIMEOUT_MILLIS));
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import java.lang.reflect.Field;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the HostSchedulerService class. */
+public class HostSchedulerServiceTest {
+  private HostSchedulerService hostScheduler;
+  private Settings settings;
+
+  @Before
+  public void setUp() {
+    hostScheduler = new HostSchedulerService();
+    settings = Settings.createDefaultSettings();
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    setField("maxConcurrentChecksPerHost", 2);
+    setField("maxChecksPerHostPerMinute", 60_000_000);
+    hostScheduler.configure(settings);
+
+    assertEquals(0, acquireWhenAllowed("www.example.com"));
+    assertEquals(0, acquireWhenAllowed("www.example.com"));
+    // A third check must wait for one of the first two to be released.
+    assertTrue(hostScheduler.tryAcquire("www.example.com") > 0);
+    // Other hosts are unaffected.
+    assertEquals(0, hostScheduler.tryAcquire("other.example.com"));
+
+    hostScheduler.release("www.example.com");
+    assertEquals(0, acquireWhenAllowed("www.example.com"));
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    setField("maxConcurrentChecksPerHost", 10);
+    setField("maxChecksPerHostPerMinute", 60);
+    hostScheduler.configure(settings);
+
+    assertEquals(0, hostScheduler.tryAcquire("www.example.com"));
+    hostScheduler.release("www.example.com");
+
+    // At 60 per minute, the next check may not start for about a second.
+    long waitNanos = hostScheduler.tryAcquire("www.example.com");
+    assertTrue(waitNanos > 900_000_000L && waitNanos <= 1_000_000_000L);
+    assertEquals(0, hostScheduler.tryAcquire("other.example.com"));
+  }
+
+  @Test
+  public void testGetHost() {
+    assertEquals("www.example.com", HostSchedulerService.getHost("http://WWW.Example.com/a"));
+    assertEquals("www.example.com", HostSchedulerService.getHost("https://www.example.com:8443"));
+    assertEquals("", HostSchedulerService.getHost("not a url"));
+  }
+
+  /** Acquires a check for a host, waiting for the rate limit where necessary. */
+  private long acquireWhenAllowed(String host) throws InterruptedException {
+    long waitNanos;
+    while ((waitNanos = hostScheduler.tryAcquire(host)) > 0 && waitNanos < 1_000_000L) {
+      Thread.sleep(1);
+    }
+    return waitNanos;
+  }
+
+  private void setField(String name, Object value) throws Exception {
+    Field field = Settings.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(settings, value);
+  }
+}
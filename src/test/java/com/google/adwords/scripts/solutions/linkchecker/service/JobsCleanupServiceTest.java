@@ -55,5 +55,9 @@ public class JobsCleanupServiceTest {
     actualCutOff.setTime(actualCutOffDate);
     assertEquals(expectedCutOff.get(Calendar.YEAR), actualCutOff.get(Calendar.YEAR));
     assertEquals(expectedCutOff.get(Calendar.DAY_OF_YEAR), actualCutOff.get(Calendar.DAY_OF_YEAR));
+    // Validators and latency profiles that have not been updated within the same period are also
+    // removed.
+    verify(datastore).deleteUrlValidatorsBefore(actualCutOffDate);
+    verify(datastore).deleteHostLatencyProfilesBefore(actualCutOffDate);
   }
 }
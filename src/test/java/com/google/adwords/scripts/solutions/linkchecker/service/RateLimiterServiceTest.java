@@ -0,0 +1,115 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.base.Ticker;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the RateLimiterService class. */
+public class RateLimiterServiceTest {
+  private long nowNanos;
+  private Ticker ticker;
+  private LocalCounterStore counterStore;
+  private RateLimiterService rateLimiter;
+  private Settings settings;
+
+  @Before
+  public void setUp() throws Exception {
+    ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nowNanos;
+      }
+    };
+    counterStore = new LocalCounterStore();
+    rateLimiter = new RateLimiterService(counterStore, ticker);
+    // 120 checks per minute, so a burst of 2 and then one every 500ms.
+    settings = new Settings(120, Settings.DEFAULT_USER_AGENT);
+    setField("globalRateLimitEnabled", true);
+    rateLimiter.configure(settings);
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    rateLimiter.configure(Settings.createDefaultSettings());
+    assertFalse(rateLimiter.isEnabled());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, rateLimiter.tryAcquire());
+    }
+  }
+
+  @Test
+  public void testLimitsRate() {
+    assertTrue(rateLimiter.isEnabled());
+    assertEquals(0, rateLimiter.tryAcquire());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), rateLimiter.tryAcquire());
+
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(200);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(300), rateLimiter.tryAcquire());
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(300);
+    assertEquals(0, rateLimiter.tryAcquire());
+  }
+
+  @Test
+  public void testIdleTokensAccrueUpToOneSecond() {
+    nowNanos += TimeUnit.MINUTES.toNanos(10);
+    // Only a second's worth are kept, however long the bucket is unused.
+    assertEquals(0, rateLimiter.tryAcquire());
+    assertEquals(0, rateLimiter.tryAcquire());
+    assertTrue(rateLimiter.tryAcquire() > 0);
+  }
+
+  @Test
+  public void testRefund() {
+    assertEquals(0, rateLimiter.tryAcquire());
+    rateLimiter.refund();
+    assertEquals(0, rateLimiter.tryAcquire());
+    assertTrue(rateLimiter.tryAcquire() > 0);
+  }
+
+  @Test
+  public void testSharedLimitWaitsForNextWindow() throws Exception {
+    setField("globalRateLimitSharedViaMemcache", true);
+    rateLimiter.configure(settings);
+    // Another instance has used the 20 checks for the first 10 seconds.
+    RateLimiterService other = new RateLimiterService(counterStore, ticker);
+    other.configure(settings);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(0, other.tryAcquire());
+      nowNanos += TimeUnit.MILLISECONDS.toNanos(500);
+    }
+    nowNanos = TimeUnit.SECONDS.toNanos(9);
+
+    assertEquals(TimeUnit.SECONDS.toNanos(1), rateLimiter.tryAcquire());
+    // The local token is handed back while waiting.
+    nowNanos = TimeUnit.SECONDS.toNanos(10);
+    assertEquals(0, rateLimiter.tryAcquire());
+    assertEquals(0, rateLimiter.tryAcquire());
+  }
+
+  private void setField(String name, Object value) throws Exception {
+    Field field = Settings.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(settings, value);
+  }
+}
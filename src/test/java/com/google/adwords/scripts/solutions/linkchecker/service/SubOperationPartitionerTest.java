@@ -0,0 +1,166 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+/** Tests for the SubOperationPartitioner class. */
+public class SubOperationPartitionerTest {
+  @Test
+  public void testGroupsByHost() {
+    List<String> urls =
+        ImmutableList.of(
+            "http://a.example.com/1",
+            "http://b.example.com/1",
+            "http://a.example.com/2",
+            "http://c.example.com/1",
+            "http://b.example.com/2",
+            "http://a.example.com/3",
+            "http://a.example.com/1");
+
+    List<List<String>> partitions = new SubOperationPartitioner(false).partition(urls, 3);
+
+    // Duplicates are removed, and each host is kept within a single partition.
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of(
+                "http://a.example.com/1", "http://a.example.com/2", "http://a.example.com/3"),
+            ImmutableList.of(
+                "http://b.example.com/1", "http://b.example.com/2", "http://c.example.com/1")),
+        partitions);
+  }
+
+  @Test
+  public void testGroupsByRegistrableDomain() {
+    List<String> urls =
+        ImmutableList.of(
+            "http://www.example.co.uk/1",
+            "http://www.other.com/1",
+            "http://shop.example.co.uk/1",
+            "http://127.0.0.1/1");
+
+    List<List<String>> partitions = new SubOperationPartitioner(true).partition(urls, 2);
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("http://www.example.co.uk/1", "http://shop.example.co.uk/1"),
+            ImmutableList.of("http://www.other.com/1", "http://127.0.0.1/1")),
+        partitions);
+  }
+
+  @Test
+  public void testSplitsLargeHostEvenly() {
+    List<String> urls = Lists.newArrayList();
+    for (int i = 0; i < 250; i++) {
+      urls.add("http://www.example.com/" + i);
+    }
+    urls.add("http://www.other.com/");
+
+    List<List<String>> partitions = new SubOperationPartitioner(false).partition(urls, 100);
+
+    // The 250 URLs for one host are split 84, 83, 83, leaving room for the other host in the first.
+    assertEquals(3, partitions.size());
+    assertEquals(85, partitions.get(0).size());
+    assertEquals(83, partitions.get(1).size());
+    assertEquals(83, partitions.get(2).size());
+    Set<String> allUrls = new HashSet<>();
+    for (List<String> partition : partitions) {
+      allUrls.addAll(partition);
+    }
+    assertEquals(new HashSet<>(urls), allUrls);
+  }
+
+  @Test
+  public void testSplitsByEstimatedDuration() {
+    List<String> urls = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      urls.add("http://slow.example.com/" + i);
+      urls.add("http://fast.example.com/" + i);
+    }
+    TaskDurationEstimator estimator = new TaskDurationEstimator(new Settings(6000, "test"),
+        ImmutableList.of(
+            new HostLatencyProfile(
+                "slow.example.com", ImmutableList.of(500), ImmutableList.of(2500)),
+            new HostLatencyProfile(
+                "fast.example.com", ImmutableList.of(20), ImmutableList.of(80))));
+
+    List<List<String>> partitions =
+        new SubOperationPartitioner(false).partition(urls, 100, estimator, 30);
+
+    // The slow host takes 60 seconds, so is split in two, each of which is too long to share with
+    // the fast host.
+    assertEquals(3, partitions.size());
+    assertEquals(10, partitions.get(0).size());
+    assertEquals("http://slow.example.com/0", partitions.get(0).get(0));
+    assertEquals(10, partitions.get(1).size());
+    assertEquals("http://slow.example.com/10", partitions.get(1).get(0));
+    assertEquals(20, partitions.get(2).size());
+    assertEquals("http://fast.example.com/0", partitions.get(2).get(0));
+  }
+
+  @Test
+  public void testSplitsSlowHostByHostLimit() throws Exception {
+    List<String> urls = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      urls.add("http://slow.example.com/" + i);
+    }
+    // With ten checks in flight, the URLs take 6 seconds overall, but only two checks of the host
+    // can be in flight at once, so the host's URLs alone take 30 seconds.
+    Settings settings = new Settings(6000, "test");
+    Field maxConcurrentChecks = Settings.class.getDeclaredField("maxConcurrentChecks");
+    maxConcurrentChecks.setAccessible(true);
+    maxConcurrentChecks.set(settings, 10);
+    TaskDurationEstimator estimator = new TaskDurationEstimator(settings,
+        ImmutableList.of(
+            new HostLatencyProfile(
+                "slow.example.com", ImmutableList.of(500), ImmutableList.of(2500))));
+
+    List<List<String>> partitions =
+        new SubOperationPartitioner(false).partition(urls, 100, estimator, 10);
+
+    // The parts are split by the limit for the host, and are not packed back together.
+    assertEquals(3, partitions.size());
+    assertEquals(7, partitions.get(0).size());
+    assertEquals(7, partitions.get(1).size());
+    assertEquals(6, partitions.get(2).size());
+  }
+
+  @Test
+  public void testSlowUrlsEachInOwnPartition() {
+    List<String> urls = ImmutableList.of("http://a.example.com/", "http://b.example.com/");
+    TaskDurationEstimator estimator =
+        new TaskDurationEstimator(new Settings(6000, "test"), ImmutableList.of());
+
+    // Each URL is estimated to take longer than the target, so is checked by itself.
+    List<List<String>> partitions =
+        new SubOperationPartitioner(false).partition(urls, 100, estimator, 0.5);
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("http://a.example.com/"), ImmutableList.of("http://b.example.com/")),
+        partitions);
+  }
+}
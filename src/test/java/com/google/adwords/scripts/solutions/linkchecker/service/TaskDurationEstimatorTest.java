@@ -0,0 +1,68 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import org.junit.Test;
+
+/** Tests for the TaskDurationEstimator class. */
+public class TaskDurationEstimatorTest {
+  private static final double DELTA = 1e-9;
+
+  @Test
+  public void testUnknownHostUsesDefaultLatency() {
+    TaskDurationEstimator estimator =
+        new TaskDurationEstimator(new Settings(6000, "test"), Collections.emptyList());
+
+    double seconds = TaskDurationEstimator.DEFAULT_LATENCY_MILLIS / 1000.0;
+    assertEquals(seconds, estimator.getSecondsPerUrl("www.example.com"), DELTA);
+    assertEquals(seconds, estimator.getSecondsPerHostUrl("www.example.com"), DELTA);
+  }
+
+  @Test
+  public void testUsesMeanLatencyOfHost() {
+    TaskDurationEstimator estimator =
+        new TaskDurationEstimator(Settings.createDefaultSettings(), ImmutableList.of(
+            new HostLatencyProfile(
+                "slow.example.com", ImmutableList.of(100, 300), ImmutableList.of(800, 1000)),
+            new HostLatencyProfile(
+                "fast.example.com", ImmutableList.of(10), ImmutableList.of(40))));
+
+    assertEquals(1.1, estimator.getSecondsPerUrl("slow.example.com"), DELTA);
+    // The default rate of 60 checks per minute limits fast hosts to one check a second.
+    assertEquals(1.0, estimator.getSecondsPerUrl("fast.example.com"), DELTA);
+  }
+
+  @Test
+  public void testConcurrentChecksOverlap() throws Exception {
+    Settings settings = new Settings(6000, "test");
+    Field field = Settings.class.getDeclaredField("maxConcurrentChecks");
+    field.setAccessible(true);
+    field.set(settings, 4);
+    TaskDurationEstimator estimator = new TaskDurationEstimator(settings, ImmutableList.of(
+        new HostLatencyProfile(
+            "www.example.com", ImmutableList.of(1000), ImmutableList.of(3000))));
+
+    // Four checks are in flight at once, but only two of them for the same host.
+    assertEquals(1.0, estimator.getSecondsPerUrl("www.example.com"), DELTA);
+    assertEquals(2.0, estimator.getSecondsPerHostUrl("www.example.com"), DELTA);
+  }
+}
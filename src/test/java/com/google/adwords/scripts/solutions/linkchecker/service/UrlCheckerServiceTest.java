@@ -15,21 +15,51 @@
 package com.google.adwords.scripts.solutions.linkchecker.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.model.UrlValidators;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.ContentTypeFilter;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.FailureTextMatcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.RetryPolicy;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.StubFetcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckOptions;
 import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlConnectionFetcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlResultKey;
 import com.google.common.collect.ImmutableList;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 import org.junit.Before;
 import org.junit.Test;
@@ -59,7 +89,7 @@ public class UrlCheckerServiceTest {
     UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
     when(urlConnection.getResponseCode()).thenReturn(404);
 
-    urlCheckerService.check(status, null);
+    urlCheckerService.check(status, (List<String>) null);
 
     verify(urlConnection).setRequestMethod("HEAD");
 
@@ -75,9 +105,11 @@ public class UrlCheckerServiceTest {
     UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
     when(urlConnection.getResponseCode()).thenReturn(200);
 
-    urlCheckerService.check(status, null);
+    urlCheckerService.check(status, (List<String>) null);
 
     verify(urlConnection).setRequestMethod("HEAD");
+    // The connection should be left open for reuse by subsequent checks.
+    verify(urlConnection, never()).disconnect();
 
     assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
     assertEquals(200, status.getHttpStatusCode());
@@ -107,6 +139,33 @@ public class UrlCheckerServiceTest {
     assertEquals("Content contains 'out of stock'", status.getMessage());
   }
 
+  @Test
+  public void check200DeflatedTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("<p>This product is in stock.</p>\n");
+    }
+    ByteArrayOutputStream obj = new ByteArrayOutputStream();
+    DeflaterOutputStream deflate = new DeflaterOutputStream(obj);
+    deflate.write(content.toString().getBytes("UTF-8"));
+    deflate.close();
+    when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream(obj.toByteArray()));
+    when(urlConnection.getContentEncoding()).thenReturn("deflate");
+
+    urlCheckerService.check(status, ImmutableList.of("out of stock"));
+
+    verify(urlConnection).setRequestProperty("Accept-Encoding", "gzip, deflate");
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    // The whole page was read, and its size recorded both compressed and decoded.
+    assertEquals(obj.size(), status.getTransferredBytes());
+    assertEquals(content.length(), status.getDecodedBytes());
+  }
+
   @Test
   public void check200FailureTextTest() throws IOException {
     HttpURLConnection urlConnection = mock(HttpURLConnection.class);
@@ -141,9 +200,201 @@ public class UrlCheckerServiceTest {
     urlCheckerService.check(status, ImmutableList.of("out of stock"));
 
     verify(urlConnection, never()).setRequestMethod("HEAD");
+    verify(urlConnection, never()).disconnect();
 
     assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
     assertEquals(200, status.getHttpStatusCode());
+    assertFalse(status.isTruncated());
+  }
+
+  @Test
+  public void check200FailureTextMaxBodyBytesTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+
+    String content = "This product is in stock. Related product is out of stock.";
+    when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream(content.getBytes()));
+    when(urlConnection.getContentEncoding()).thenReturn("identity");
+
+    // Only the first 30 bytes are searched, so the failure text is not found.
+    UrlCheckOptions options =
+        new UrlCheckOptions(FailureTextMatcher.compile(ImmutableList.of("out of stock")), 30, "");
+    urlCheckerService.check(status, options);
+
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    assertTrue(status.isTruncated());
+    // The rest of the page is not drained from the connection.
+    verify(urlConnection).disconnect();
+  }
+
+  @Test
+  public void check200FailureTextWithinMaxBodyBytesTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+
+    String content = "This product is in stock.";
+    when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream(content.getBytes()));
+    when(urlConnection.getContentEncoding()).thenReturn("identity");
+
+    // The page is shorter than the limit, so is searched in full and the connection kept.
+    UrlCheckOptions options =
+        new UrlCheckOptions(FailureTextMatcher.compile(ImmutableList.of("out of stock")), 1024, "");
+    urlCheckerService.check(status, options);
+
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    assertFalse(status.isTruncated());
+    verify(urlConnection, never()).disconnect();
+  }
+
+  @Test
+  public void check200ValidatorsTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+    when(urlConnection.getInputStream())
+        .thenReturn(new ByteArrayInputStream("This product is out of stock.".getBytes()));
+    when(urlConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+    when(urlConnection.getHeaderField("Last-Modified"))
+        .thenReturn("Wed, 21 Oct 2015 07:28:00 GMT");
+
+    UrlCheckOptions options = createOptions("out of stock");
+    UrlValidators validators = urlCheckerService.check(status, options, null);
+
+    assertEquals(UrlResultKey.of("http://www.example.com", options), validators.getId());
+    assertEquals("\"v1\"", validators.getEtag());
+    assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", validators.getLastModified());
+
+    // A later check of an unchanged page returns no new validators to save.
+    HttpURLConnection secondConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(secondConnection);
+    when(secondConnection.getResponseCode()).thenReturn(200);
+    when(secondConnection.getInputStream())
+        .thenReturn(new ByteArrayInputStream("This product is out of stock.".getBytes()));
+    when(secondConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+    when(secondConnection.getHeaderField("Last-Modified"))
+        .thenReturn("Wed, 21 Oct 2015 07:28:00 GMT");
+    assertNull(
+        urlCheckerService.check(
+            UrlCheckStatus.fromUrl("http://www.example.com"), options, validators));
+  }
+
+  @Test
+  public void check304ReusesPreviousOutcomeTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(304);
+
+    UrlCheckOptions options = createOptions("out of stock");
+    UrlCheckStatus previousStatus = UrlCheckStatus.fromUrl("http://www.example.com");
+    previousStatus.setStatus(
+        UrlCheckStatus.Status.FAILURE, 200, "Content contains 'out of stock'");
+    UrlValidators previous =
+        new UrlValidators(
+            UrlResultKey.of("http://www.example.com", options),
+            "\"v1\"",
+            "Wed, 21 Oct 2015 07:28:00 GMT",
+            previousStatus);
+
+    assertNull(urlCheckerService.check(status, options, previous));
+
+    verify(urlConnection).setRequestProperty("If-None-Match", "\"v1\"");
+    verify(urlConnection).setRequestProperty("If-Modified-Since", "Wed, 21 Oct 2015 07:28:00 GMT");
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals(200, status.getHttpStatusCode());
+    assertEquals("Content contains 'out of stock'", status.getMessage());
+  }
+
+  @Test
+  public void checkUnchangedValidatorsRefreshedTest() throws Exception {
+    UrlCheckOptions options = createOptions("out of stock");
+    UrlCheckStatus previousStatus = UrlCheckStatus.fromUrl("http://www.example.com");
+    previousStatus.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    UrlValidators previous =
+        new UrlValidators(
+            UrlResultKey.of("http://www.example.com", options), "\"v1\"", null, previousStatus);
+    Date lastWeek = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(7));
+    setUpdated(previous, lastWeek);
+
+    // A page confirmed as unchanged has its validators saved again, so they are not cleaned up.
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    when(urlConnection.getResponseCode()).thenReturn(304);
+    UrlValidators refreshed = urlCheckerService.check(
+        UrlCheckStatus.fromUrl("http://www.example.com"), options, previous);
+    assertEquals("\"v1\"", refreshed.getEtag());
+    assertTrue(refreshed.getUpdated().after(lastWeek));
+
+    // Having just been saved, they are not saved again by the next check.
+    assertNull(urlCheckerService.check(
+        UrlCheckStatus.fromUrl("http://www.example.com"), options, refreshed));
+
+    // Nor are the same validators, downloaded again with the page, until a day has passed.
+    setUpdated(previous, lastWeek);
+    HttpURLConnection secondConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(secondConnection);
+    when(secondConnection.getResponseCode()).thenReturn(200);
+    when(secondConnection.getInputStream())
+        .thenReturn(new ByteArrayInputStream("In stock.".getBytes()));
+    when(secondConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+    UrlValidators downloaded = urlCheckerService.check(
+        UrlCheckStatus.fromUrl("http://www.example.com"), options, previous);
+    assertTrue(downloaded.isSameAs(previous));
+    assertTrue(downloaded.getUpdated().after(lastWeek));
+  }
+
+  @Test
+  public void checkErrorResponseConsumedTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    InputStream errorStream = mock(InputStream.class);
+    when(urlConnection.getResponseCode()).thenReturn(503);
+    when(urlConnection.getErrorStream()).thenReturn(errorStream);
+
+    urlCheckerService.check(status, (List<String>) null);
+
+    // Closing the error response, rather than disconnecting, allows the connection to be reused.
+    verify(errorStream).close();
+    verify(urlConnection, never()).disconnect();
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals(503, status.getHttpStatusCode());
+  }
+
+  @Test
+  public void check200FailureTextCharsetTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+
+    String content = "Cet article est épuisé.";
+    when(urlConnection.getInputStream())
+        .thenReturn(new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)));
+    when(urlConnection.getContentType()).thenReturn("text/html; charset=ISO-8859-1");
+
+    urlCheckerService.check(status, ImmutableList.of("épuisé"));
+
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals("Content contains 'épuisé'", status.getMessage());
+  }
+
+  @Test
+  public void getCharsetTest() {
+    assertEquals(
+        StandardCharsets.ISO_8859_1, UrlCheckerService.getCharset("text/html; charset=iso-8859-1"));
+    assertEquals(
+        StandardCharsets.UTF_16BE, UrlCheckerService.getCharset("text/html;charset=\"UTF-16BE\""));
+    // Defaults to UTF-8 when the charset is missing, unknown or the header is malformed.
+    assertEquals(StandardCharsets.UTF_8, UrlCheckerService.getCharset(null));
+    assertEquals(StandardCharsets.UTF_8, UrlCheckerService.getCharset("text/html"));
+    assertEquals(StandardCharsets.UTF_8, UrlCheckerService.getCharset("text/html; charset=nope"));
+    assertEquals(StandardCharsets.UTF_8, UrlCheckerService.getCharset("not a content type"));
   }
 
   @Test
@@ -153,9 +404,11 @@ public class UrlCheckerServiceTest {
     UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
     when(urlConnection.getResponseCode()).thenThrow(new IOException("A network error occurred."));
 
-    urlCheckerService.check(status, null);
+    urlCheckerService.check(status, (List<String>) null);
     assertEquals(-1, status.getHttpStatusCode());
     assertEquals("A network error occurred.", status.getMessage());
+    // After an error the connection is in an unknown state, so should not be reused.
+    verify(urlConnection).disconnect();
   }
 
   @Test
@@ -164,11 +417,300 @@ public class UrlCheckerServiceTest {
     streamHandler.setConnection(urlConnection);
     UrlCheckStatus status = UrlCheckStatus.fromUrl("abcabcabcabc");
 
-    urlCheckerService.check(status, null);
+    urlCheckerService.check(status, (List<String>) null);
     assertEquals(-1, status.getHttpStatusCode());
     assertEquals("no protocol: abcabcabcabc", status.getMessage());
   }
 
+  @Test
+  public void checkDeadlineDisconnectsTest() throws Exception {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+    when(urlConnection.getContentEncoding()).thenReturn("identity");
+
+    // A page that trickles in forever, until the connection is disconnected.
+    final CountDownLatch disconnected = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      disconnected.countDown();
+      return null;
+    }).when(urlConnection).disconnect();
+    when(urlConnection.getInputStream()).thenReturn(new InputStream() {
+      @Override
+      public int read() throws IOException {
+        try {
+          if (disconnected.await(1, TimeUnit.MILLISECONDS)) {
+            throw new IOException("Socket closed");
+          }
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return ' ';
+      }
+    });
+
+    UrlCheckOptions options = new UrlCheckOptions(
+        FailureTextMatcher.compile(ImmutableList.of("out of stock")),
+        UrlCheckOptions.UNLIMITED_BODY_BYTES,
+        100,
+        "");
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    try {
+      assertNull(urlCheckerService.check(status, options, null, watchdog));
+    } finally {
+      watchdog.shutdownNow();
+    }
+
+    // No single step may outlast the deadline either.
+    verify(urlConnection).setConnectTimeout(100);
+    verify(urlConnection).setReadTimeout(100);
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals(-1, status.getHttpStatusCode());
+    assertEquals("Check did not complete within 100 ms", status.getMessage());
+    assertTrue(status.isTimedOut());
+  }
+
+  @Test
+  public void checkWithinDeadlineTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+
+    UrlCheckOptions options = new UrlCheckOptions(
+        FailureTextMatcher.compile(null), UrlCheckOptions.UNLIMITED_BODY_BYTES, 60000, "");
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    try {
+      urlCheckerService.check(status, options, null, watchdog);
+    } finally {
+      watchdog.shutdownNow();
+    }
+
+    verify(urlConnection).setReadTimeout(15000);
+    verify(urlConnection, never()).disconnect();
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    assertFalse(status.isTimedOut());
+  }
+
+  @Test
+  public void checkWatchdogStoppedBeforeConnectionReleasedTest() throws Exception {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    when(urlConnection.getResponseCode()).thenReturn(200);
+    ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1);
+    watchdog.setRemoveOnCancelPolicy(true);
+    // Once closed, the connection may be reused by another check, which the watchdog for this one
+    // must not disconnect.
+    final AtomicInteger scheduledOnClose = new AtomicInteger(-1);
+    when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]) {
+      @Override
+      public void close() {
+        scheduledOnClose.set(watchdog.getQueue().size());
+      }
+    });
+
+    UrlCheckOptions options = new UrlCheckOptions(
+        FailureTextMatcher.compile(null), UrlCheckOptions.UNLIMITED_BODY_BYTES, 60000, "");
+    try {
+      urlCheckerService.check(
+          UrlCheckStatus.fromUrl("http://www.example.com"), options, null, watchdog);
+    } finally {
+      watchdog.shutdownNow();
+    }
+
+    assertEquals(0, scheduledOnClose.get());
+    verify(urlConnection, never()).disconnect();
+  }
+
+  @Test
+  public void checkPatternTimeoutKeepsStatusCodeTest() throws IOException {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    when(urlConnection.getResponseCode()).thenReturn(200);
+    char[] content = new char[40];
+    Arrays.fill(content, 'x');
+    when(urlConnection.getInputStream())
+        .thenReturn(new ByteArrayInputStream(new String(content).getBytes()));
+    // A pattern which backtracks exponentially on content that does not match.
+    UrlCheckOptions options = new UrlCheckOptions(
+        FailureTextMatcher.compile(null, false, ImmutableList.of("(x+)+\\1y")),
+        UrlCheckOptions.UNLIMITED_BODY_BYTES, 100, "");
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+
+    urlCheckerService.check(status, options, null);
+
+    // The server responded, so the check is neither retried nor counted against the host.
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals(200, status.getHttpStatusCode());
+    // The patterns are given what remains of the deadline, which is not known exactly.
+    assertTrue(status.getMessage().startsWith("Failure patterns could not be matched within"));
+    assertFalse(status.isTimedOut());
+    assertFalse(new RetryPolicy(3, 0).shouldRetry(status));
+  }
+
+  @Test
+  public void checkAdaptiveTimeoutsTest() throws Exception {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    when(urlConnection.getResponseCode()).thenReturn(200);
+
+    Settings settings = Settings.createDefaultSettings();
+    Field field = Settings.class.getDeclaredField("adaptiveTimeoutsEnabled");
+    field.setAccessible(true);
+    field.set(settings, true);
+    HostLatencyService hostLatency = new HostLatencyService();
+    hostLatency.configure(settings);
+    hostLatency.warm(ImmutableList.of(new HostLatencyProfile("www.example.com",
+        Collections.nCopies(HostLatencyService.MAX_SAMPLES, 300),
+        Collections.nCopies(HostLatencyService.MAX_SAMPLES, 600))));
+
+    new UrlCheckerService(new UrlConnectionFetcher(), hostLatency)
+        .check(status, (List<String>) null);
+
+    // The timeouts are derived from the latencies learned for the host.
+    verify(urlConnection).setConnectTimeout(300 * HostLatencyService.TIMEOUT_MULTIPLIER);
+    verify(urlConnection).setReadTimeout(600 * HostLatencyService.TIMEOUT_MULTIPLIER);
+    verify(urlConnection).connect();
+    assertEquals(HostLatencyService.MAX_SAMPLES,
+        hostLatency.getProfiles(ImmutableList.of("www.example.com"))
+            .get(0).getResponseMillis().size());
+  }
+
+  @Test
+  public void checkTimeoutsWidenAsHostSlowsTest() throws Exception {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    when(urlConnection.getResponseCode()).thenThrow(new SocketTimeoutException("Read timed out"));
+    HostLatencyService hostLatency = createAdaptiveHostLatencyService();
+    hostLatency.warm(ImmutableList.of(new HostLatencyProfile("www.example.com",
+        Collections.nCopies(HostLatencyService.MAX_SAMPLES, 20),
+        Collections.nCopies(HostLatencyService.MAX_SAMPLES, 100))));
+    UrlCheckerService service = new UrlCheckerService(new UrlConnectionFetcher(), hostLatency);
+
+    // The host has been fast, so its read timeout is at the minimum, which it now fails to meet.
+    assertEquals(HostLatencyService.MIN_TIMEOUT_MILLIS,
+        hostLatency.getReadTimeoutMillis("www.example.com", 15000));
+    service.check(UrlCheckStatus.fromUrl("http://www.example.com/1"), (List<String>) null);
+    service.check(UrlCheckStatus.fromUrl("http://www.example.com/2"), (List<String>) null);
+
+    // Each time out is recorded as taking the whole timeout, so the timeout widens.
+    verify(urlConnection, times(2)).setReadTimeout(HostLatencyService.MIN_TIMEOUT_MILLIS);
+    assertEquals(HostLatencyService.MIN_TIMEOUT_MILLIS * HostLatencyService.TIMEOUT_MULTIPLIER,
+        hostLatency.getReadTimeoutMillis("www.example.com", 15000));
+  }
+
+  @Test
+  public void checkReusedConnectionNotSampledTest() throws Exception {
+    HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+    streamHandler.setConnection(urlConnection);
+    when(urlConnection.getResponseCode()).thenReturn(200);
+    HostLatencyService hostLatency = createAdaptiveHostLatencyService();
+
+    // The mock connects at once, as does a connection reused from the keep-alive cache.
+    new UrlCheckerService(new UrlConnectionFetcher(), hostLatency)
+        .check(UrlCheckStatus.fromUrl("http://www.example.com"), (List<String>) null);
+
+    HostLatencyProfile profile =
+        hostLatency.getProfiles(ImmutableList.of("www.example.com")).get(0);
+    assertTrue(profile.getConnectMillis().isEmpty());
+    assertEquals(1, profile.getResponseMillis().size());
+  }
+
+  private static HostLatencyService createAdaptiveHostLatencyService() throws Exception {
+    Settings settings = Settings.createDefaultSettings();
+    Field field = Settings.class.getDeclaredField("adaptiveTimeoutsEnabled");
+    field.setAccessible(true);
+    field.set(settings, true);
+    HostLatencyService hostLatency = new HostLatencyService();
+    hostLatency.configure(settings);
+    return hostLatency;
+  }
+
+  @Test
+  public void checkWithStubFetcherTest() {
+    StubFetcher fetcher = new StubFetcher(1);
+    fetcher.setResponse(
+        "www.example.com", new StubFetcher.Response(200, 0, 1000, "Sorry, out of stock", 0));
+    UrlCheckerService stubbedService = new UrlCheckerService(fetcher, new HostLatencyService());
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com/page");
+    stubbedService.check(status, ImmutableList.of("out of stock"));
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals("Content contains 'out of stock'", status.getMessage());
+
+    // Without failure texts, the page is not downloaded.
+    status = UrlCheckStatus.fromUrl("http://www.example.com/page");
+    stubbedService.check(status, (List<String>) null);
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    assertEquals(2, fetcher.getFetchCount());
+  }
+
+  @Test
+  public void checkSkipsContentTypesNotSearchedTest() {
+    StubFetcher fetcher = new StubFetcher(1);
+    fetcher.setResponse("www.example.com",
+        new StubFetcher.Response(200, 0, 1000, "Sorry, out of stock", 0, "application/pdf"));
+    UrlCheckerService stubbedService = new UrlCheckerService(fetcher, new HostLatencyService());
+
+    // A PDF is judged by status code alone, whatever it contains.
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com/brochure.pdf");
+    stubbedService.check(status, createOptions("out of stock"));
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    assertTrue(status.isContentSkipped());
+
+    // Unless PDFs are to be searched for the batch.
+    UrlCheckOptions options = new UrlCheckOptions(
+        FailureTextMatcher.compile(ImmutableList.of("out of stock")),
+        UrlCheckOptions.UNLIMITED_BODY_BYTES,
+        UrlCheckOptions.NO_DEADLINE,
+        ContentTypeFilter.of(ImmutableList.of("text/*", "application/pdf")),
+        "");
+    status = UrlCheckStatus.fromUrl("http://www.example.com/brochure.pdf");
+    stubbedService.check(status, options);
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertFalse(status.isContentSkipped());
+
+    // Pages with no content type are searched, as their type cannot be told.
+    fetcher.setResponse("www.example.com",
+        new StubFetcher.Response(200, 0, 1000, "Sorry, out of stock", 0, null));
+    status = UrlCheckStatus.fromUrl("http://www.example.com/page");
+    stubbedService.check(status, createOptions("out of stock"));
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+  }
+
+  @Test
+  public void checkTruncatedFromContentLengthTest() {
+    StubFetcher fetcher = new StubFetcher(1);
+    fetcher.setResponse("www.example.com", new StubFetcher.Response(200, 0, 2048, "", 0));
+    UrlCheckerService stubbedService = new UrlCheckerService(fetcher, new HostLatencyService());
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com/page");
+    stubbedService.check(status, new UrlCheckOptions(
+        FailureTextMatcher.compile(ImmutableList.of("out of stock")), 1024, ""));
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    assertTrue(status.isTruncated());
+
+    status = UrlCheckStatus.fromUrl("http://www.example.com/page");
+    stubbedService.check(status, new UrlCheckOptions(
+        FailureTextMatcher.compile(ImmutableList.of("out of stock")), 2048, ""));
+    assertFalse(status.isTruncated());
+  }
+
+  private static void setUpdated(UrlValidators validators, Date updated) throws Exception {
+    Field field = UrlValidators.class.getDeclaredField("updated");
+    field.setAccessible(true);
+    field.set(validators, updated);
+  }
+
+  private static UrlCheckOptions createOptions(String failureMatchText) {
+    return new UrlCheckOptions(
+        FailureTextMatcher.compile(ImmutableList.of(failureMatchText)),
+        UrlCheckOptions.UNLIMITED_BODY_BYTES,
+        "");
+  }
+
   /** Mock stream handler for setting on the URL class. */
   public class MockURLStreamHandler extends URLStreamHandler implements URLStreamHandlerFactory {
     private HttpURLConnection urlConnection;
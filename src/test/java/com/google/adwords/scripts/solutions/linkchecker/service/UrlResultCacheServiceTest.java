@@ -0,0 +1,138 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.FailureTextMatcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckOptions;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Field;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the UrlResultCacheService class. */
+public class UrlResultCacheServiceTest {
+  private static final String URL = "http://www.example.com/product";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+  private Settings settings;
+  private UrlCheckOptions options;
+
+  @Before
+  public void setUp() throws Exception {
+    helper.setUp();
+    settings = Settings.createDefaultSettings();
+    setField(settings, "resultCacheTtlMinutes", 60);
+    options = createOptions(ImmutableList.of("out of stock", "discontinued"), 0);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testStoreAndLookup() {
+    UrlResultCacheService cache = new UrlResultCacheService();
+    cache.configure(settings);
+    assertTrue(cache.isEnabled());
+
+    UrlCheckStatus checked = UrlCheckStatus.fromUrl(URL);
+    checked.setStatus(UrlCheckStatus.Status.FAILURE, 200, "Content contains 'out of stock'");
+    cache.store(checked, options);
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl(URL);
+    assertTrue(cache.lookup(status, options));
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals(200, status.getHttpStatusCode());
+    assertEquals("Content contains 'out of stock'", status.getMessage());
+
+    // A result is only reused for the same failure texts, in any order.
+    assertTrue(
+        cache.lookup(
+            UrlCheckStatus.fromUrl(URL),
+            createOptions(ImmutableList.of("discontinued", "out of stock"), 0)));
+    assertFalse(
+        cache.lookup(UrlCheckStatus.fromUrl(URL), createOptions(ImmutableList.of("sold out"), 0)));
+    assertFalse(
+        cache.lookup(
+            UrlCheckStatus.fromUrl(URL),
+            createOptions(ImmutableList.of("out of stock", "discontinued"), 1024)));
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    UrlResultCacheService cache = new UrlResultCacheService();
+    cache.configure(Settings.createDefaultSettings());
+    assertFalse(cache.isEnabled());
+
+    UrlCheckStatus checked = UrlCheckStatus.fromUrl(URL);
+    checked.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    cache.store(checked, options);
+    assertFalse(cache.lookup(UrlCheckStatus.fromUrl(URL), options));
+  }
+
+  @Test
+  public void testTransientFailuresNotStored() {
+    UrlResultCacheService cache = new UrlResultCacheService();
+    cache.configure(settings);
+
+    // As are all those retried as transient, such as a request timeout.
+    for (int code : new int[] {-1, 408, 429, 500, 502, 503, 504}) {
+      UrlCheckStatus checked = UrlCheckStatus.fromUrl(URL);
+      checked.setStatus(UrlCheckStatus.Status.FAILURE, code, "error");
+      cache.store(checked, options);
+      assertFalse(cache.lookup(UrlCheckStatus.fromUrl(URL), options));
+    }
+  }
+
+  @Test
+  public void testSharedViaMemcache() throws Exception {
+    setField(settings, "resultCacheSharedViaMemcache", true);
+    UrlResultCacheService cache = new UrlResultCacheService();
+    cache.configure(settings);
+    UrlResultCacheService otherInstanceCache = new UrlResultCacheService();
+    otherInstanceCache.configure(settings);
+
+    UrlCheckStatus checked = UrlCheckStatus.fromUrl(URL);
+    checked.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    cache.store(checked, options);
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl(URL);
+    assertTrue(otherInstanceCache.lookup(status, options));
+    assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+  }
+
+  private static UrlCheckOptions createOptions(List<String> failureMatchTexts, long maxBodyBytes) {
+    return new UrlCheckOptions(
+        FailureTextMatcher.compile(failureMatchTexts), maxBodyBytes, Settings.DEFAULT_USER_AGENT);
+  }
+
+  private static void setField(Settings settings, String name, Object value) throws Exception {
+    Field field = Settings.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(settings, value);
+  }
+}
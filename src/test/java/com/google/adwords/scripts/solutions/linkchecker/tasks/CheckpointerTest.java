@@ -0,0 +1,183 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the Checkpointer class. */
+public class CheckpointerTest {
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private FakeWorkSource work;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    work = new FakeWorkSource();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    Checkpointer checkpointer =
+        new Checkpointer(work, 0, 0, Executors.defaultThreadFactory());
+    assertFalse(checkpointer.isEnabled());
+    checkpointer.update(1000);
+    checkpointer.close();
+    assertEquals(0, work.checkpoints.get());
+  }
+
+  @Test
+  public void testCheckpointEveryNUrls() throws InterruptedException {
+    Checkpointer checkpointer =
+        new Checkpointer(work, 10, 0, Executors.defaultThreadFactory());
+    checkpointer.update(9);
+    assertEquals(0, work.checkpoints.get());
+    checkpointer.update(10);
+    awaitAttempts(1);
+    checkpointer.update(19);
+    assertEquals(1, work.checkpoints.get());
+    checkpointer.update(20);
+    checkpointer.close();
+    assertEquals(2, work.checkpoints.get());
+    assertEquals(2, work.saves.get());
+  }
+
+  @Test
+  public void testCheckpointAfterInterval() throws InterruptedException {
+    Checkpointer checkpointer =
+        new Checkpointer(work, 0, 1, Executors.defaultThreadFactory());
+    checkpointer.update(1);
+    assertEquals(0, work.checkpoints.get());
+    Thread.sleep(1100);
+    checkpointer.update(1);
+    checkpointer.close();
+    assertEquals(1, work.checkpoints.get());
+  }
+
+  @Test
+  public void testCheckpointsCoalescedWhileSaving() throws InterruptedException {
+    work.saveStarted = new CountDownLatch(1);
+    work.allowSave = new CountDownLatch(1);
+    Checkpointer checkpointer =
+        new Checkpointer(work, 1, 0, Executors.defaultThreadFactory());
+    checkpointer.update(1);
+    work.saveStarted.await();
+    // The first checkpoint is still being saved, so the outcomes are left for the next.
+    checkpointer.update(2);
+    checkpointer.update(3);
+    assertEquals(1, work.checkpoints.get());
+
+    work.allowSave.countDown();
+    awaitAttempts(1);
+    checkpointer.update(4);
+    checkpointer.close();
+    assertEquals(2, work.checkpoints.get());
+    assertEquals(2, work.saves.get());
+  }
+
+  @Test
+  public void testFailedSaveDoesNotStopTask() throws InterruptedException {
+    work.fail = true;
+    Checkpointer checkpointer =
+        new Checkpointer(work, 1, 0, Executors.defaultThreadFactory());
+    checkpointer.update(1);
+    awaitAttempts(1);
+    checkpointer.update(2);
+    checkpointer.close();
+    assertEquals(2, work.checkpoints.get());
+    assertEquals(0, work.saves.get());
+  }
+
+  /** Waits for the given number of checkpoints to have been saved, or to have failed. */
+  private void awaitAttempts(int attempts) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (work.attempts.get() < attempts) {
+      assertTrue("Timed out waiting for a checkpoint", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    // Let the checkpointer see that the save has finished.
+    Thread.sleep(50);
+  }
+
+  /** A source of work that counts the checkpoints taken and saved. */
+  private static class FakeWorkSource implements WorkSource {
+    final AtomicInteger checkpoints = new AtomicInteger();
+    final AtomicInteger saves = new AtomicInteger();
+    final AtomicInteger attempts = new AtomicInteger();
+    volatile boolean fail;
+    CountDownLatch saveStarted;
+    CountDownLatch allowSave;
+
+    @Override
+    public List<UrlCheckStatus> claim() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void recordCacheHit(UrlCheckStatus status) {}
+
+    @Override
+    public void recordCacheMiss(UrlCheckStatus status) {}
+
+    @Override
+    public void complete(UrlCheckStatus status) {}
+
+    @Override
+    public Runnable checkpoint() {
+      checkpoints.incrementAndGet();
+      return () -> {
+        try {
+          if (saveStarted != null) {
+            saveStarted.countDown();
+            allowSave.await();
+          }
+          if (fail) {
+            throw new IllegalStateException("Datastore unavailable");
+          }
+          saves.incrementAndGet();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          attempts.incrementAndGet();
+        }
+      };
+    }
+
+    @Override
+    public boolean finish(boolean stoppedEarly) {
+      return false;
+    }
+  }
+}
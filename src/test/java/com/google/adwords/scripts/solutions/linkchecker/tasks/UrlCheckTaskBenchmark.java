@@ -0,0 +1,132 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.tasks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
+import com.google.adwords.scripts.solutions.linkchecker.model.BatchOperation;
+import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
+import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.service.CircuitBreakerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.DnsCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostLatencyService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostSchedulerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.LocalCounterStore;
+import com.google.adwords.scripts.solutions.linkchecker.service.RateLimiterService;
+import com.google.adwords.scripts.solutions.linkchecker.service.SettingsService;
+import com.google.adwords.scripts.solutions.linkchecker.service.UrlCheckerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.UrlResultCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.StubFetcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput of the whole {@code UrlCheckTask} pipeline, from scheduling through to
+ * searching pages for failure texts, against hosts simulated by the {@code StubFetcher}. No network
+ * access is needed, and as the hosts and URLs are generated from a fixed seed, runs are repeatable.
+ * Each simulated host has its own latency, and a small proportion of fetches fail.
+ *
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.google.adwords.scripts.solutions.linkchecker.tasks.UrlCheckTaskBenchmark
+ * </pre>
+ */
+public class UrlCheckTaskBenchmark {
+  private static final long SEED = 20170101L;
+  private static final int NUM_HOSTS = 50;
+  private static final int NUM_URLS = 1000;
+  private static final int[] CONCURRENT_CHECKS = {4, 16, 64};
+
+  public static void main(String[] args) throws Exception {
+    LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalTaskQueueTestConfig());
+    helper.setUp();
+    try {
+      for (int maxConcurrentChecks : CONCURRENT_CHECKS) {
+        run(maxConcurrentChecks);
+      }
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  private static void run(int maxConcurrentChecks) throws Exception {
+    Random random = new Random(SEED);
+    StubFetcher fetcher = new StubFetcher(SEED);
+    for (int i = 0; i < NUM_HOSTS; i++) {
+      // Latencies of 20ms to 300ms, pages of up to 100KB, and 2% of fetches failing.
+      fetcher.setResponse(host(i), new StubFetcher.Response(
+          200, 20 + random.nextInt(280), random.nextInt(100_000), "<html>", 0.02));
+    }
+    List<UrlCheckStatus> statuses = new ArrayList<>();
+    for (int i = 0; i < NUM_URLS; i++) {
+      statuses.add(
+          UrlCheckStatus.fromUrl("http://" + host(random.nextInt(NUM_HOSTS)) + "/product/" + i));
+    }
+
+    BatchOperation op = mock(BatchOperation.class);
+    when(op.getFailureMatchTexts()).thenReturn(ImmutableList.of("out of stock"));
+    when(op.getMaxBodyKilobytes()).thenReturn(null);
+    when(op.getCheckDeadlineSeconds()).thenReturn(null);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(subOp.getUrlStatuses()).thenReturn(statuses);
+    Datastore datastore = mock(Datastore.class);
+    when(datastore.loadBatchSubOperation("1", "2", "3")).thenReturn(subOp);
+
+    // Limit the checks only by the number in flight.
+    Settings settings = new Settings(Integer.MAX_VALUE, Settings.DEFAULT_USER_AGENT);
+    setField(settings, "maxConcurrentChecks", maxConcurrentChecks);
+    setField(settings, "maxConcurrentChecksPerHost", maxConcurrentChecks);
+    setField(settings, "maxChecksPerHostPerMinute", Integer.MAX_VALUE);
+    SettingsService settingsService = mock(SettingsService.class);
+    when(settingsService.getSettings()).thenReturn(settings);
+
+    HostLatencyService hostLatency = new HostLatencyService();
+    long start = System.nanoTime();
+    new UrlCheckTask("1", "2", "3").check(datastore, settingsService,
+        new UrlCheckerService(fetcher, hostLatency), new UrlResultCacheService(),
+        new HostSchedulerService(), new DnsCacheService(), hostLatency,
+        new CircuitBreakerService(), new RateLimiterService(new LocalCounterStore()));
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    int failures = 0;
+    for (UrlCheckStatus status : statuses) {
+      if (status.getStatus() == UrlCheckStatus.Status.FAILURE) {
+        failures++;
+      }
+    }
+    System.out.printf("%3d concurrent checks: %4d URLs, %3d failures, %6.2f s, %7.1f URLs/s%n",
+        maxConcurrentChecks, NUM_URLS, failures, seconds, NUM_URLS / seconds);
+  }
+
+  private static String host(int i) {
+    return "www" + i + ".example.com";
+  }
+
+  private static void setField(Settings settings, String name, Object value) throws Exception {
+    Field field = Settings.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(settings, value);
+  }
+}
@@ -14,31 +14,64 @@
 
 package com.google.adwords.scripts.solutions.linkchecker.tasks;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.adwords.scripts.solutions.linkchecker.datastore.Datastore;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchOperation;
 import com.google.adwords.scripts.solutions.linkchecker.model.BatchSubOperation;
+import com.google.adwords.scripts.solutions.linkchecker.model.HostLatencyProfile;
 import com.google.adwords.scripts.solutions.linkchecker.model.Settings;
+import com.google.adwords.scripts.solutions.linkchecker.model.UrlValidators;
+import com.google.adwords.scripts.solutions.linkchecker.service.CircuitBreakerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.DnsCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostLatencyService;
+import com.google.adwords.scripts.solutions.linkchecker.service.HostSchedulerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.LocalCounterStore;
+import com.google.adwords.scripts.solutions.linkchecker.service.RateLimiterService;
 import com.google.adwords.scripts.solutions.linkchecker.service.SettingsService;
 import com.google.adwords.scripts.solutions.linkchecker.service.UrlCheckerService;
+import com.google.adwords.scripts.solutions.linkchecker.service.UrlResultCacheService;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.FailureTextMatcher;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckOptions;
 import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlCheckStatus;
+import com.google.adwords.scripts.solutions.linkchecker.urlcheck.UrlResultKey;
+import com.google.appengine.api.taskqueue.DeferredTaskContext;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /** Tests for the UrlCheckTask class. */
 public class UrlCheckTaskTest {
@@ -51,6 +84,12 @@ public class UrlCheckTaskTest {
   private SettingsService settingsService;
   private Settings settings;
   private UrlCheckerService urlCheckerService;
+  private UrlResultCacheService resultCache;
+  private HostSchedulerService hostScheduler;
+  private DnsCacheService dnsCache;
+  private HostLatencyService hostLatency;
+  private CircuitBreakerService circuitBreaker;
+  private RateLimiterService rateLimiter;
 
   @Before
   public void setUp() {
@@ -59,6 +98,12 @@ public class UrlCheckTaskTest {
     settingsService = mock(SettingsService.class);
     settings = Settings.createDefaultSettings();
     urlCheckerService = mock(UrlCheckerService.class);
+    resultCache = new UrlResultCacheService();
+    hostScheduler = new HostSchedulerService();
+    dnsCache = new DnsCacheService();
+    hostLatency = new HostLatencyService();
+    circuitBreaker = new CircuitBreakerService();
+    rateLimiter = new RateLimiterService(new LocalCounterStore());
   }
 
   @After
@@ -87,13 +132,240 @@ public class UrlCheckTaskTest {
     when(subOp.getUrlStatuses()).thenReturn(ImmutableList.of(status));
 
     UrlCheckTask task = new UrlCheckTask(accountId, opId, subOpId);
-    task.check(datastore, settingsService, urlCheckerService);
+    task.check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+        hostLatency, circuitBreaker, rateLimiter);
 
-    verify(urlCheckerService).check(status, failureMatchTexts, settings.getUserAgentString());
+    ArgumentCaptor<UrlCheckOptions> options = ArgumentCaptor.forClass(UrlCheckOptions.class);
+    verify(urlCheckerService).check(eq(status), options.capture(), (UrlValidators) any(),
+        (ScheduledExecutorService) any());
+    assertEquals(
+        failureMatchTexts, options.getValue().getFailureTextMatcher().getFailureMatchTexts());
+    assertEquals(settings.getUserAgentString(), options.getValue().getUserAgent());
+    assertFalse(options.getValue().hasMaxBodyBytes());
     verify(datastore).saveBatchSubOperation(subOp);
     verify(datastore).decrementSubOperationsRemaining(accountId, opId);
   }
 
+  @Test
+  public void testMaxBodyKilobytes() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(op.getFailureMatchTexts()).thenReturn(ImmutableList.of("out of stock"));
+    when(subOp.getUrlStatuses()).thenReturn(ImmutableList.of(status));
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    Field maxBodyKilobytes = Settings.class.getDeclaredField("maxBodyKilobytes");
+    maxBodyKilobytes.setAccessible(true);
+    maxBodyKilobytes.set(settings, 512);
+    when(settingsService.getSettings()).thenReturn(settings);
+
+    // Without a limit on the batch, the limit from the settings applies.
+    when(op.getMaxBodyKilobytes()).thenReturn(null);
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+    ArgumentCaptor<UrlCheckOptions> options = ArgumentCaptor.forClass(UrlCheckOptions.class);
+    verify(urlCheckerService).check(eq(status), options.capture(), (UrlValidators) any(),
+        (ScheduledExecutorService) any());
+    assertEquals(512 * 1024, options.getValue().getMaxBodyBytes());
+
+    // The limit on the batch takes precedence.
+    when(op.getMaxBodyKilobytes()).thenReturn(64);
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+    verify(urlCheckerService, times(2)).check(eq(status), options.capture(), (UrlValidators) any(),
+        (ScheduledExecutorService) any());
+    assertEquals(64 * 1024, options.getValue().getMaxBodyBytes());
+  }
+
+  @Test
+  public void testCheckDeadlineSeconds() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(subOp.getUrlStatuses()).thenReturn(ImmutableList.of(status));
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+    when(settingsService.getSettings()).thenReturn(settings);
+
+    // Without a deadline on the batch, the deadline from the settings applies.
+    when(op.getCheckDeadlineSeconds()).thenReturn(null);
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+    ArgumentCaptor<UrlCheckOptions> options = ArgumentCaptor.forClass(UrlCheckOptions.class);
+    ArgumentCaptor<ScheduledExecutorService> watchdog =
+        ArgumentCaptor.forClass(ScheduledExecutorService.class);
+    verify(urlCheckerService).check(
+        eq(status), options.capture(), (UrlValidators) any(), watchdog.capture());
+    assertEquals(Settings.DEFAULT_CHECK_DEADLINE_SECONDS * 1000L,
+        options.getValue().getDeadlineMillis());
+    // The watchdog does not outlive the task.
+    assertTrue(watchdog.getValue().isShutdown());
+
+    // The deadline on the batch takes precedence.
+    when(op.getCheckDeadlineSeconds()).thenReturn(5);
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+    verify(urlCheckerService, times(2)).check(
+        eq(status), options.capture(), (UrlValidators) any(), watchdog.capture());
+    assertEquals(5000, options.getValue().getDeadlineMillis());
+  }
+
+  @Test
+  public void testHostLatencyProfilesLoadedAndSaved() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com/page");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(subOp.getUrlStatuses()).thenReturn(ImmutableList.of(status));
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    Field adaptiveTimeoutsEnabled = Settings.class.getDeclaredField("adaptiveTimeoutsEnabled");
+    adaptiveTimeoutsEnabled.setAccessible(true);
+    adaptiveTimeoutsEnabled.set(settings, true);
+    when(settingsService.getSettings()).thenReturn(settings);
+    HostLatencyProfile saved = new HostLatencyProfile(
+        "www.example.com", ImmutableList.of(10), ImmutableList.of(20));
+    when(datastore.loadHostLatencyProfiles(ImmutableSet.of("www.example.com")))
+        .thenReturn(ImmutableList.of(saved));
+
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    // The saved profile is loaded before checking, and saved again afterwards.
+    ArgumentCaptor<Collection> profiles = ArgumentCaptor.forClass(Collection.class);
+    verify(datastore).saveHostLatencyProfiles(profiles.capture());
+    HostLatencyProfile profile = (HostLatencyProfile) profiles.getValue().iterator().next();
+    assertEquals("www.example.com", profile.getHost());
+    assertEquals(saved.getResponseMillis(), profile.getResponseMillis());
+  }
+
+  @Test
+  public void testCachedResultsNotFetched() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final List<String> urls =
+        ImmutableList.of("http://www.example.com/a", "http://www.example.com/b");
+
+    Field ttl = Settings.class.getDeclaredField("resultCacheTtlMinutes");
+    ttl.setAccessible(true);
+    ttl.set(settings, 60);
+    when(settingsService.getSettings()).thenReturn(settings);
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((UrlCheckStatus) invocation.getArguments()[0])
+                    .setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    // The same URLs are submitted in two batches, the second of which should be resolved entirely
+    // from the cache.
+    BatchOperation op = mock(BatchOperation.class);
+    when(op.getMaxBodyKilobytes()).thenReturn(null);
+    BatchSubOperation firstSubOp = mock(BatchSubOperation.class);
+    BatchSubOperation secondSubOp = mock(BatchSubOperation.class);
+    List<UrlCheckStatus> secondStatuses = Lists.newArrayList();
+    for (String url : urls) {
+      secondStatuses.add(UrlCheckStatus.fromUrl(url));
+    }
+    when(firstSubOp.getParent()).thenReturn(op);
+    when(firstSubOp.getUrlStatuses())
+        .thenReturn(
+            ImmutableList.of(
+                UrlCheckStatus.fromUrl(urls.get(0)), UrlCheckStatus.fromUrl(urls.get(1))));
+    when(secondSubOp.getParent()).thenReturn(op);
+    when(secondSubOp.getUrlStatuses()).thenReturn(secondStatuses);
+    when(datastore.loadBatchSubOperation(accountId, opId, "first")).thenReturn(firstSubOp);
+    when(datastore.loadBatchSubOperation(accountId, opId, "second")).thenReturn(secondSubOp);
+
+    new UrlCheckTask(accountId, opId, "first")
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+    new UrlCheckTask(accountId, opId, "second")
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    verify(urlCheckerService, times(2))
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+    verify(firstSubOp, times(2)).recordCacheMiss();
+    verify(secondSubOp, times(2)).recordCacheHit();
+    verify(secondSubOp, never()).recordCacheMiss();
+    for (UrlCheckStatus status : secondStatuses) {
+      assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+      assertEquals(200, status.getHttpStatusCode());
+    }
+    verify(datastore, times(2)).decrementSubOperationsRemaining(accountId, opId);
+  }
+
+  @Test
+  public void testValidatorsLoadedAndSaved() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.com");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(op.getFailureMatchTexts()).thenReturn(ImmutableList.of("out of stock"));
+    when(op.getMaxBodyKilobytes()).thenReturn(null);
+    when(subOp.getUrlStatuses()).thenReturn(ImmutableList.of(status));
+    when(settingsService.getSettings()).thenReturn(settings);
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    UrlCheckOptions options =
+        new UrlCheckOptions(
+            FailureTextMatcher.compile(ImmutableList.of("out of stock")),
+            0,
+            settings.getUserAgentString());
+    String key = UrlResultKey.of(status.getUrl(), options);
+    UrlCheckStatus previousStatus = UrlCheckStatus.fromUrl(status.getUrl());
+    previousStatus.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    UrlValidators previous = new UrlValidators(key, "\"v1\"", null, previousStatus);
+    UrlValidators updated = new UrlValidators(key, "\"v2\"", null, previousStatus);
+    when(datastore.loadUrlValidators(ImmutableList.of(key)))
+        .thenReturn(ImmutableMap.of(key, previous));
+    when(urlCheckerService.check(eq(status), (UrlCheckOptions) any(), eq(previous),
+        (ScheduledExecutorService) any()))
+        .thenReturn(updated);
+
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    // The previous validators are passed to the check, and the new ones saved.
+    verify(urlCheckerService).check(eq(status), (UrlCheckOptions) any(), eq(previous),
+        (ScheduledExecutorService) any());
+    ArgumentCaptor<Collection> saved = ArgumentCaptor.forClass(Collection.class);
+    verify(datastore).saveUrlValidators(saved.capture());
+    assertEquals(ImmutableList.of(updated), ImmutableList.copyOf(saved.getValue()));
+  }
+
   @Test
   public void testTaskSavedForRetry()
       throws InterruptedException, NoSuchMethodException, IllegalAccessException,
@@ -122,18 +394,486 @@ public class UrlCheckTaskTest {
     // The default URL check rate is 1/s.
     UrlCheckTask task = new UrlCheckTask(accountId, opId, subOpId);
     task.setMaxLoopTimeNanoSeconds(10_000_000_000L);
-    task.check(datastore, settingsService, urlCheckerService);
+    task.check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+        hostLatency, circuitBreaker, rateLimiter);
 
     // Should manage 10 checks when rate limited in 10 seconds, but could be 9 or 11
     // if the clock timing isn't perfect.
     verify(urlCheckerService, atMost(11))
-        .check((UrlCheckStatus) any(), (List<String>) any(), eq(settings.getUserAgentString()));
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
     verify(urlCheckerService, atLeast(9))
-        .check((UrlCheckStatus) any(), (List<String>) any(), eq(settings.getUserAgentString()));
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
 
     // Indicates that the batch has been saved and marked for resumption.
     verify(datastore).saveBatchSubOperation(subOp);
     // As operation is to be resumed, the decrement of remaining sub ops should not take place.
     verify(datastore, never()).decrementSubOperationsRemaining(accountId, opId);
   }
+
+  @Test
+  public void testChecksRunConcurrently() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+    final List<String> failureMatchTexts = ImmutableList.of("out of stock");
+    final long checkDurationMillis = 200;
+
+    List<UrlCheckStatus> statuses = Lists.newArrayList();
+    // Each URL is for a different host, so that the per-host limits do not apply.
+    for (int i = 0; i < 20; i++) {
+      statuses.add(UrlCheckStatus.fromUrl("http://www" + i + ".example.com/"));
+    }
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(op.getFailureMatchTexts()).thenReturn(failureMatchTexts);
+    when(subOp.getUrlStatuses()).thenReturn(statuses);
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    // Allow up to 10 checks in flight, at a rate that does not hold back the task.
+    Settings concurrentSettings = new Settings(6000, Settings.DEFAULT_USER_AGENT);
+    Field maxConcurrentChecks = Settings.class.getDeclaredField("maxConcurrentChecks");
+    maxConcurrentChecks.setAccessible(true);
+    maxConcurrentChecks.set(concurrentSettings, 10);
+    when(settingsService.getSettings()).thenReturn(concurrentSettings);
+
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(checkDurationMillis);
+                ((UrlCheckStatus) invocation.getArguments()[0])
+                    .setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    long startTime = System.nanoTime();
+    UrlCheckTask task = new UrlCheckTask(accountId, opId, subOpId);
+    task.check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+        hostLatency, circuitBreaker, rateLimiter);
+    long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+
+    // Checked one at a time, the URLs would take 4s. With 10 in flight, roughly 400ms.
+    assertTrue(elapsedMillis < statuses.size() * checkDurationMillis / 2);
+    for (UrlCheckStatus status : statuses) {
+      assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    }
+    verify(datastore).saveBatchSubOperation(subOp);
+    verify(datastore).decrementSubOperationsRemaining(accountId, opId);
+  }
+
+  @Test
+  public void testGlobalRateLimitSharedBetweenTasks() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    BatchOperation op = mock(BatchOperation.class);
+    List<UrlCheckStatus> allStatuses = Lists.newArrayList();
+    for (String subOpId : ImmutableList.of("1", "2")) {
+      List<UrlCheckStatus> statuses = Lists.newArrayList();
+      for (int i = 0; i < 6; i++) {
+        statuses.add(UrlCheckStatus.fromUrl("http://www" + subOpId + i + ".example.com/"));
+      }
+      BatchSubOperation subOp = mock(BatchSubOperation.class);
+      when(subOp.getParent()).thenReturn(op);
+      when(subOp.getUrlStatuses()).thenReturn(statuses);
+      when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+      allStatuses.addAll(statuses);
+    }
+
+    // 10 checks per second for all tasks together.
+    Settings globalSettings = new Settings(600, Settings.DEFAULT_USER_AGENT);
+    Field globalRateLimitEnabled = Settings.class.getDeclaredField("globalRateLimitEnabled");
+    globalRateLimitEnabled.setAccessible(true);
+    globalRateLimitEnabled.set(globalSettings, true);
+    Field maxConcurrentChecks = Settings.class.getDeclaredField("maxConcurrentChecks");
+    maxConcurrentChecks.setAccessible(true);
+    maxConcurrentChecks.set(globalSettings, 10);
+    when(settingsService.getSettings()).thenReturn(globalSettings);
+
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((UrlCheckStatus) invocation.getArguments()[0])
+                    .setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    long startTime = System.nanoTime();
+    Thread other =
+        new Thread(
+            () ->
+                new UrlCheckTask(accountId, opId, "1")
+                    .check(datastore, settingsService, urlCheckerService, resultCache,
+                        hostScheduler, dnsCache, hostLatency, circuitBreaker, rateLimiter));
+    other.start();
+    new UrlCheckTask(accountId, opId, "2")
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+    other.join();
+    long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+
+    // Each task alone would check its 6 URLs in about 500ms. Sharing the rate, the 12 URLs take
+    // about 1.1s.
+    assertTrue(elapsedMillis >= 1000);
+    for (UrlCheckStatus status : allStatuses) {
+      assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    }
+    verify(datastore, times(2)).decrementSubOperationsRemaining(accountId, opId);
+  }
+
+  @Test
+  public void testWorkStolenFromSiblings() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+    final String siblingId = "abc";
+    UrlCheckStatus own = UrlCheckStatus.fromUrl("http://www.example.com/");
+    UrlCheckStatus stolen1 = UrlCheckStatus.fromUrl("http://www.example.org/1");
+    UrlCheckStatus stolen2 = UrlCheckStatus.fromUrl("http://www.example.org/2");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(op.isWorkStealingEnabled()).thenReturn(true);
+    when(op.getSubOperationIds()).thenReturn(ImmutableList.of(subOpId, siblingId));
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+    // The task's own URL is claimed first, and then those of its sibling.
+    when(datastore.claimUrls(eq(accountId), eq(opId), eq(subOpId), eq(subOpId), anyInt(),
+            anyLong()))
+        .thenReturn(ImmutableList.of(own), ImmutableList.<UrlCheckStatus>of());
+    when(datastore.claimUrls(eq(accountId), eq(opId), eq(siblingId), eq(subOpId), anyInt(),
+            anyLong()))
+        .thenReturn(ImmutableList.of(stolen1, stolen2), ImmutableList.<UrlCheckStatus>of());
+    when(settingsService.getSettings()).thenReturn(new Settings(6000, "UA"));
+
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((UrlCheckStatus) invocation.getArguments()[0])
+                    .setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    // The outcomes are saved to the sub operation each URL was claimed from, which is counted as
+    // complete by Datastore rather than by the task.
+    assertEquals(ImmutableList.of(own), getSavedClaims(accountId, opId, subOpId, subOpId));
+    assertEquals(
+        ImmutableList.of(stolen1, stolen2), getSavedClaims(accountId, opId, siblingId, subOpId));
+    for (UrlCheckStatus status : ImmutableList.of(own, stolen1, stolen2)) {
+      assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    }
+    verify(datastore, never()).saveBatchSubOperation(subOp);
+    verify(datastore, never()).decrementSubOperationsRemaining(accountId, opId);
+  }
+
+  @Test
+  public void testOutOfTimeBetweenClaimsRetried() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+    UrlCheckStatus first = UrlCheckStatus.fromUrl("http://www.example.com/1");
+    UrlCheckStatus second = UrlCheckStatus.fromUrl("http://www.example.com/2");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(op.isWorkStealingEnabled()).thenReturn(true);
+    when(op.getSubOperationIds()).thenReturn(ImmutableList.of(subOpId));
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+    when(datastore.claimUrls(eq(accountId), eq(opId), eq(subOpId), eq(subOpId), anyInt(),
+            anyLong()))
+        .thenReturn(ImmutableList.of(first), ImmutableList.of(second));
+    // At the default rate of one check a second, the task runs out of time while pacing itself
+    // after the first check, before claiming the second URL.
+    when(settingsService.getSettings()).thenReturn(settings);
+
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((UrlCheckStatus) invocation.getArguments()[0])
+                    .setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    UrlCheckTask task = new UrlCheckTask(accountId, opId, subOpId);
+    task.setMaxLoopTimeNanoSeconds(100_000_000L);
+    task.check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+        hostLatency, circuitBreaker, rateLimiter);
+
+    verify(datastore, times(1)).claimUrls(eq(accountId), eq(opId), eq(subOpId), eq(subOpId),
+        anyInt(), anyLong());
+    assertEquals(ImmutableList.of(first), getSavedClaims(accountId, opId, subOpId, subOpId));
+    // The task is retried to claim the URLs that remain.
+    Field retryKey = DeferredTaskContext.class.getDeclaredField("DEFERRED_MARK_RETRY_KEY");
+    retryKey.setAccessible(true);
+    assertEquals(
+        Boolean.TRUE, ApiProxy.getCurrentEnvironment().getAttributes().get(retryKey.get(null)));
+  }
+
+  /**
+   * Gets the statuses saved for a sub operation by a task that claimed its URLs, in the order they
+   * were saved.
+   */
+  private List<UrlCheckStatus> getSavedClaims(
+      String accountId, String opId, String subOpId, String taskId) {
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Collection<UrlCheckStatus>> saved =
+        (ArgumentCaptor<Collection<UrlCheckStatus>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(
+            Collection.class);
+    verify(datastore, atLeastOnce()).saveClaimedUrls(eq(accountId), eq(opId), eq(subOpId),
+        eq(taskId), saved.capture(), anyInt(), anyInt());
+    List<UrlCheckStatus> statuses = Lists.newArrayList();
+    for (Collection<UrlCheckStatus> value : saved.getAllValues()) {
+      statuses.addAll(value);
+    }
+    return statuses;
+  }
+
+  @Test
+  public void testBusyHostDoesNotHoldUpOthers() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+    final long checkDurationMillis = 200;
+
+    // The first five URLs are for a single host, which may only have one check in flight.
+    List<UrlCheckStatus> statuses = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      statuses.add(UrlCheckStatus.fromUrl("http://busy.example.com/" + i));
+    }
+    for (int i = 0; i < 5; i++) {
+      statuses.add(UrlCheckStatus.fromUrl("http://www" + i + ".example.com/"));
+    }
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(subOp.getUrlStatuses()).thenReturn(statuses);
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    Settings hostSettings = new Settings(6000, Settings.DEFAULT_USER_AGENT);
+    Field maxConcurrentChecks = Settings.class.getDeclaredField("maxConcurrentChecks");
+    maxConcurrentChecks.setAccessible(true);
+    maxConcurrentChecks.set(hostSettings, 10);
+    Field maxConcurrentChecksPerHost =
+        Settings.class.getDeclaredField("maxConcurrentChecksPerHost");
+    maxConcurrentChecksPerHost.setAccessible(true);
+    maxConcurrentChecksPerHost.set(hostSettings, 1);
+    Field maxChecksPerHostPerMinute = Settings.class.getDeclaredField("maxChecksPerHostPerMinute");
+    maxChecksPerHostPerMinute.setAccessible(true);
+    maxChecksPerHostPerMinute.set(hostSettings, 6000);
+    when(settingsService.getSettings()).thenReturn(hostSettings);
+
+    final AtomicInteger busyHostInFlight = new AtomicInteger();
+    final AtomicInteger maxBusyHostInFlight = new AtomicInteger();
+    final Map<String, Long> finishedMillis = new ConcurrentHashMap<>();
+    final long startTime = System.nanoTime();
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                UrlCheckStatus status = (UrlCheckStatus) invocation.getArguments()[0];
+                boolean busyHost = status.getUrl().startsWith("http://busy.");
+                if (busyHost) {
+                  int inFlight = busyHostInFlight.incrementAndGet();
+                  maxBusyHostInFlight.set(Math.max(maxBusyHostInFlight.get(), inFlight));
+                }
+                Thread.sleep(checkDurationMillis);
+                if (busyHost) {
+                  busyHostInFlight.decrementAndGet();
+                }
+                status.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+                finishedMillis.put(status.getUrl(), (System.nanoTime() - startTime) / 1_000_000);
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    assertEquals(1, maxBusyHostInFlight.get());
+    // The other hosts are checked alongside the first check of the busy host, rather than after
+    // all five of its checks, which take 1s in total.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(finishedMillis.get("http://www" + i + ".example.com/") < 3 * checkDurationMillis);
+    }
+    for (UrlCheckStatus status : statuses) {
+      assertEquals(UrlCheckStatus.Status.SUCCESS, status.getStatus());
+    }
+    verify(datastore).decrementSubOperationsRemaining(accountId, opId);
+  }
+
+  @Test
+  public void testUnknownHostNotFetched() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+
+    // The .invalid top-level domain is reserved, so is guaranteed not to resolve.
+    UrlCheckStatus status = UrlCheckStatus.fromUrl("http://www.example.invalid/");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(subOp.getUrlStatuses()).thenReturn(ImmutableList.of(status));
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    Field dnsCacheEnabled = Settings.class.getDeclaredField("dnsCacheEnabled");
+    dnsCacheEnabled.setAccessible(true);
+    dnsCacheEnabled.set(settings, true);
+    when(settingsService.getSettings()).thenReturn(settings);
+
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    verify(urlCheckerService, never())
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+    assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+    assertEquals("Unknown host: www.example.invalid", status.getMessage());
+    assertEquals(1, dnsCache.getNegativeHitCount());
+    verify(datastore).saveBatchSubOperation(subOp);
+    verify(datastore).decrementSubOperationsRemaining(accountId, opId);
+  }
+
+  @Test
+  public void testOpenCircuitNotFetched() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+
+    List<UrlCheckStatus> statuses = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      statuses.add(UrlCheckStatus.fromUrl("http://down.example.com/" + i));
+    }
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(subOp.getUrlStatuses()).thenReturn(statuses);
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    // Open the circuit after two failures, and do not hold back checks for the host.
+    Settings breakerSettings = new Settings(6000, Settings.DEFAULT_USER_AGENT);
+    Field failureThreshold = Settings.class.getDeclaredField("circuitBreakerFailureThreshold");
+    failureThreshold.setAccessible(true);
+    failureThreshold.set(breakerSettings, 2);
+    Field maxChecksPerHostPerMinute = Settings.class.getDeclaredField("maxChecksPerHostPerMinute");
+    maxChecksPerHostPerMinute.setAccessible(true);
+    maxChecksPerHostPerMinute.set(breakerSettings, 60_000_000);
+    when(settingsService.getSettings()).thenReturn(breakerSettings);
+
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((UrlCheckStatus) invocation.getArguments()[0])
+                    .setStatus(UrlCheckStatus.Status.FAILURE, -1, "connect timed out");
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    // Only the checks needed to open the circuit are made.
+    verify(urlCheckerService, times(2))
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+    for (UrlCheckStatus status : statuses.subList(2, 5)) {
+      assertEquals(UrlCheckStatus.Status.FAILURE, status.getStatus());
+      assertEquals("Host not responding, not checked: down.example.com", status.getMessage());
+    }
+    verify(datastore).decrementSubOperationsRemaining(accountId, opId);
+  }
+
+  @Test
+  public void testTransientFailuresRetriedLast() throws Exception {
+    final String accountId = "123";
+    final String opId = "456";
+    final String subOpId = "789";
+
+    final UrlCheckStatus flaky = UrlCheckStatus.fromUrl("http://flaky.example.com/");
+    final UrlCheckStatus missing = UrlCheckStatus.fromUrl("http://missing.example.com/");
+    final UrlCheckStatus healthy = UrlCheckStatus.fromUrl("http://healthy.example.com/");
+    BatchOperation op = mock(BatchOperation.class);
+    BatchSubOperation subOp = mock(BatchSubOperation.class);
+    when(subOp.getParent()).thenReturn(op);
+    when(subOp.getUrlStatuses()).thenReturn(ImmutableList.of(flaky, missing, healthy));
+    when(datastore.loadBatchSubOperation(accountId, opId, subOpId)).thenReturn(subOp);
+
+    Settings retrySettings = new Settings(6000, Settings.DEFAULT_USER_AGENT);
+    Field maxRetries = Settings.class.getDeclaredField("maxRetries");
+    maxRetries.setAccessible(true);
+    maxRetries.set(retrySettings, 2);
+    Field retryBaseDelayMillis = Settings.class.getDeclaredField("retryBaseDelayMillis");
+    retryBaseDelayMillis.setAccessible(true);
+    retryBaseDelayMillis.set(retrySettings, 10);
+    when(settingsService.getSettings()).thenReturn(retrySettings);
+
+    // The flaky URL is unavailable the first time only, while the missing URL always is.
+    final List<String> checked = Lists.newArrayList();
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                UrlCheckStatus status = (UrlCheckStatus) invocation.getArguments()[0];
+                checked.add(status.getUrl());
+                if (status == missing) {
+                  status.setStatus(UrlCheckStatus.Status.FAILURE, 404, "404");
+                } else if (status == flaky && status.getRetryCount() == 0) {
+                  status.setStatus(UrlCheckStatus.Status.FAILURE, 503, "503");
+                } else {
+                  status.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+                }
+                return null;
+              }
+            })
+        .when(urlCheckerService)
+        .check((UrlCheckStatus) any(), (UrlCheckOptions) any(), (UrlValidators) any(),
+            (ScheduledExecutorService) any());
+
+    new UrlCheckTask(accountId, opId, subOpId)
+        .check(datastore, settingsService, urlCheckerService, resultCache, hostScheduler, dnsCache,
+            hostLatency, circuitBreaker, rateLimiter);
+
+    // The retry waits until the other URLs have been checked, and the permanent failure stands.
+    assertEquals(
+        ImmutableList.of(flaky.getUrl(), missing.getUrl(), healthy.getUrl(), flaky.getUrl()),
+        checked);
+    assertEquals(UrlCheckStatus.Status.SUCCESS, flaky.getStatus());
+    assertEquals(1, flaky.getRetryCount());
+    assertEquals(UrlCheckStatus.Status.FAILURE, missing.getStatus());
+    assertEquals(0, missing.getRetryCount());
+    verify(datastore).decrementSubOperationsRemaining(accountId, opId);
+  }
 }
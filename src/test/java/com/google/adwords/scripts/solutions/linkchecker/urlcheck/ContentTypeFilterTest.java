@@ -0,0 +1,60 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+/** Tests for the ContentTypeFilter class. */
+public class ContentTypeFilterTest {
+  @Test
+  public void testDefaultContentTypes() {
+    ContentTypeFilter filter = ContentTypeFilter.of(null);
+    assertTrue(filter.isSearched("text/html"));
+    assertTrue(filter.isSearched("TEXT/HTML; charset=ISO-8859-1"));
+    assertTrue(filter.isSearched("application/xhtml+xml"));
+    assertTrue(filter.isSearched("application/json; charset=utf-8"));
+    assertFalse(filter.isSearched("application/pdf"));
+    assertFalse(filter.isSearched("image/jpeg"));
+    assertFalse(filter.isSearched("video/mp4"));
+    assertFalse(filter.isSearched("application/octet-stream"));
+  }
+
+  @Test
+  public void testUnknownContentTypesSearched() {
+    ContentTypeFilter filter = ContentTypeFilter.of(ImmutableList.of("text/html"));
+    assertTrue(filter.isSearched(null));
+    assertTrue(filter.isSearched("not a type"));
+  }
+
+  @Test
+  public void testGivenContentTypes() {
+    ContentTypeFilter filter =
+        ContentTypeFilter.of(ImmutableList.of("text/html", "application/pdf"));
+    assertTrue(filter.isSearched("text/html; charset=UTF-8"));
+    assertTrue(filter.isSearched("application/pdf"));
+    assertFalse(filter.isSearched("text/plain"));
+
+    assertTrue(ContentTypeFilter.of(ImmutableList.of("*/*")).isSearched("image/png"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidContentType() {
+    ContentTypeFilter.of(ImmutableList.of("html"));
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests for the FailureTextMatcher class. */
+public class FailureTextMatcherTest {
+  @Test
+  public void testEmpty() throws IOException {
+    assertTrue(FailureTextMatcher.compile(null).isEmpty());
+    assertTrue(FailureTextMatcher.compile(ImmutableList.<String>of()).isEmpty());
+    // Empty texts would match every page, so are ignored.
+    FailureTextMatcher matcher = FailureTextMatcher.compile(Arrays.asList("", null));
+    assertTrue(matcher.isEmpty());
+    assertNull(matcher.find(utf8("Any content"), UTF_8));
+  }
+
+  @Test
+  public void testFindsAnyText() throws IOException {
+    FailureTextMatcher matcher =
+        FailureTextMatcher.compile(
+            ImmutableList.of("out of stock", "nicht vorrätig", "agotado", "épuisé"));
+
+    assertEquals("agotado", matcher.find(utf8("<p>Producto agotado</p>"), UTF_8));
+    assertEquals("épuisé", matcher.find(utf8("<p>Article épuisé</p>"), UTF_8));
+    assertEquals("out of stock", matcher.find(utf8("This is out of stock."), UTF_8));
+    assertNull(matcher.find(utf8("This is in stock, not out of sight."), UTF_8));
+  }
+
+  @Test
+  public void testOverlappingTexts() throws IOException {
+    FailureTextMatcher matcher = FailureTextMatcher.compile(ImmutableList.of("hers", "she", "he"));
+
+    // "she" and "he" both end at the same point, so the first of those listed is reported.
+    assertEquals("she", matcher.find(utf8("ushers"), UTF_8));
+    // "he" is found by following the failure link from the partial match of "she".
+    assertEquals("he", matcher.find(utf8("shhe"), UTF_8));
+    // "he" is a prefix of "hers", so ends first.
+    assertEquals("he", matcher.find(utf8("hers"), UTF_8));
+  }
+
+  @Test
+  public void testFirstListedTextWinsAtSamePosition() throws IOException {
+    FailureTextMatcher matcher =
+        FailureTextMatcher.compile(ImmutableList.of("stock", "of stock"));
+
+    assertEquals("stock", matcher.find(utf8("out of stock"), UTF_8));
+  }
+
+  @Test
+  public void testMatchesAcrossLines() throws IOException {
+    FailureTextMatcher matcher =
+        FailureTextMatcher.compile(ImmutableList.of("<span>Sold\nout</span>"));
+
+    assertEquals(
+        "<span>Sold\nout</span>",
+        matcher.find(utf8("<div>\n<span>Sold\nout</span>\n</div>"), UTF_8));
+  }
+
+  @Test
+  public void testMatchesAcrossReads() throws IOException {
+    FailureTextMatcher matcher = FailureTextMatcher.compile(ImmutableList.of("out of stock"));
+
+    // Deliver the content one byte per read, so that the text spans many reads.
+    final InputStream content = utf8("This product is out of stock.");
+    InputStream slowStream =
+        new InputStream() {
+          @Override
+          public int read() throws IOException {
+            return content.read();
+          }
+
+          @Override
+          public int read(byte[] buffer, int offset, int length) throws IOException {
+            return content.read(buffer, offset, Math.min(length, 1));
+          }
+        };
+    assertEquals("out of stock", matcher.find(slowStream, UTF_8));
+  }
+
+  @Test
+  public void testMatchesInPageCharset() throws IOException {
+    FailureTextMatcher matcher = FailureTextMatcher.compile(ImmutableList.of("épuisé", "agotado"));
+
+    byte[] latin1Page = "<p>Article épuisé</p>".getBytes(ISO_8859_1);
+    assertEquals("épuisé", matcher.find(new ByteArrayInputStream(latin1Page), ISO_8859_1));
+    // The same bytes do not contain the UTF-8 encoding of the text.
+    assertNull(matcher.find(new ByteArrayInputStream(latin1Page), UTF_8));
+    // Texts that cannot be encoded in the page charset are skipped, rather than replaced.
+    byte[] asciiPage = "Article ?puis? ou agotado".getBytes(US_ASCII);
+    assertEquals("agotado", matcher.find(new ByteArrayInputStream(asciiPage), US_ASCII));
+  }
+
+  @Test
+  public void testCaseInsensitive() throws IOException {
+    FailureTextMatcher matcher = FailureTextMatcher.compile(
+        ImmutableList.of("Out of stock", "épuisé"), true, null);
+
+    assertEquals("Out of stock", matcher.find(utf8("This is OUT OF STOCK."), UTF_8));
+    assertEquals("Out of stock", matcher.find(utf8("This is oUt Of sToCk."), UTF_8));
+    // Letters beyond ASCII are matched in their lower and upper case forms, and in any case where
+    // they are single bytes.
+    assertEquals("épuisé", matcher.find(utf8("Article ÉPUISÉ"), UTF_8));
+    assertNull(matcher.find(utf8("Article Épuisé"), UTF_8));
+    byte[] latin1Page = "Article Épuisé".getBytes(ISO_8859_1);
+    assertEquals("épuisé", matcher.find(new ByteArrayInputStream(latin1Page), ISO_8859_1));
+    // ASCII letters are not folded in charsets that encode them as more than one byte.
+    byte[] utf16Page = "This is OUT OF STOCK.".getBytes(UTF_16LE);
+    assertEquals("Out of stock", matcher.find(new ByteArrayInputStream(utf16Page), UTF_16LE));
+    assertNull(FailureTextMatcher.compile(ImmutableList.of("Out of stock"))
+        .find(utf8("This is OUT OF STOCK."), UTF_8));
+  }
+
+  @Test
+  public void testPatterns() throws IOException {
+    FailureTextMatcher matcher = FailureTextMatcher.compile(
+        ImmutableList.of("discontinued"), true, ImmutableList.of("out[ -]of[ -]stock"));
+
+    assertEquals("OUT-OF-STOCK", matcher.find(utf8("<b>OUT-OF-STOCK</b>"), UTF_8));
+    assertEquals("out of stock", matcher.find(utf8("Sorry, out of stock"), UTF_8));
+    // Texts are searched for before patterns.
+    assertEquals("discontinued", matcher.find(utf8("Out of stock, discontinued"), UTF_8));
+    assertNull(matcher.find(utf8("In stock"), UTF_8));
+  }
+
+  @Test
+  public void testPatternsOnlyMatchedAgainstStartOfContent() throws IOException {
+    FailureTextMatcher matcher = FailureTextMatcher.compile(
+        ImmutableList.of("discontinued"), false, ImmutableList.of("out[ -]of[ -]stock"));
+    char[] padding = new char[FailureTextMatcher.MAX_PATTERN_CONTENT_BYTES];
+    Arrays.fill(padding, ' ');
+
+    assertNull(matcher.find(utf8(new String(padding) + "out of stock"), UTF_8));
+    // The texts are still searched for throughout.
+    assertEquals("discontinued", matcher.find(utf8(new String(padding) + "discontinued"), UTF_8));
+  }
+
+  @Test
+  public void testPatternsDoNotDelayFoundText() throws IOException {
+    FailureTextMatcher matcher = FailureTextMatcher.compile(
+        ImmutableList.of("discontinued"), false, ImmutableList.of("out[ -]of[ -]stock"));
+    byte[] content = new byte[10 * FailureTextMatcher.MAX_PATTERN_CONTENT_BYTES];
+    Arrays.fill(content, (byte) ' ');
+    System.arraycopy("discontinued".getBytes(UTF_8), 0, content, 0, 12);
+    ByteArrayInputStream inputStream = new ByteArrayInputStream(content);
+
+    assertEquals("discontinued", matcher.find(inputStream, UTF_8));
+    // The rest of the page is not read once a text is found.
+    assertTrue(inputStream.available() > content.length - 64 * 1024);
+  }
+
+  @Test(expected = FailureTextMatcher.PatternTimeoutException.class)
+  public void testPatternTimeLimit() throws IOException {
+    // A pattern which backtracks exponentially on content that does not match.
+    FailureTextMatcher matcher =
+        FailureTextMatcher.compile(null, false, ImmutableList.of("(x+)+\\1y"));
+    char[] content = new char[40];
+    Arrays.fill(content, 'x');
+    matcher.find(utf8(new String(content)), UTF_8, 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPattern() {
+    FailureTextMatcher.compile(null, false, ImmutableList.of("out of (stock"));
+  }
+
+  @Test
+  public void testCompiledOnce() {
+    List<String> texts = ImmutableList.of("out of stock");
+    List<String> patterns = ImmutableList.of("x+");
+    assertSame(
+        FailureTextMatcher.compile(texts, true, patterns),
+        FailureTextMatcher.compile(texts, true, patterns));
+    assertNotSame(
+        FailureTextMatcher.compile(texts, true, patterns),
+        FailureTextMatcher.compile(texts, false, patterns));
+  }
+
+  private static InputStream utf8(String content) {
+    return new ByteArrayInputStream(content.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.junit.Test;
+
+/** Tests for the PooledInflaterInputStream class. */
+public class PooledInflaterInputStreamTest {
+  private static final String PAGE = "<html><body>This product is out of stock.</body></html>";
+
+  @Test
+  public void testDecodesGzip() throws IOException {
+    for (int i = 0; i < 3; i++) {
+      // Each stream after the first reuses the inflater released by the one before.
+      try (InputStream in = PooledInflaterInputStream.gzip(gzip(PAGE + i))) {
+        assertEquals(PAGE + i, new String(ByteStreams.toByteArray(in), UTF_8));
+      }
+    }
+  }
+
+  @Test
+  public void testSkipsOptionalHeaderFields() throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    // The header, with the extra field, name, comment and header CRC flags set.
+    content.write(new byte[] {0x1f, (byte) 0x8b, 8, 2 | 4 | 8 | 16, 0, 0, 0, 0, 0, 3});
+    content.write(new byte[] {3, 0, 'a', 'b', 'c'});
+    content.write("page.html\0A comment\0".getBytes(UTF_8));
+    content.write(new byte[] {0, 0});
+    // The deflate data and trailer, taken from an ordinary gzip stream with a 10 byte header.
+    byte[] gzip = ByteStreams.toByteArray(gzip(PAGE));
+    content.write(gzip, 10, gzip.length - 10);
+
+    PooledInflaterInputStream in =
+        PooledInflaterInputStream.gzip(new ByteArrayInputStream(content.toByteArray()));
+    assertEquals(PAGE, new String(ByteStreams.toByteArray(in), UTF_8));
+    in.release();
+  }
+
+  @Test
+  public void testDecodesDeflate() throws IOException {
+    // Deflate content should be zlib data, but is sometimes raw deflate data.
+    for (boolean raw : new boolean[] {false, true}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DeflaterOutputStream deflate =
+          new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, raw))) {
+        deflate.write(PAGE.getBytes(UTF_8));
+      }
+      try (InputStream in =
+          PooledInflaterInputStream.deflate(new ByteArrayInputStream(bytes.toByteArray()))) {
+        assertEquals(PAGE, new String(ByteStreams.toByteArray(in), UTF_8));
+      }
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void testNotGzip() throws IOException {
+    PooledInflaterInputStream.gzip(new ByteArrayInputStream(PAGE.getBytes(UTF_8)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadAfterRelease() throws IOException {
+    PooledInflaterInputStream in = PooledInflaterInputStream.gzip(gzip(PAGE));
+    in.release();
+    in.release();
+    in.read();
+  }
+
+  private static InputStream gzip(String content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(content.getBytes(UTF_8));
+    }
+    return new ByteArrayInputStream(bytes.toByteArray());
+  }
+}
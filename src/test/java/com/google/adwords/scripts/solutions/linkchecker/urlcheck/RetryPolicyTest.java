@@ -0,0 +1,79 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for the RetryPolicy class. */
+public class RetryPolicyTest {
+
+  @Test
+  public void testTransientFailures() {
+    assertTrue(RetryPolicy.isTransient(failure("http://www.example.com/", -1)));
+    assertTrue(RetryPolicy.isTransient(failure("http://www.example.com/", 503)));
+    assertTrue(RetryPolicy.isTransient(failure("http://www.example.com/", 429)));
+    assertFalse(RetryPolicy.isTransient(failure("http://www.example.com/", 404)));
+    assertFalse(RetryPolicy.isTransient(failure("http://www.example.com/", 500)));
+    // A URL that cannot be parsed will never succeed.
+    assertFalse(RetryPolicy.isTransient(failure("abcabcabcabc", -1)));
+
+    UrlCheckStatus success = UrlCheckStatus.fromUrl("http://www.example.com/");
+    success.setStatus(UrlCheckStatus.Status.SUCCESS, 200, null);
+    assertFalse(RetryPolicy.isTransient(success));
+  }
+
+  @Test
+  public void testMaxRetries() {
+    RetryPolicy retryPolicy = new RetryPolicy(2, 1000);
+    UrlCheckStatus status = failure("http://www.example.com/", 503);
+    assertTrue(retryPolicy.shouldRetry(status));
+    status.incrementRetryCount();
+    assertTrue(retryPolicy.shouldRetry(status));
+    status.incrementRetryCount();
+    assertFalse(retryPolicy.shouldRetry(status));
+
+    assertFalse(new RetryPolicy(RetryPolicy.NO_RETRIES, 1000).shouldRetry(
+        failure("http://www.example.com/", 503)));
+  }
+
+  @Test
+  public void testBackoff() {
+    RetryPolicy retryPolicy = new RetryPolicy(10, 1000, new Random(42));
+    for (int retryCount = 0; retryCount < 10; retryCount++) {
+      long maxBackoff = Math.min(RetryPolicy.MAX_BACKOFF_MILLIS, 1000L << retryCount);
+      long backoff = retryPolicy.getBackoffMillis(retryCount);
+      assertTrue(backoff >= maxBackoff / 2);
+      assertTrue(backoff <= maxBackoff);
+    }
+    assertEquals(RetryPolicy.MAX_BACKOFF_MILLIS,
+        new RetryPolicy(100, 1000, new Random() {
+          @Override
+          public double nextDouble() {
+            return 1;
+          }
+        }).getBackoffMillis(100));
+  }
+
+  private static UrlCheckStatus failure(String url, int httpStatusCode) {
+    UrlCheckStatus status = UrlCheckStatus.fromUrl(url);
+    status.setStatus(UrlCheckStatus.Status.FAILURE, httpStatusCode, String.valueOf(httpStatusCode));
+    return status;
+  }
+}
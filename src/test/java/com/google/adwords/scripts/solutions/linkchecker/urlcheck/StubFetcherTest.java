@@ -0,0 +1,107 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/** Tests for the StubFetcher class. */
+public class StubFetcherTest {
+
+  @Test
+  public void testResponse() throws IOException {
+    StubFetcher fetcher = new StubFetcher(1);
+    fetcher.setResponse("www.example.com", new StubFetcher.Response(200, 0, 20, "out of stock", 0));
+
+    HttpURLConnection urlConnection = fetcher.open(new URL("http://www.example.com/page"));
+    assertEquals(200, urlConnection.getResponseCode());
+    assertEquals("text/html; charset=UTF-8", urlConnection.getContentType());
+    assertEquals(20, urlConnection.getContentLength());
+    try (InputStream inputStream = urlConnection.getInputStream()) {
+      assertEquals("out of stock        ",
+          new String(ByteStreams.toByteArray(inputStream), StandardCharsets.UTF_8));
+    }
+    assertEquals(1, fetcher.getFetchCount());
+  }
+
+  @Test
+  public void testErrorResponse() throws IOException {
+    StubFetcher fetcher = new StubFetcher(1);
+    fetcher.setDefaultResponse(new StubFetcher.Response(404, 0, 9, "Not found", 0));
+
+    HttpURLConnection urlConnection = fetcher.open(new URL("http://www.example.com/page"));
+    assertEquals(404, urlConnection.getResponseCode());
+    byte[] errorContent = ByteStreams.toByteArray(urlConnection.getErrorStream());
+    assertEquals("Not found", new String(errorContent, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testHeadHasNoBody() throws IOException {
+    StubFetcher fetcher = new StubFetcher(1);
+    fetcher.setDefaultResponse(new StubFetcher.Response(200, 0, 100, "", 0));
+
+    HttpURLConnection urlConnection = fetcher.open(new URL("http://www.example.com/page"));
+    urlConnection.setRequestMethod("HEAD");
+    assertEquals(-1, urlConnection.getInputStream().read());
+  }
+
+  @Test
+  public void testFailuresAreRepeatable() throws IOException {
+    assertEquals(countFailures(new StubFetcher(42)), countFailures(new StubFetcher(42)));
+    int failures = countFailures(new StubFetcher(42));
+    assertTrue(failures > 30 && failures < 70);
+  }
+
+  @Test
+  public void testReadTimeout() throws IOException {
+    StubFetcher fetcher = new StubFetcher(1);
+    fetcher.setDefaultResponse(new StubFetcher.Response(200, 1000, 0, "", 0));
+
+    HttpURLConnection urlConnection = fetcher.open(new URL("http://www.example.com/page"));
+    urlConnection.setReadTimeout(10);
+    try {
+      urlConnection.getResponseCode();
+      fail("The response should have timed out.");
+    } catch (SocketTimeoutException e) {
+      assertEquals("Read timed out", e.getMessage());
+    }
+    assertNull(urlConnection.getErrorStream());
+  }
+
+  private static int countFailures(StubFetcher fetcher) throws IOException {
+    fetcher.setDefaultResponse(new StubFetcher.Response(200, 0, 0, "", 0.5));
+    int failures = 0;
+    for (int i = 0; i < 100; i++) {
+      try {
+        fetcher.open(new URL("http://www.example.com/" + i)).getResponseCode();
+      } catch (ConnectException e) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+}
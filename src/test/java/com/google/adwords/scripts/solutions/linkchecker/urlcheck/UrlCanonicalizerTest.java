@@ -0,0 +1,78 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+/** Tests for the UrlCanonicalizer class. */
+public class UrlCanonicalizerTest {
+  @Test
+  public void testNormalizes() {
+    UrlCanonicalizer canonicalizer = new UrlCanonicalizer(false, null);
+    assertEquals(
+        "http://example.com/a?c=2&b=1",
+        canonicalizer.canonicalize("HTTP://Example.com:80/a?c=2&b=1"));
+    assertEquals("https://example.com/", canonicalizer.canonicalize("https://example.com#top"));
+    assertEquals("not a url", canonicalizer.canonicalize("not a url"));
+  }
+
+  @Test
+  public void testSortsQueryParameters() {
+    UrlCanonicalizer canonicalizer = new UrlCanonicalizer(true, null);
+    assertEquals(
+        "http://example.com/a?b=1&c=2", canonicalizer.canonicalize("http://example.com/a?c=2&b=1"));
+    // Repeated parameters keep their order.
+    assertEquals(
+        "http://example.com/?a=2&a=1&b",
+        canonicalizer.canonicalize("http://example.com/?b&a=2&a=1"));
+  }
+
+  @Test
+  public void testStripsQueryParameters() {
+    UrlCanonicalizer canonicalizer =
+        new UrlCanonicalizer(false, ImmutableList.of("gclid", "utm_*"));
+    assertEquals(
+        "http://example.com/a?id=7",
+        canonicalizer.canonicalize(
+            "http://example.com/a?utm_source=x&id=7&GCLID=abc&utm_medium=y"));
+    assertEquals(
+        "http://example.com/a", canonicalizer.canonicalize("http://example.com/a?gclid=abc#top"));
+    // Only whole names are matched, other than by prefix.
+    assertEquals(
+        "http://example.com/a?gclid_x=1&utm=2",
+        canonicalizer.canonicalize("http://example.com/a?gclid_x=1&utm=2"));
+  }
+
+  @Test
+  public void testMapsToOriginalUrls() {
+    UrlCanonicalizer canonicalizer = new UrlCanonicalizer(true, null);
+    assertEquals(
+        ImmutableMap.of(
+            "http://example.com/a?b=1&c=2",
+            ImmutableList.of("HTTP://Example.com/a?b=1&c=2", "http://example.com/a?c=2&b=1"),
+            "http://example.com/b",
+            ImmutableList.of("http://example.com/b")),
+        canonicalizer.canonicalize(
+            ImmutableList.of(
+                "HTTP://Example.com/a?b=1&c=2",
+                "http://example.com/b",
+                "http://example.com/a?c=2&b=1",
+                "HTTP://Example.com/a?b=1&c=2")));
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2017, Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.adwords.scripts.solutions.linkchecker.urlcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+/** Tests for the UrlResultKey class. */
+public class UrlResultKeyTest {
+  private static final UrlCheckOptions OPTIONS =
+      new UrlCheckOptions(
+          FailureTextMatcher.compile(ImmutableList.of("out of stock", "discontinued")), 0, "");
+
+  @Test
+  public void testNormalize() {
+    assertEquals("http://www.example.com/", UrlResultKey.normalize("HTTP://WWW.Example.com"));
+    assertEquals(
+        "https://www.example.com/a?b=c",
+        UrlResultKey.normalize("https://www.example.com:443/a?b=c#top"));
+    assertEquals(
+        "http://www.example.com:8080/A", UrlResultKey.normalize("http://www.example.com:8080/A"));
+    assertEquals("not a url", UrlResultKey.normalize("not a url"));
+  }
+
+  @Test
+  public void testKey() {
+    assertEquals(
+        UrlResultKey.of("http://www.example.com/", OPTIONS),
+        UrlResultKey.of("http://WWW.EXAMPLE.COM", OPTIONS));
+    assertNotEquals(
+        UrlResultKey.of("http://www.example.com/a", OPTIONS),
+        UrlResultKey.of("http://www.example.com/A", OPTIONS));
+    // The order of the failure texts does not matter, but the texts and limit do.
+    assertEquals(
+        UrlResultKey.of("http://www.example.com/", OPTIONS),
+        UrlResultKey.of(
+            "http://www.example.com/",
+            new UrlCheckOptions(
+                FailureTextMatcher.compile(ImmutableList.of("discontinued", "out of stock")),
+                0,
+                "")));
+    assertNotEquals(
+        UrlResultKey.of("http://www.example.com/", OPTIONS),
+        UrlResultKey.of(
+            "http://www.example.com/",
+            new UrlCheckOptions(OPTIONS.getFailureTextMatcher(), 1024, "")));
+    assertNotEquals(
+        UrlResultKey.of("http://www.example.com/", OPTIONS),
+        UrlResultKey.of(
+            "http://www.example.com/",
+            new UrlCheckOptions(
+                FailureTextMatcher.compile(
+                    ImmutableList.of("out of stock", "discontinued"), true, null),
+                0,
+                "")));
+    // As does which content types are searched.
+    assertNotEquals(
+        UrlResultKey.of("http://www.example.com/", OPTIONS),
+        UrlResultKey.of(
+            "http://www.example.com/",
+            new UrlCheckOptions(OPTIONS.getFailureTextMatcher(), 0, 0,
+                ContentTypeFilter.of(ImmutableList.of("*/*")), "")));
+  }
+
+  @Test
+  public void testTextsAndPatternsDistinguished() {
+    UrlCheckOptions texts = new UrlCheckOptions(
+        FailureTextMatcher.compile(ImmutableList.of("stock"), false, null), 0, "");
+    UrlCheckOptions patterns = new UrlCheckOptions(
+        FailureTextMatcher.compile(null, false, ImmutableList.of("stock")), 0, "");
+
+    // The same string is matched differently as a text and as a pattern.
+    assertNotEquals(
+        UrlResultKey.of("http://www.example.com/", texts),
+        UrlResultKey.of("http://www.example.com/", patterns));
+  }
+}